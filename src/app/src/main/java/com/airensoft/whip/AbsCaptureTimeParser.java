@@ -0,0 +1,151 @@
+package com.airensoft.whip;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads the abs-capture-time RTP header extension, the capture time of a frame on the sender's
+ * NTP wall clock. An ingest server can subtract it from the arrival time of the frame to get its
+ * capture-to-ingest latency, provided both clocks are synchronized. It uses no Android or WebRTC
+ * API, so AbsCaptureTimePcapTool in the test source set runs it on a desktop against a packet
+ * capture of the ingest traffic.
+ *
+ * The extension data is the capture time as a 64 bit UQ32.32 NTP timestamp, optionally followed
+ * by the capture clock offset as a 64 bit Q32.32, big endian. A sender may leave it out of frames
+ * whose capture time follows from the RTP timestamp; Interpolator fills those in.
+ */
+class AbsCaptureTimeParser {
+    // Seconds from the NTP epoch (1900) to the Unix epoch (1970).
+    private static final long NTP_UNIX_OFFSET_SECONDS = 2_208_988_800L;
+
+    /**
+     * The extension of one packet.
+     */
+    static class AbsCaptureTime {
+        // UQ32.32 seconds since 1900 on the capturer's clock.
+        public final long captureNtp;
+        // Q32.32 seconds from the capturer's clock to the sender's, null if absent.
+        public final Long captureClockOffset;
+
+        AbsCaptureTime(long captureNtp, Long captureClockOffset) {
+            this.captureNtp = captureNtp;
+            this.captureClockOffset = captureClockOffset;
+        }
+
+        public double getCaptureUnixMs() {
+            return ntpToUnixMs(captureNtp);
+        }
+    }
+
+    /**
+     * Estimates the capture time of frames without the extension from the last frame with it,
+     * as the sender expects. Keep one per SSRC.
+     */
+    static class Interpolator {
+        // Larger gaps are not interpolated.
+        private static final long MAX_INTERVAL_MS = 5000;
+
+        private final int clockRate;
+        private long lastRtpTimestamp;
+        private double lastCaptureUnixMs = Double.NaN;
+
+        Interpolator(int clockRate) {
+            this.clockRate = clockRate;
+        }
+
+        /**
+         * Returns the capture time of the packet's frame in Unix ms, or NaN if it is unknown.
+         * `extension` is null for a packet without one.
+         */
+        public double update(long rtpTimestamp, AbsCaptureTime extension) {
+            if (extension != null) {
+                lastRtpTimestamp = rtpTimestamp;
+                lastCaptureUnixMs = extension.getCaptureUnixMs();
+                return lastCaptureUnixMs;
+            }
+            if (Double.isNaN(lastCaptureUnixMs)) {
+                return Double.NaN;
+            }
+            // RTP timestamps wrap at 32 bits.
+            final int elapsed = (int) (rtpTimestamp - lastRtpTimestamp);
+            final double elapsedMs = elapsed * 1000.0 / clockRate;
+            if (Math.abs(elapsedMs) > MAX_INTERVAL_MS) {
+                return Double.NaN;
+            }
+            return lastCaptureUnixMs + elapsedMs;
+        }
+    }
+
+    /**
+     * Returns the extension of the RTP packet in `packet`, or null if the packet is not RTP or
+     * has no such extension. Both the one-byte and the two-byte header format are read.
+     */
+    public static AbsCaptureTime parse(byte[] packet, int offset, int length, int extensionId) {
+        final ByteBuffer rtp = ByteBuffer.wrap(packet, offset, length).slice().order(ByteOrder.BIG_ENDIAN);
+        if (!isRtp(rtp) || (rtp.get(0) & 0x10) == 0) {
+            return null;
+        }
+        final int csrcCount = rtp.get(0) & 0x0F;
+        int position = 12 + 4 * csrcCount;
+        if (position + 4 > rtp.limit()) {
+            return null;
+        }
+        final int profile = rtp.getShort(position) & 0xFFFF;
+        final int extensionEnd = position + 4 + 4 * (rtp.getShort(position + 2) & 0xFFFF);
+        if (extensionEnd > rtp.limit()) {
+            return null;
+        }
+        final boolean oneByte = profile == 0xBEDE;
+        if (!oneByte && (profile & 0xFFF0) != 0x1000) {
+            return null;
+        }
+        position += 4;
+        while (position < extensionEnd) {
+            if (rtp.get(position) == 0) {
+                // Padding
+                position++;
+                continue;
+            }
+            final int id;
+            final int size;
+            if (oneByte) {
+                id = (rtp.get(position) & 0xF0) >> 4;
+                size = (rtp.get(position) & 0x0F) + 1;
+                position += 1;
+                if (id == 15) {
+                    // Stops the parsing of the header extension.
+                    return null;
+                }
+            } else {
+                id = rtp.get(position) & 0xFF;
+                size = position + 1 < extensionEnd ? rtp.get(position + 1) & 0xFF : 0;
+                position += 2;
+            }
+            if (position + size > extensionEnd) {
+                return null;
+            }
+            if (id == extensionId) {
+                if (size != 8 && size != 16) {
+                    return null;
+                }
+                return new AbsCaptureTime(rtp.getLong(position), size == 16 ? rtp.getLong(position + 8) : null);
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    public static double ntpToUnixMs(long ntp) {
+        final long seconds = (ntp >>> 32) - NTP_UNIX_OFFSET_SECONDS;
+        return seconds * 1000.0 + (ntp & 0xFFFFFFFFL) * 1000.0 / (1L << 32);
+    }
+
+    static boolean isRtp(ByteBuffer rtp) {
+        if (rtp.limit() < 12 || (rtp.get(0) & 0xC0) != 0x80) {
+            return false;
+        }
+        // RTCP packet types 192-223 fall on payload types 64-95 with the marker bit set.
+        final int payloadType = rtp.get(1) & 0x7F;
+        return payloadType < 64 || payloadType > 95;
+    }
+}
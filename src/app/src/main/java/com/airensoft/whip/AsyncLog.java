@@ -0,0 +1,202 @@
+package com.airensoft.whip;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Structured logger that keeps formatting off the calling thread. Records are gated per component
+ * before anything is built, published into a lock-free ring buffer and formatted/written to
+ * logcat by a single drain thread.
+ *
+ * Records below the output level are not written but kept in a short history; an ERROR record
+ * dumps that history first, so the context of a failure is in logcat without running at DEBUG.
+ *
+ * Messages use String.format syntax; a trailing Throwable argument is appended as a stack trace.
+ * Arguments are formatted later on the drain thread, so they must be immutable: pass primitives,
+ * strings or a toString() snapshot (behind isLoggable when it is costly), never live objects
+ * another thread may mutate or dispose.
+ */
+class AsyncLog {
+    public enum Level {
+        VERBOSE(Log.VERBOSE), DEBUG(Log.DEBUG), INFO(Log.INFO), WARN(Log.WARN), ERROR(Log.ERROR), NONE(Log.ASSERT + 1);
+
+        final int priority;
+
+        Level(int priority) {
+            this.priority = priority;
+        }
+    }
+
+    private static final int CAPACITY = 4096; // power of two
+    private static final int HISTORY_SIZE = 256;
+    private static final Object[] NO_ARGS = new Object[0];
+
+    private static final Map<String, Level> componentLevels = new ConcurrentHashMap<>();
+    private static volatile Level defaultLevel = Level.DEBUG;
+    private static volatile Level outputLevel = Level.DEBUG;
+
+    private static final AtomicReferenceArray<Record> ring = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLong writeSequence = new AtomicLong();
+    private static final AtomicLong droppedRecords = new AtomicLong();
+    // Set while the drain thread is about to park; the next producer wakes it up.
+    private static final AtomicBoolean drainWaiting = new AtomicBoolean();
+    private static final Thread drainThread;
+
+    static {
+        drainThread = new Thread(AsyncLog::drain, "AsyncLog");
+        drainThread.setDaemon(true);
+        drainThread.setPriority(Thread.MIN_PRIORITY);
+        drainThread.start();
+    }
+
+    private static class Record {
+        final long sequence;
+        final long timestampMs;
+        final long threadId;
+        final Level level;
+        final String component;
+        final String format;
+        final Object[] args;
+        boolean written;
+
+        Record(long sequence, Level level, String component, String format, Object[] args) {
+            this.sequence = sequence;
+            this.timestampMs = System.currentTimeMillis();
+            this.threadId = Thread.currentThread().getId();
+            this.level = level;
+            this.component = component;
+            this.format = format;
+            this.args = args;
+        }
+    }
+
+    /**
+     * Sets the record level of `component`; records below it are discarded at the call site.
+     */
+    public static void setLevel(String component, Level level) {
+        componentLevels.put(component, level);
+    }
+
+    public static void setDefaultLevel(Level level) {
+        defaultLevel = level;
+    }
+
+    /**
+     * Sets the level at which records are written to logcat; records below it only go to the
+     * dump-on-error history.
+     */
+    public static void setOutputLevel(Level level) {
+        outputLevel = level;
+    }
+
+    public static Level getLevel(String component) {
+        Level level = componentLevels.get(component);
+        return level != null ? level : defaultLevel;
+    }
+
+    public static boolean isLoggable(String component, Level level) {
+        return level.priority >= getLevel(component).priority;
+    }
+
+    public static long getDroppedRecords() {
+        return droppedRecords.get();
+    }
+
+    public static void v(String component, String format, Object... args) {
+        log(Level.VERBOSE, component, format, args);
+    }
+
+    public static void d(String component, String format, Object... args) {
+        log(Level.DEBUG, component, format, args);
+    }
+
+    public static void i(String component, String format, Object... args) {
+        log(Level.INFO, component, format, args);
+    }
+
+    public static void w(String component, String format, Object... args) {
+        log(Level.WARN, component, format, args);
+    }
+
+    public static void e(String component, String format, Object... args) {
+        log(Level.ERROR, component, format, args);
+    }
+
+    private static void log(Level level, String component, String format, Object[] args) {
+        if (!isLoggable(component, level)) {
+            return;
+        }
+        final long sequence = writeSequence.getAndIncrement();
+        // When the drain thread falls a full ring behind, the oldest record is overwritten.
+        ring.set((int) (sequence & (CAPACITY - 1)), new Record(sequence, level, component, format, args != null ? args : NO_ARGS));
+        if (drainWaiting.get() && drainWaiting.compareAndSet(true, false)) {
+            LockSupport.unpark(drainThread);
+        }
+    }
+
+    private static void drain() {
+        final ArrayDeque<Record> history = new ArrayDeque<>(HISTORY_SIZE);
+        long readSequence = 0;
+        while (true) {
+            Record record = ring.get((int) (readSequence & (CAPACITY - 1)));
+            if (record == null || record.sequence < readSequence) {
+                // Not published yet. Announce the wait and check again, so a record published in
+                // between is not missed, then block until a producer wakes us.
+                if (!drainWaiting.get()) {
+                    drainWaiting.set(true);
+                    continue;
+                }
+                LockSupport.park();
+                continue;
+            }
+            if (record.sequence > readSequence) {
+                droppedRecords.addAndGet(record.sequence - readSequence);
+            }
+            readSequence = record.sequence + 1;
+
+            if (record.level == Level.ERROR) {
+                for (Record previous : history) {
+                    if (!previous.written) {
+                        write(previous, "[dump] ");
+                    }
+                }
+                history.clear();
+            }
+            if (record.level.priority >= outputLevel.priority) {
+                write(record, "");
+                record.written = true;
+            }
+            if (history.size() == HISTORY_SIZE) {
+                history.removeFirst();
+            }
+            history.addLast(record);
+        }
+    }
+
+    private static void write(Record record, String prefix) {
+        Object[] args = record.args;
+        Throwable throwable = null;
+        if (args.length > 0 && args[args.length - 1] instanceof Throwable) {
+            throwable = (Throwable) args[args.length - 1];
+        }
+        String message;
+        try {
+            message = args.length > (throwable != null ? 1 : 0) ? String.format(Locale.US, record.format, args) : record.format;
+        } catch (RuntimeException e) {
+            message = record.format;
+        }
+        if (throwable != null) {
+            message += "\n" + Log.getStackTraceString(throwable);
+        }
+        Log.println(record.level.priority, record.component,
+                String.format(Locale.US, "%s#%d t=%d tid=%d %s", prefix, record.sequence, record.timestampMs, record.threadId, message));
+    }
+}
@@ -0,0 +1,70 @@
+package com.airensoft.whip;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Follows the send-side bandwidth estimate (availableOutgoingBitrate of the selected candidate
+ * pair) over the last WINDOW_SAMPLES stats reports. The sustained estimate is a low percentile of
+ * that window, so a short probe peak does not count.
+ */
+class BandwidthEstimateTracker {
+    private static final int WINDOW_SAMPLES = 60;
+    private static final int MIN_SAMPLES = 20;
+    private static final double SUSTAINED_PERCENTILE = 0.25;
+
+    private final long[] samples = new long[WINDOW_SAMPLES];
+    private int count;
+    private int next;
+
+    public synchronized void update(RTCStatsReport report) {
+        final long bitrateBps = getAvailableOutgoingBitrate(report);
+        if (bitrateBps <= 0) {
+            return;
+        }
+        samples[next] = bitrateBps;
+        next = (next + 1) % samples.length;
+        count = Math.min(count + 1, samples.length);
+    }
+
+    /**
+     * Returns the sustained estimate, or 0 until MIN_SAMPLES were collected.
+     */
+    public synchronized long getSustainedBps() {
+        if (count < MIN_SAMPLES) {
+            return 0;
+        }
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        return sorted[(int) (SUSTAINED_PERCENTILE * (count - 1))];
+    }
+
+    private static long getAvailableOutgoingBitrate(RTCStatsReport report) {
+        final Map<String, RTCStats> statsMap = report.getStatsMap();
+        RTCStats selected = null;
+        for (RTCStats stats : statsMap.values()) {
+            if ("transport".equals(stats.getType())) {
+                Object pairId = stats.getMembers().get("selectedCandidatePairId");
+                selected = pairId != null ? statsMap.get(pairId.toString()) : null;
+                break;
+            }
+        }
+        if (selected == null) {
+            for (RTCStats stats : statsMap.values()) {
+                if ("candidate-pair".equals(stats.getType()) && Boolean.TRUE.equals(stats.getMembers().get("nominated"))
+                        && "succeeded".equals(stats.getMembers().get("state"))) {
+                    selected = stats;
+                    break;
+                }
+            }
+        }
+        if (selected == null) {
+            return 0;
+        }
+        Object bitrate = selected.getMembers().get("availableOutgoingBitrate");
+        return bitrate instanceof Number ? ((Number) bitrate).longValue() : 0;
+    }
+}
@@ -32,6 +32,8 @@ import org.webrtc.VideoSink;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -42,8 +44,11 @@ import android.util.Pair;
 
 public class BroadcastActivity extends AppCompatActivity implements PeerConnectionEvents {
 
+    // WHIP HTTP requests and cache writes, kept off the UI thread and the PeerConnection lanes
     private static final ExecutorService executor = Executors.newSingleThreadExecutor();
 
+    private static final String EXTRA_FAILOVER_COUNT = "failover_count";
+
     @Nullable
     private PeerConnectionClient peerConnectionClient = null;
 
@@ -54,7 +59,8 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
 
     private ProxyVideoSink localProxyVideoSink = null;
 
-    private WHIPClient whipClient = null;
+    // Set on the WHIP executor
+    private volatile WHIPClient whipClient = null;
 
     List<PeerConnection.IceServer> _turnServers = null;
 
@@ -62,6 +68,16 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
 
     SharedPreferences _sharedPreferences = null;
 
+    private WhipEndpointSelector _endpointSelector = null;
+
+    // Endpoint of the current WHIP session
+    private volatile String _endpoint = null;
+
+    private StartBitrateCache _startBitrateCache = null;
+
+    // Start bitrate cache key of the current WHIP session
+    private volatile String _startBitrateKey = null;
+
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
@@ -76,9 +92,32 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
 
         _sharedPreferences = PreferenceManager.getDefaultSharedPreferences(this);
 
+        // Before the probes, so their OPTIONS timings are recorded
+        if (_sharedPreferences.getBoolean(Constants.INTENT_DEBUG_SESSION_TIMELINE, false)) {
+            SessionTimeline.start(new File(getExternalFilesDir(null), PeerConnectionConstant.SESSION_TIMELINE_DIRECTORY),
+                    PeerConnectionConstant.SESSION_TIMELINE_MAX_BYTES, PeerConnectionConstant.SESSION_TIMELINE_MAX_FILES);
+        }
+
+        // Probe the WHIP endpoints while the PeerConnection is being created
+        _endpointSelector = new WhipEndpointSelector(new File(getFilesDir(), PeerConnectionConstant.WHIP_ENDPOINT_HEALTH_FILE), loadEndpoints());
+        _endpointSelector.probe(PeerConnectionConstant.WHIP_ENDPOINT_PROBE_TIMEOUT_MS);
+
+        _startBitrateCache = new StartBitrateCache(new File(getFilesDir(), PeerConnectionConstant.START_BITRATE_CACHE_FILE));
+
         createPeerConnectionClient();
     }
 
+    private List<String> loadEndpoints() {
+        List<String> endpoints = new ArrayList<>();
+        endpoints.add(_sharedPreferences.getString(Constants.INTENT_STREAM_URL, ""));
+        for (String url : _sharedPreferences.getString(Constants.INTENT_STREAM_URL_FALLBACKS, "").split("[|\\s]+")) {
+            if (!url.isEmpty() && !endpoints.contains(url)) {
+                endpoints.add(url);
+            }
+        }
+        return endpoints;
+    }
+
     private PeerConnectionParameters createPeerConnectionParameters() {
         Pair<Integer, Integer> videoSize = PeerConnectionClientUtil.GetVideoSize(_sharedPreferences.getString(Constants.INTENT_VIDEO_RES, "default"));
 
@@ -86,7 +125,7 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
                 // videoCallEnabled
                 true,
                 // tracing
-                false,
+                _sharedPreferences.getBoolean(Constants.INTENT_DEBUG_TRACE_CAPTURE, false),
                 // videoWidth
                 videoSize.first,
                 // videoHeight
@@ -95,16 +134,19 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
                 Integer.parseInt(_sharedPreferences.getString(Constants.INTENT_VIDEO_FRAMERATE, "30")),
                 // videoMaxBitrate
                 Integer.parseInt(_sharedPreferences.getString(Constants.INTENT_VIDEO_BITRATE, "1000000")),
-                // Prefer VideoCodec
-                _sharedPreferences.getString(Constants.INTENT_VIDEO_CODEC, ""),
+                // Prefer VideoCodec (a passthrough file dictates its codec)
+                getPassthroughPath().isEmpty() ? _sharedPreferences.getString(Constants.INTENT_VIDEO_CODEC, "")
+                        : String.valueOf(EncodedFileIndex.probeCodec(new File(getPassthroughPath()))),
                 // maxBFrames
                 Integer.parseInt(_sharedPreferences.getString(Constants.INTENT_VIDEO_BFRAMES, "0")),
                 // videoCodecHwAcceleration
                 true,
-                // videoFlexfecEnabled
-                false,
+                // videoFecMode
+                _sharedPreferences.getString(Constants.INTENT_VIDEO_FEC_MODE, PeerConnectionConstant.VIDEO_FEC_MODE_NONE),
                 // simulcastEnabled
                 _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_SIMULCAST,false),
+                // videoScalabilityMode (VP9/AV1 SVC)
+                _sharedPreferences.getString(Constants.INTENT_VIDEO_SCALABILITY_MODE, ""),
                 // audioStartBitrate
                 Integer.parseInt(_sharedPreferences.getString(Constants.INTENT_AUDIO_BITRATE, "64000")),
                 // PreferAudioCodec
@@ -120,9 +162,33 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
                 // disableWebRtcAGCAndHPF
                 true,
                 // enableRtcEventLog
-                false,
+                _sharedPreferences.getBoolean(Constants.INTENT_DEBUG_RTC_EVENT_LOG, false),
                 // enableCpuOveruseDetection
-                _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_CPU_OVERUSE_DETECTION, false)
+                _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_CPU_OVERUSE_DETECTION, false),
+                // cpuGovernorLadder
+                _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_CPU_GOVERNOR, false) ? _sharedPreferences.getString(Constants.INTENT_VIDEO_CPU_GOVERNOR_LADDER, PeerConnectionConstant.DEFAULT_CPU_GOVERNOR_LADDER) : "",
+                // iceTransportPolicy
+                loadIcePolicy(),
+                // loopback
+                _sharedPreferences.getBoolean(Constants.INTENT_DEBUG_LOOPBACK, false),
+                // qualityReferencePath (PSNR/SSIM of the loopback frames against the source)
+                _sharedPreferences.getBoolean(Constants.INTENT_DEBUG_QUALITY, false) ? getSourcePath() : "",
+                // encodedStreamDump
+                _sharedPreferences.getBoolean(Constants.INTENT_DEBUG_ENCODED_STREAM, false),
+                // passthroughPath (pre-encoded file published without encoding)
+                getPassthroughPath(),
+                // videoSharedEncoder (encode once for every session of the process)
+                _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_SHARED_ENCODER, false),
+                // memoryWatchdog (frame buffer leaks and heap sampling)
+                _sharedPreferences.getBoolean(Constants.INTENT_DEBUG_MEMORY_WATCHDOG, false),
+                // thermalGovernorLadder
+                _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_THERMAL_GOVERNOR, false) ? _sharedPreferences.getString(Constants.INTENT_VIDEO_THERMAL_GOVERNOR_LADDER, PeerConnectionConstant.DEFAULT_THERMAL_GOVERNOR_LADDER) : "",
+                // keyFrameMinIntervalMs
+                _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_KEYFRAME_CONTROL, false) ? Integer.parseInt(_sharedPreferences.getString(Constants.INTENT_VIDEO_KEYFRAME_MIN_INTERVAL, "1000")) : 0,
+                // keyFrameGopMs (0 leaves the GOP to the encoder)
+                _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_KEYFRAME_CONTROL, false) ? Integer.parseInt(_sharedPreferences.getString(Constants.INTENT_VIDEO_KEYFRAME_GOP, "0")) : 0,
+                // videoAbsCaptureTime (capture time of every frame for the ingest server)
+                _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_ABS_CAPTURE_TIME, false)
         );
     }
 
@@ -132,23 +198,65 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
         // Read TURN server information stored in Preference
         if (_sharedPreferences != null && _sharedPreferences.contains(Constants.INTENT_TURN_URLS)) {
             String turnUrls = _sharedPreferences.getString(Constants.INTENT_TURN_URLS, "");
+            turnServers.addAll(WhipLinkParser.parseIceServers(Arrays.asList(turnUrls.split("\\|"))));
+        }
 
-            List<String> turns = Arrays.asList(turnUrls.split("\\|"));
-
-            for (String turn : turns) {
-                if (turn.isEmpty()) continue;
+        return turnServers;
+    }
 
-                String[] tokens = turn.split("; ");
-                Log.d(getClass().getName(), turn);
-                String url = tokens[0].replace("<", "").replace(">", "");
-                String username = tokens[2].split("=")[1].replaceAll("\"", "");
-                String credential = tokens[3].split("=")[1].replaceAll("\"", "");
-                PeerConnection.IceServer.Builder bulder2 = PeerConnection.IceServer.builder(url);
-                turnServers.add(bulder2.setUsername(username).setPassword(credential).setTlsCertPolicy(PeerConnection.TlsCertPolicy.TLS_CERT_POLICY_SECURE).createIceServer());
+    /**
+     * Returns the ICE policy for the stream URL's host. Overrides are "host=policy" entries
+     * separated by commas; hosts without one use the default policy.
+     */
+    private String loadIcePolicy() {
+        String policy = _sharedPreferences.getString(Constants.INTENT_ICE_POLICY, PeerConnectionConstant.ICE_POLICY_RACE);
+        String host;
+        try {
+            host = new URL(_endpoint != null ? _endpoint : _sharedPreferences.getString(Constants.INTENT_STREAM_URL, "")).getHost();
+        } catch (MalformedURLException e) {
+            return policy;
+        }
+        for (String entry : _sharedPreferences.getString(Constants.INTENT_ICE_POLICY_OVERRIDES, "").split(",")) {
+            String[] tokens = entry.trim().split("=");
+            if (tokens.length == 2 && tokens[0].trim().equalsIgnoreCase(host)) {
+                return tokens[1].trim();
             }
         }
+        return policy;
+    }
 
-        return turnServers;
+    private String getSourcePath() {
+        return Environment.getExternalStoragePublicDirectory(DIRECTORY_MOVIES) + "/" + _sharedPreferences.getString(Constants.INTENT_CAPTURER_SOURCE, "test2.y4m");
+    }
+
+    /**
+     * Returns the pre-encoded (Annex-B/IVF) file to publish, or "" to capture the source file.
+     */
+    private String getPassthroughPath() {
+        String name = _sharedPreferences.getString(Constants.INTENT_PASSTHROUGH_SOURCE, "").trim();
+        return name.isEmpty() ? "" : Environment.getExternalStoragePublicDirectory(DIRECTORY_MOVIES) + "/" + name;
+    }
+
+    /**
+     * Plays the pre-scaled variants of `source` when they are cached. Otherwise the variants are
+     * converted in the background for the next session and the file is played as it is.
+     */
+    private VideoCapturer createFileCapturer(File source) throws IOException {
+        if (_sharedPreferences.getBoolean(Constants.INTENT_SOURCE_PYRAMID, false)) {
+            Pair<Integer, Integer> videoSize = PeerConnectionClientUtil.GetVideoSize(_sharedPreferences.getString(Constants.INTENT_VIDEO_RES, "default"));
+            try {
+                SourcePyramid pyramid = new SourcePyramid(new File(getExternalFilesDir(null), PeerConnectionConstant.SOURCE_PYRAMID_DIRECTORY), source);
+                int[][] sizes = pyramid.getLayerSizes(videoSize.first, videoSize.second,
+                        _sharedPreferences.getBoolean(Constants.INTENT_VIDEO_SIMULCAST, false));
+                if (pyramid.isComplete(sizes)) {
+                    return pyramid.createCapturer(sizes);
+                }
+                pyramid.convertAsync(sizes);
+            } catch (IOException e) {
+                Log.e(getClass().getName(), "Source pyramid unavailable: " + e.getMessage());
+            }
+        }
+        return new FileVideoCapturer(source.getPath());
     }
 
     private void createPeerConnectionClient() {
@@ -156,7 +264,8 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
 
         // Media Source
         try {
-            String sourceUrl = Environment.getExternalStoragePublicDirectory(DIRECTORY_MOVIES) + "/" + _sharedPreferences.getString(Constants.INTENT_CAPTURER_SOURCE, "test2.y4m");
+            String passthroughPath = getPassthroughPath();
+            String sourceUrl = passthroughPath.isEmpty() ? getSourcePath() : passthroughPath;
 
             // File Check
             File file = new File(sourceUrl);
@@ -176,7 +285,15 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
                 return;
             }
 
-            _videoCapturer = new FileVideoCapturer(sourceUrl);
+            if (passthroughPath.isEmpty()) {
+                _videoCapturer = createFileCapturer(file);
+            } else if (EncodedFileIndex.probeCodec(file) == null) {
+                Log.e(getClass().getName(), "Unsupported passthrough file " + passthroughPath);
+                return;
+            } else {
+                // The PeerConnectionClient paces the passthrough encoder with its own capturer.
+                _videoCapturer = null;
+            }
         } catch (IOException e) {
             Log.e(getClass().getName(), "Failed to open video file for emulated camera " + e.getMessage());
             return;
@@ -195,11 +312,30 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
         // Read TURN server information stored in Preference
         _turnServers = loadTurnServer();
 
+        // libwebrtc logs to logcat only when enabled in the debug settings
+        AsyncLog.setLevel(PeerConnectionConstant.NATIVE_LOG_COMPONENT,
+                _sharedPreferences.getBoolean(Constants.INTENT_DEBUG_NATIVE_LOG, false) ? AsyncLog.Level.INFO : AsyncLog.Level.WARN);
+        AsyncLog.setOutputLevel(
+                _sharedPreferences.getBoolean(Constants.INTENT_DEBUG_LOG_OUTPUT, true) ? AsyncLog.Level.DEBUG : AsyncLog.Level.INFO);
+
         // Create PeerConnection
         PeerConnectionParameters peerConnectionParameters = createPeerConnectionParameters();
         peerConnectionClient = new PeerConnectionClient(getApplicationContext(), eglBase, peerConnectionParameters, BroadcastActivity.this);
         peerConnectionClient.createPeerConnection(localProxyVideoSink, _videoCapturer, _turnServers);
-        peerConnectionClient.createOffer();
+
+        // The OPTIONS preflight runs while the factory and tracks are created; its ICE servers
+        // replace the stored ones before the offer.
+        final PeerConnectionClient client = peerConnectionClient;
+        executor.execute(() -> {
+            List<String> endpoints = _endpointSelector.getRanked(PeerConnectionConstant.WHIP_ENDPOINT_PROBE_WAIT_MS);
+            List<String> links = _endpointSelector.getLinks(endpoints.get(0));
+            List<PeerConnection.IceServer> iceServers = WhipLinkParser.parseIceServers(links);
+            if (!iceServers.isEmpty()) {
+                client.setIceServers(iceServers);
+            }
+            client.createOffer();
+        });
+        peerConnectionClient.enableStatsEvents(true, PeerConnectionConstant.STATS_INTERVAL_MS);
     }
 
     private static class ProxyVideoSink implements VideoSink {
@@ -221,6 +357,15 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
 
     private void releasePeerConnectionClient() {
         if (peerConnectionClient != null) {
+            // Remember what the link sustained, so the next session on it starts there. The
+            // cache file is written on the WHIP executor.
+            final String startBitrateKey = _startBitrateKey;
+            if (startBitrateKey != null) {
+                final int sustainedKbps = (int) (peerConnectionClient.getSustainedBandwidthBps() / PeerConnectionConstant.BPS_IN_KBPS);
+                final StartBitrateCache startBitrateCache = _startBitrateCache;
+                executor.execute(() -> startBitrateCache.report(startBitrateKey, sustainedKbps));
+                _startBitrateKey = null;
+            }
             peerConnectionClient.stopVideoSource();
             peerConnectionClient.close();
             peerConnectionClient = null;
@@ -231,9 +376,14 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
     protected void onStop() {
         releasePeerConnectionClient();
 
-        if (whipClient != null) {
-            whipClient.Delete();
-        }
+        // Queued behind a publish still in flight, so the session it creates is deleted too
+        executor.execute(() -> {
+            if (whipClient != null) {
+                whipClient.Delete();
+            }
+            // After the DELETE, so its timing is on the timeline.
+            SessionTimeline.stop();
+        });
         super.onStop();
     }
 
@@ -251,24 +401,84 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
      **********************************************************************************************/
     @Override
     public void onLocalDescription(SessionDescription sdp) {
-        // Received TURN server information from WHIP
-        whipClient = new WHIPClient();
-        whipClient.setURL(_sharedPreferences.getString(Constants.INTENT_STREAM_URL, ""));
-        whipClient.setLocalSDP(sdp.description);
-        if (!whipClient.Create()) {
+        if (_sharedPreferences.getBoolean(Constants.INTENT_DEBUG_LOOPBACK, false)) {
+            // An in-process receiver stands in for the WHIP server
+            peerConnectionClient.startLoopback(sdp);
+            return;
+        }
+
+        // The POSTs block, so they run on the WHIP executor and the answer is posted back
+        final PeerConnectionClient client = peerConnectionClient;
+        executor.execute(() -> publishOffer(client, sdp));
+    }
+
+    private void publishOffer(PeerConnectionClient pcClient, SessionDescription sdp) {
+        // Publish to the best endpoint, falling over to the next one on POST errors
+        whipClient = null;
+        for (String endpoint : _endpointSelector.getRanked(PeerConnectionConstant.WHIP_ENDPOINT_PROBE_WAIT_MS)) {
+            WHIPClient client = publish(endpoint, sdp.description);
+            if (client != null) {
+                _endpointSelector.reportSuccess(endpoint);
+                _endpoint = endpoint;
+                whipClient = client;
+                break;
+            }
+            _endpointSelector.reportFailure(endpoint);
+        }
+        if (whipClient == null) {
             return;
         }
 
-        //Store TURN server in Preference
-        String join = String.join("|", whipClient.GetLink());
+        // Store the TURN servers of the node that accepted the POST for the next session. This
+        // session keeps the preflight's: new servers would only apply after an ICE restart.
+        List<String> links = whipClient.GetLink();
+        String join = String.join("|", links);
         if (_sharedPreferences != null) {
             SharedPreferences.Editor editor = _sharedPreferences.edit();
             editor.putString("turn_urls", join);
             editor.commit();
         }
 
+        // Start from the estimate of previous sessions on this host and network
+        _startBitrateKey = StartBitrateCache.getKey(this, _endpoint);
+        if (_startBitrateKey != null) {
+            int startBitrateKbps = _startBitrateCache.getStartBitrateKbps(_startBitrateKey);
+            if (startBitrateKbps > 0) {
+                Log.i(getClass().getName(), "Start bitrate for " + _startBitrateKey + ": " + startBitrateKbps + "kbps");
+                pcClient.setStartBitrate(startBitrateKbps);
+            }
+        }
+
         SessionDescription remoteSdp = new SessionDescription(SessionDescription.Type.ANSWER, whipClient.getRemoteSDP());
-        peerConnectionClient.setRemoteDescription(remoteSdp);
+        pcClient.setRemoteDescription(remoteSdp);
+    }
+
+    // POSTs the offer to the node the endpoint last redirected to, then to the endpoint itself.
+    // Returns the client of the accepted session, or null.
+    private WHIPClient publish(String endpoint, String localSdp) {
+        String redirect = _endpointSelector.getRedirect(endpoint);
+        if (redirect != null) {
+            WHIPClient client = new WHIPClient();
+            client.setURL(redirect);
+            client.setLocalSDP(localSdp);
+            if (client.Create()) {
+                // Refreshes the redirect, or follows it if the node moved the session on
+                _endpointSelector.reportRedirect(endpoint, client.GetURL());
+                return client;
+            }
+            // The node may be gone; let the endpoint pick another one
+            Log.w(getClass().getName(), "Redirect target failed: " + redirect);
+            _endpointSelector.reportRedirect(endpoint, null);
+        }
+
+        WHIPClient client = new WHIPClient();
+        client.setURL(endpoint);
+        client.setLocalSDP(localSdp);
+        if (!client.Create()) {
+            return null;
+        }
+        _endpointSelector.reportRedirect(endpoint, client.GetURL());
+        return client;
     }
 
     @Override
@@ -294,6 +504,9 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
     @Override
     public void onConnected() {
         Log.d(getClass().getName(), "onConnected");
+
+        // The session is up, so the next media failure may fail over through all endpoints again
+        runOnUiThread(() -> getIntent().removeExtra(EXTRA_FAILOVER_COUNT));
     }
 
     @Override
@@ -315,5 +528,16 @@ public class BroadcastActivity extends AppCompatActivity implements PeerConnecti
     public void onPeerConnectionError(String description) {
         Log.d(getClass().getName(), "onPeerConnectionError");
 
+        // Media failed after publishing. Mark the endpoint as failed and restart the session, which
+        // then ranks the next endpoint first.
+        if (whipClient != null && _endpoint != null) {
+            int failovers = getIntent().getIntExtra(EXTRA_FAILOVER_COUNT, 0);
+            if (failovers + 1 < loadEndpoints().size()) {
+                _endpointSelector.reportFailure(_endpoint);
+                getIntent().putExtra(EXTRA_FAILOVER_COUNT, failovers + 1);
+                runOnUiThread(this::recreate);
+            }
+        }
+
     }
 }
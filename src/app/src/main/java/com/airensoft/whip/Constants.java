@@ -3,15 +3,40 @@ package com.airensoft.whip;
 class Constants {
 
     public static final String INTENT_STREAM_URL = "stream_url";
+    public static final String INTENT_STREAM_URL_FALLBACKS = "stream_url_fallbacks";
     public static final String INTENT_CAPTURER_SOURCE = "capturer_source";
+    public static final String INTENT_PASSTHROUGH_SOURCE = "passthrough_source";
+    public static final String INTENT_SOURCE_PYRAMID = "source_pyramid";
     public static final String INTENT_VIDEO_CODEC = "video_codec";
     public static final String INTENT_VIDEO_BITRATE = "video_bitrate";
     public static final String INTENT_VIDEO_BFRAMES = "video_bframes";
     public static final String INTENT_VIDEO_FRAMERATE = "video_framerate";
     public static final String INTENT_VIDEO_CPU_OVERUSE_DETECTION = "video_cpu_overuse_detect";
+    public static final String INTENT_VIDEO_CPU_GOVERNOR = "video_cpu_governor";
+    public static final String INTENT_VIDEO_CPU_GOVERNOR_LADDER = "video_cpu_governor_ladder";
+    public static final String INTENT_VIDEO_THERMAL_GOVERNOR = "video_thermal_governor";
+    public static final String INTENT_VIDEO_THERMAL_GOVERNOR_LADDER = "video_thermal_governor_ladder";
+    public static final String INTENT_VIDEO_KEYFRAME_CONTROL = "video_keyframe_control";
+    public static final String INTENT_VIDEO_KEYFRAME_MIN_INTERVAL = "video_keyframe_min_interval";
+    public static final String INTENT_VIDEO_KEYFRAME_GOP = "video_keyframe_gop";
+    public static final String INTENT_VIDEO_ABS_CAPTURE_TIME = "video_abs_capture_time";
     public static final String INTENT_VIDEO_SIMULCAST = "video_simulcast";
+    public static final String INTENT_VIDEO_SHARED_ENCODER = "video_shared_encoder";
+    public static final String INTENT_VIDEO_SCALABILITY_MODE = "video_scalability_mode";
+    public static final String INTENT_VIDEO_FEC_MODE = "video_fec_mode";
     public static final String INTENT_VIDEO_RES = "video_res";
     public static final String INTENT_AUDIO_CODEC = "audio_codec";
     public static final String INTENT_AUDIO_BITRATE = "audio_bitrate";
     public static final String INTENT_TURN_URLS = "turn_urls";
+    public static final String INTENT_ICE_POLICY = "ice_policy";
+    public static final String INTENT_ICE_POLICY_OVERRIDES = "ice_policy_overrides";
+    public static final String INTENT_DEBUG_RTC_EVENT_LOG = "debug_rtc_event_log";
+    public static final String INTENT_DEBUG_TRACE_CAPTURE = "debug_trace_capture";
+    public static final String INTENT_DEBUG_NATIVE_LOG = "debug_native_log";
+    public static final String INTENT_DEBUG_LOG_OUTPUT = "debug_log_output";
+    public static final String INTENT_DEBUG_LOOPBACK = "debug_loopback";
+    public static final String INTENT_DEBUG_QUALITY = "debug_quality";
+    public static final String INTENT_DEBUG_ENCODED_STREAM = "debug_encoded_stream";
+    public static final String INTENT_DEBUG_SESSION_TIMELINE = "debug_session_timeline";
+    public static final String INTENT_DEBUG_MEMORY_WATCHDOG = "debug_memory_watchdog";
 }
@@ -0,0 +1,107 @@
+package com.airensoft.whip;
+
+import android.os.SystemClock;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Samples the process CPU load from /proc/self/stat and the busiest core from /proc/stat.
+ * Loads are fractions in [0, 1]; the process load is normalized by the number of cores.
+ */
+class CpuLoadSampler {
+    private final int cores = Runtime.getRuntime().availableProcessors();
+    private final long clockTicksPerSecond = Os.sysconf(OsConstants._SC_CLK_TCK);
+    private long lastProcessTicks = -1;
+    private long lastSampleMs;
+    private long[] lastCoreTotal;
+    private long[] lastCoreIdle;
+    // /proc/stat is not readable for apps on most devices since Android 8.
+    private boolean coreStatReadable = true;
+
+    private double processLoad;
+    private double maxCoreLoad = -1;
+
+    public void sample() {
+        final long nowMs = SystemClock.elapsedRealtime();
+        final long processTicks = readProcessTicks();
+        if (processTicks >= 0 && lastProcessTicks >= 0 && nowMs > lastSampleMs) {
+            double cpuSeconds = (double) (processTicks - lastProcessTicks) / clockTicksPerSecond;
+            processLoad = Math.min(1.0, cpuSeconds / ((nowMs - lastSampleMs) / 1000.0) / cores);
+        }
+        lastProcessTicks = processTicks;
+        lastSampleMs = nowMs;
+
+        if (coreStatReadable) {
+            sampleCores();
+        }
+    }
+
+    public double getProcessLoad() {
+        return processLoad;
+    }
+
+    /**
+     * Returns the load of the busiest core, or -1 if per-core statistics are not available.
+     */
+    public double getMaxCoreLoad() {
+        return maxCoreLoad;
+    }
+
+    private long readProcessTicks() {
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/self/stat"))) {
+            String line = reader.readLine();
+            if (line == null) {
+                return -1;
+            }
+            // Fields after the command name: state is field 3, utime 14 and stime 15.
+            String[] fields = line.substring(line.lastIndexOf(')') + 2).split(" ");
+            return Long.parseLong(fields[11]) + Long.parseLong(fields[12]);
+        } catch (IOException | RuntimeException e) {
+            return -1;
+        }
+    }
+
+    private void sampleCores() {
+        final long[] total = new long[cores];
+        final long[] idle = new long[cores];
+        try (BufferedReader reader = new BufferedReader(new FileReader("/proc/stat"))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.startsWith("cpu") || line.startsWith("cpu ")) {
+                    continue;
+                }
+                String[] fields = line.trim().split("\\s+");
+                int core = Integer.parseInt(fields[0].substring(3));
+                if (core >= cores) {
+                    continue;
+                }
+                for (int i = 1; i < fields.length; i++) {
+                    total[core] += Long.parseLong(fields[i]);
+                }
+                // idle + iowait
+                idle[core] = Long.parseLong(fields[4]) + Long.parseLong(fields[5]);
+            }
+        } catch (IOException | RuntimeException e) {
+            coreStatReadable = false;
+            maxCoreLoad = -1;
+            return;
+        }
+
+        if (lastCoreTotal != null) {
+            double max = 0;
+            for (int i = 0; i < cores; i++) {
+                long totalDelta = total[i] - lastCoreTotal[i];
+                if (totalDelta > 0) {
+                    max = Math.max(max, 1.0 - (double) (idle[i] - lastCoreIdle[i]) / totalDelta);
+                }
+            }
+            maxCoreLoad = max;
+        }
+        lastCoreTotal = total;
+        lastCoreIdle = idle;
+    }
+}
@@ -0,0 +1,165 @@
+package com.airensoft.whip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Steps the encode workload down a configurable ladder while the CPU is overused and back up with
+ * hysteresis once it recovers. It only decides the level; the caller applies it to the sender.
+ */
+class EncodeGovernor {
+    public enum Step {
+        FRAMERATE, RESOLUTION, LAYERS, COMPLEXITY;
+
+        /**
+         * Parses a comma separated ladder such as "fps,resolution,layers,layers,complexity".
+         * Each "layers" entry drops one more simulcast layer.
+         */
+        public static List<Step> parseLadder(String ladder) {
+            List<Step> steps = new ArrayList<>();
+            if (ladder == null) {
+                return steps;
+            }
+            for (String token : ladder.split(",")) {
+                switch (token.trim().toLowerCase(Locale.US)) {
+                    case "fps":
+                    case "framerate":
+                        steps.add(FRAMERATE);
+                        break;
+                    case "res":
+                    case "resolution":
+                        steps.add(RESOLUTION);
+                        break;
+                    case "layers":
+                        steps.add(LAYERS);
+                        break;
+                    case "complexity":
+                        steps.add(COMPLEXITY);
+                        break;
+                    default:
+                        break;
+                }
+            }
+            return steps;
+        }
+    }
+
+    /**
+     * One observation. Loads are fractions in [0, 1]; a negative load means "not available".
+     */
+    public static class Sample {
+        public final long timestampMs;
+        public final double processLoad;
+        public final double maxCoreLoad;
+        // Time spent encoding per second of wall time on the busiest layer.
+        public final double encodeLoad;
+        public final String qualityLimitationReason;
+
+        public Sample(long timestampMs, double processLoad, double maxCoreLoad, double encodeLoad, String qualityLimitationReason) {
+            this.timestampMs = timestampMs;
+            this.processLoad = processLoad;
+            this.maxCoreLoad = maxCoreLoad;
+            this.encodeLoad = encodeLoad;
+            this.qualityLimitationReason = qualityLimitationReason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "process=%.2f core=%.2f encode=%.2f limitation=%s",
+                    processLoad, maxCoreLoad, encodeLoad, qualityLimitationReason);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on every level change. `step` is the ladder step that was entered (down) or
+         * left (up).
+         */
+        void onLevelChanged(int oldLevel, int newLevel, Step step, Sample sample);
+    }
+
+    public static final double OVERUSE_PROCESS_LOAD = 0.85;
+    public static final double UNDERUSE_PROCESS_LOAD = 0.55;
+    public static final double OVERUSE_CORE_LOAD = 0.95;
+    public static final double UNDERUSE_CORE_LOAD = 0.70;
+    public static final double OVERUSE_ENCODE_LOAD = 0.80;
+    public static final double UNDERUSE_ENCODE_LOAD = 0.40;
+    // Stepping down reacts within two samples, stepping up needs a sustained recovery.
+    public static final int OVERUSE_SAMPLES = 2;
+    public static final int UNDERUSE_SAMPLES = 6;
+    public static final long HOLD_AFTER_CHANGE_MS = 4000;
+
+    private final List<Step> ladder;
+    private final Listener listener;
+    private int level;
+    private int overuseCount;
+    private int underuseCount;
+    private long lastChangeMs = Long.MIN_VALUE / 2;
+
+    EncodeGovernor(List<Step> ladder, Listener listener) {
+        this.ladder = new ArrayList<>(ladder);
+        this.listener = listener;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the ladder steps currently applied, in ladder order.
+     */
+    public List<Step> getActiveSteps() {
+        return Collections.unmodifiableList(ladder.subList(0, level));
+    }
+
+    /**
+     * Feeds a sample and returns the (possibly changed) level.
+     */
+    public int update(Sample sample) {
+        if (isOverused(sample)) {
+            overuseCount++;
+            underuseCount = 0;
+        } else if (isUnderused(sample)) {
+            underuseCount++;
+            overuseCount = 0;
+        } else {
+            overuseCount = 0;
+            underuseCount = 0;
+        }
+
+        if (sample.timestampMs - lastChangeMs < HOLD_AFTER_CHANGE_MS) {
+            return level;
+        }
+        if (overuseCount >= OVERUSE_SAMPLES && level < ladder.size()) {
+            changeLevel(level + 1, ladder.get(level), sample);
+        } else if (underuseCount >= UNDERUSE_SAMPLES && level > 0) {
+            changeLevel(level - 1, ladder.get(level - 1), sample);
+        }
+        return level;
+    }
+
+    private void changeLevel(int newLevel, Step step, Sample sample) {
+        int oldLevel = level;
+        level = newLevel;
+        overuseCount = 0;
+        underuseCount = 0;
+        lastChangeMs = sample.timestampMs;
+        listener.onLevelChanged(oldLevel, newLevel, step, sample);
+    }
+
+    private static boolean isOverused(Sample sample) {
+        return "cpu".equals(sample.qualityLimitationReason)
+                || sample.processLoad > OVERUSE_PROCESS_LOAD
+                || sample.maxCoreLoad > OVERUSE_CORE_LOAD
+                || sample.encodeLoad > OVERUSE_ENCODE_LOAD;
+    }
+
+    private static boolean isUnderused(Sample sample) {
+        return !"cpu".equals(sample.qualityLimitationReason)
+                && sample.processLoad < UNDERUSE_PROCESS_LOAD
+                && sample.maxCoreLoad < UNDERUSE_CORE_LOAD
+                && sample.encodeLoad < UNDERUSE_ENCODE_LOAD;
+    }
+}
@@ -0,0 +1,376 @@
+package com.airensoft.whip;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Frame index of a memory-mapped pre-encoded video file: Annex-B H264/H265 (one access unit per
+ * frame) or IVF VP8/VP9/AV1. Frames are handed out as slices of the mapping, so nothing is read
+ * or copied until the frame is sent.
+ *
+ * An index is built once per file and shared; it is immutable after open().
+ */
+class EncodedFileIndex {
+    private static final String TAG = "EncodedFileIndex";
+    private static final int IVF_FRAME_HEADER_LENGTH = 12;
+    private static final Map<String, EncodedFileIndex> cache = new HashMap<>();
+
+    private final String codec;
+    private final MappedByteBuffer data;
+    private int width;
+    private int height;
+    private int frameCount;
+    private int[] offsets = new int[1024];
+    private int[] lengths = new int[1024];
+    private long[] timestampsUs = new long[1024];
+    private boolean[] keyFrames = new boolean[1024];
+    private int[] keyFrameIndices;
+    // profile_idc, constraint flags and level_idc of the first H264 SPS, as in the SDP.
+    @Nullable
+    private String h264ProfileLevelId;
+
+    /**
+     * Returns the index of `file`, building it on first use. Annex-B files carry no timing, so
+     * their frames are spaced `annexBFps` apart.
+     */
+    public static EncodedFileIndex open(File file, int annexBFps) throws IOException {
+        final String key = file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified() + ":" + annexBFps;
+        synchronized (cache) {
+            EncodedFileIndex index = cache.get(key);
+            if (index == null) {
+                index = new EncodedFileIndex(file, annexBFps);
+                cache.put(key, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Returns the codec of `file` from its extension (or IVF fourcc), or null if it is not a
+     * supported pre-encoded file.
+     */
+    @Nullable
+    public static String probeCodec(File file) {
+        final String name = file.getName().toLowerCase(Locale.US);
+        if (name.endsWith(".h264") || name.endsWith(".264")) {
+            return PeerConnectionConstant.VIDEO_CODEC_H264;
+        }
+        if (name.endsWith(".h265") || name.endsWith(".265") || name.endsWith(".hevc")) {
+            return PeerConnectionConstant.VIDEO_CODEC_H265;
+        }
+        if (name.endsWith(".ivf")) {
+            try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+                byte[] header = new byte[12];
+                input.readFully(header);
+                return getIvfCodec(new String(header, 8, 4, "US-ASCII"));
+            } catch (IOException e) {
+                AsyncLog.w(TAG, "Failed to read %s: %s", file, e);
+            }
+        }
+        return null;
+    }
+
+    private EncodedFileIndex(File file, int annexBFps) throws IOException {
+        final long startMs = System.currentTimeMillis();
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            if (input.length() > Integer.MAX_VALUE) {
+                throw new IOException("Too large to map: " + file);
+            }
+            data = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        }
+        final String probed = probeCodec(file);
+        if (probed == null) {
+            throw new IOException("Unsupported pre-encoded file: " + file);
+        }
+        codec = probed;
+        if (file.getName().toLowerCase(Locale.US).endsWith(".ivf")) {
+            indexIvf();
+        } else {
+            indexAnnexB(codec.equals(PeerConnectionConstant.VIDEO_CODEC_H265), Math.max(1, annexBFps));
+        }
+        if (frameCount == 0) {
+            throw new IOException("No frames in " + file);
+        }
+
+        int keyCount = 0;
+        keyFrameIndices = new int[frameCount];
+        for (int i = 0; i < frameCount; i++) {
+            if (keyFrames[i]) {
+                keyFrameIndices[keyCount++] = i;
+            }
+        }
+        if (keyCount == 0) {
+            throw new IOException("No key frame in " + file);
+        }
+        keyFrameIndices = Arrays.copyOf(keyFrameIndices, keyCount);
+        AsyncLog.i(TAG, "Indexed %s: %s %dx%d, %d frames, %d key frames in %d ms", file, codec, width, height,
+                frameCount, keyCount, System.currentTimeMillis() - startMs);
+    }
+
+    public String getCodec() {
+        return codec;
+    }
+
+    /**
+     * Frame size from the IVF header; 0 for Annex-B files, whose size is not parsed.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Returns the H264 profile-level-id of the first SPS, e.g. "640028", or null if there is none.
+     */
+    @Nullable
+    public String getH264ProfileLevelId() {
+        return h264ProfileLevelId;
+    }
+
+    public boolean isKeyFrame(int index) {
+        return keyFrames[index];
+    }
+
+    /**
+     * Returns frame `index` as a read-only slice of the mapping.
+     */
+    public ByteBuffer getFrame(int index) {
+        ByteBuffer frame = data.duplicate();
+        frame.limit(offsets[index] + lengths[index]);
+        frame.position(offsets[index]);
+        return frame.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns how long frame `index` is shown, i.e. the time to the next frame.
+     */
+    public long getDurationUs(int index) {
+        if (index + 1 < frameCount) {
+            return Math.max(0, timestampsUs[index + 1] - timestampsUs[index]);
+        }
+        // The last frame gets the average duration before the file loops.
+        return frameCount > 1 ? (timestampsUs[frameCount - 1] - timestampsUs[0]) / (frameCount - 1) : 0;
+    }
+
+    /**
+     * Returns the key frame closest to `index`, preferring the later one on a tie.
+     */
+    public int getNearestKeyFrame(int index) {
+        int position = Arrays.binarySearch(keyFrameIndices, index);
+        if (position >= 0) {
+            return index;
+        }
+        position = -position - 1;
+        if (position == 0) {
+            return keyFrameIndices[0];
+        }
+        if (position == keyFrameIndices.length) {
+            // Past the last key frame; the next one is the first after looping.
+            final int before = keyFrameIndices[position - 1];
+            return frameCount - index + keyFrameIndices[0] <= index - before ? keyFrameIndices[0] : before;
+        }
+        final int before = keyFrameIndices[position - 1];
+        final int after = keyFrameIndices[position];
+        return after - index <= index - before ? after : before;
+    }
+
+    private void addFrame(int offset, int length, long timestampUs, boolean keyFrame) {
+        if (frameCount == offsets.length) {
+            final int capacity = frameCount * 2;
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            timestampsUs = Arrays.copyOf(timestampsUs, capacity);
+            keyFrames = Arrays.copyOf(keyFrames, capacity);
+        }
+        offsets[frameCount] = offset;
+        lengths[frameCount] = length;
+        timestampsUs[frameCount] = timestampUs;
+        keyFrames[frameCount] = keyFrame;
+        frameCount++;
+    }
+
+    /**
+     * Groups NAL units into access units: a new one starts at an AUD, parameter set or prefix
+     * SEI, or at the first slice of a picture, once the current one holds a slice.
+     */
+    private void indexAnnexB(boolean h265, int fps) {
+        final int size = data.limit();
+        int auBegin = -1;
+        boolean auHasSlice = false;
+        boolean auKey = false;
+        int startCode = findStartCode(0);
+        while (startCode >= 0) {
+            final int nalBegin = startCode > 0 && data.get(startCode - 1) == 0 ? startCode - 1 : startCode;
+            final int header = startCode + 3;
+            final int next = findStartCode(header);
+            if (header + 2 >= size) {
+                break;
+            }
+            final int b0 = data.get(header) & 0xFF;
+            final int type;
+            final boolean slice;
+            final boolean firstSlice;
+            final boolean key;
+            final boolean auDelimiter;
+            if (h265) {
+                type = (b0 >> 1) & 0x3F;
+                slice = type < 32;
+                firstSlice = slice && (data.get(header + 2) & 0x80) != 0;
+                key = type >= 16 && type <= 23;
+                auDelimiter = (type >= 32 && type <= 35) || type == 39;
+            } else {
+                type = b0 & 0x1F;
+                slice = type >= 1 && type <= 5;
+                firstSlice = slice && (data.get(header + 1) & 0x80) != 0;
+                key = type == 5;
+                auDelimiter = type >= 6 && type <= 9;
+                if (type == 7 && h264ProfileLevelId == null && header + 3 < size) {
+                    // profile_idc and level_idc are never 0, so no emulation prevention byte can
+                    // sit among the first three bytes.
+                    h264ProfileLevelId = String.format(Locale.US, "%02x%02x%02x",
+                            data.get(header + 1) & 0xFF, data.get(header + 2) & 0xFF, data.get(header + 3) & 0xFF);
+                }
+            }
+            if ((auDelimiter || firstSlice) && auHasSlice) {
+                addFrame(auBegin, nalBegin - auBegin, frameCount * 1_000_000L / fps, auKey);
+                auBegin = -1;
+                auHasSlice = false;
+                auKey = false;
+            }
+            if (auBegin < 0) {
+                auBegin = nalBegin;
+            }
+            auHasSlice |= slice;
+            auKey |= key;
+            startCode = next;
+        }
+        if (auBegin >= 0 && auHasSlice) {
+            addFrame(auBegin, size - auBegin, frameCount * 1_000_000L / fps, auKey);
+        }
+    }
+
+    private int findStartCode(int from) {
+        final int end = data.limit() - 2;
+        for (int i = from; i < end; i++) {
+            if ((data.get(i + 2) & 0xFF) > 1) {
+                // Neither 0 nor 1, so no start code can end at i + 2.
+                i += 2;
+            } else if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void indexIvf() throws IOException {
+        ByteBuffer ivf = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (ivf.limit() < 32 || ivf.get(0) != 'D' || ivf.get(1) != 'K' || ivf.get(2) != 'I' || ivf.get(3) != 'F') {
+            throw new IOException("Not an IVF file");
+        }
+        final int headerLength = ivf.getShort(6) & 0xFFFF;
+        width = ivf.getShort(12) & 0xFFFF;
+        height = ivf.getShort(14) & 0xFFFF;
+        final long denominator = ivf.getInt(16) & 0xFFFFFFFFL;
+        final long numerator = ivf.getInt(20) & 0xFFFFFFFFL;
+        if (denominator == 0) {
+            throw new IOException("Invalid IVF timebase");
+        }
+
+        int offset = headerLength;
+        while (offset + IVF_FRAME_HEADER_LENGTH <= ivf.limit()) {
+            final int length = ivf.getInt(offset);
+            final long pts = ivf.getLong(offset + 4);
+            final int frameOffset = offset + IVF_FRAME_HEADER_LENGTH;
+            if (length <= 0 || frameOffset + length > ivf.limit()) {
+                break;
+            }
+            addFrame(frameOffset, length, pts * numerator * 1_000_000L / denominator, isIvfKeyFrame(frameOffset, length));
+            offset = frameOffset + length;
+        }
+    }
+
+    private boolean isIvfKeyFrame(int offset, int length) {
+        final int b0 = data.get(offset) & 0xFF;
+        switch (codec) {
+            case PeerConnectionConstant.VIDEO_CODEC_VP8:
+                // frame_type is the lowest bit of the frame tag; 0 is a key frame.
+                return (b0 & 1) == 0;
+            case PeerConnectionConstant.VIDEO_CODEC_VP9: {
+                // frame_marker(2) profile_low_bit profile_high_bit [reserved_zero] show_existing_frame frame_type
+                final int profile = ((b0 >> 5) & 1) | (((b0 >> 4) & 1) << 1);
+                int bit = profile == 3 ? 2 : 3;
+                if (((b0 >> bit) & 1) != 0) {
+                    return false;
+                }
+                bit--;
+                return ((b0 >> bit) & 1) == 0;
+            }
+            case PeerConnectionConstant.VIDEO_CODEC_AV1:
+                // Encoders emit the sequence header with every key frame.
+                return hasAv1SequenceHeader(offset, length);
+            default:
+                return false;
+        }
+    }
+
+    private boolean hasAv1SequenceHeader(int offset, int length) {
+        final int end = offset + length;
+        int position = offset;
+        while (position < end) {
+            final int header = data.get(position++) & 0xFF;
+            final int type = (header >> 3) & 0xF;
+            if (type == 1) {
+                return true;
+            }
+            if ((header & 0x4) != 0) {
+                position++;
+            }
+            if ((header & 0x2) == 0) {
+                // No size field; the OBU runs to the end of the temporal unit.
+                return false;
+            }
+            long size = 0;
+            for (int i = 0; i < 8 && position < end; i++) {
+                final int b = data.get(position++) & 0xFF;
+                size |= (long) (b & 0x7F) << (7 * i);
+                if ((b & 0x80) == 0) {
+                    break;
+                }
+            }
+            position += (int) size;
+        }
+        return false;
+    }
+
+    @Nullable
+    private static String getIvfCodec(String fourcc) {
+        switch (fourcc) {
+            case "VP80":
+                return PeerConnectionConstant.VIDEO_CODEC_VP8;
+            case "VP90":
+                return PeerConnectionConstant.VIDEO_CODEC_VP9;
+            case "AV01":
+                return PeerConnectionConstant.VIDEO_CODEC_AV1;
+            default:
+                return null;
+        }
+    }
+}
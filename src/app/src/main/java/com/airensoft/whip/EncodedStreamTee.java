@@ -0,0 +1,300 @@
+package com.airensoft.whip;
+
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the encoded output of every wrapped encoder to one file per layer: Annex-B for
+ * H264/H265, IVF for VP8/VP9/AV1.
+ *
+ * Only Java encoders can be wrapped, which are the hardware (MediaCodec) ones: layers that run
+ * on the native software encoders, and SVC streams, never reach the tee and are not written.
+ *
+ * The encode callback copies the payload into a pooled heap buffer and hands it to a bounded
+ * queue; the writer thread writes it and returns the buffer to the pool. The EncodedImage is not
+ * retained, so a slow disk never holds MediaCodec output buffers. When the queue is full the
+ * frame is dropped and counted.
+ */
+class EncodedStreamTee {
+    private static final String TAG = "EncodedStreamTee";
+    private static final int IVF_HEADER_LENGTH = 32;
+    private static final int IVF_FRAME_HEADER_LENGTH = 12;
+    private static final int IVF_FRAME_COUNT_OFFSET = 24;
+    // IVF timestamps are in milliseconds.
+    private static final int IVF_TIMEBASE_DENOMINATOR = 1000;
+
+    private static class Entry {
+        final int layer;
+        final String codec;
+        final ByteBuffer data;
+        final long captureTimeNs;
+        final int encodedWidth;
+        final int encodedHeight;
+
+        Entry(int layer, String codec, ByteBuffer data, EncodedImage image) {
+            this.layer = layer;
+            this.codec = codec;
+            this.data = data;
+            this.captureTimeNs = image.captureTimeNs;
+            this.encodedWidth = image.encodedWidth;
+            this.encodedHeight = image.encodedHeight;
+        }
+    }
+
+    private final File directory;
+    private final long maxBytes;
+    private final String sessionName = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+    private final BlockingQueue<Entry> queue;
+    // Written buffers for reuse, at most one per queue slot.
+    private final BlockingQueue<ByteBuffer> pool;
+    private final AtomicLong writtenFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final Thread writerThread;
+    private volatile boolean released;
+
+    // Accessed on the writer thread only.
+    private final Map<Integer, LayerWriter> writers = new HashMap<>();
+    private final ByteBuffer frameHeader = ByteBuffer.allocate(IVF_FRAME_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private long writtenBytes;
+
+    EncodedStreamTee(File directory, int queueCapacity, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        this.pool = new ArrayBlockingQueue<>(queueCapacity);
+        writerThread = new Thread(this::runWriter, TAG);
+        writerThread.start();
+    }
+
+    /**
+     * Returns `encoder` with its output copied to the file of `layer`. Native encoders cannot be
+     * wrapped and are returned as they are.
+     */
+    public VideoEncoder wrap(VideoEncoder encoder, String codec, int layer) {
+        if (!ForwardingVideoEncoder.isWrappable(encoder)) {
+            AsyncLog.d(TAG, "%s layer %d is a native encoder, not teed", codec, layer);
+            return encoder;
+        }
+        return new ForwardingVideoEncoder(encoder) {
+            @Override
+            public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+                return super.initEncode(settings, (frame, info) -> {
+                    offer(layer, codec, frame);
+                    encodeCallback.onEncodedFrame(frame, info);
+                });
+            }
+        };
+    }
+
+    private void offer(int layer, String codec, EncodedImage image) {
+        if (released) {
+            return;
+        }
+        if (queue.remainingCapacity() == 0) {
+            droppedFrames.incrementAndGet();
+            return;
+        }
+        final ByteBuffer source = image.buffer.duplicate();
+        final ByteBuffer data = acquire(source.remaining());
+        data.put(source);
+        data.flip();
+        if (!queue.offer(new Entry(layer, codec, data, image))) {
+            pool.offer(data);
+            droppedFrames.incrementAndGet();
+        }
+    }
+
+    private ByteBuffer acquire(int length) {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null || buffer.capacity() < length) {
+            // Some headroom, so a larger key frame does not replace the buffer every time.
+            buffer = ByteBuffer.allocate(length + length / 2);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    public long getWrittenFrames() {
+        return writtenFrames.get();
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    @Override
+    public String toString() {
+        return "written=" + getWrittenFrames() + " dropped=" + getDroppedFrames();
+    }
+
+    /**
+     * Stops the writer after the queued frames are written and closes the files.
+     */
+    public void release() {
+        released = true;
+        writerThread.interrupt();
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Offers that raced with release() and were not written.
+        queue.clear();
+        pool.clear();
+    }
+
+    private void runWriter() {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            AsyncLog.e(TAG, "Failed to create %s", directory);
+        }
+        try {
+            while (!released) {
+                write(queue.take());
+            }
+        } catch (InterruptedException e) {
+            // Released; write what is already queued.
+        }
+        Entry entry;
+        while ((entry = queue.poll()) != null) {
+            write(entry);
+        }
+        for (LayerWriter writer : writers.values()) {
+            writer.close();
+        }
+        writers.clear();
+        AsyncLog.i(TAG, "Encoded stream tee closed: %s, %d bytes", this, writtenBytes);
+    }
+
+    private void write(Entry entry) {
+        try {
+            final int length = entry.data.remaining();
+            if (writtenBytes + length > maxBytes) {
+                droppedFrames.incrementAndGet();
+                return;
+            }
+            LayerWriter writer = writers.get(entry.layer);
+            if (writer == null) {
+                writer = new LayerWriter(entry.codec, entry.layer, entry);
+                writers.put(entry.layer, writer);
+            }
+            if (writer.channel != null) {
+                writtenBytes += writer.write(entry);
+                writtenFrames.incrementAndGet();
+            }
+        } finally {
+            pool.offer(entry.data);
+        }
+    }
+
+    private class LayerWriter {
+        private final boolean ivf;
+        private FileChannel channel;
+        private int frameCount;
+
+        LayerWriter(String codec, int layer, Entry first) {
+            final String fourcc = getIvfFourcc(codec);
+            ivf = fourcc != null;
+            File file = new File(directory, String.format(Locale.US, "%s_%s_L%d.%s", sessionName, codec, layer,
+                    ivf ? "ivf" : codec.toLowerCase(Locale.US)));
+            try {
+                channel = new FileOutputStream(file).getChannel();
+                if (ivf) {
+                    writeFully(createIvfHeader(fourcc, first.encodedWidth, first.encodedHeight));
+                }
+                AsyncLog.i(TAG, "Writing %s layer %d to %s", codec, layer, file);
+            } catch (IOException e) {
+                AsyncLog.e(TAG, "Failed to open %s: %s", file, e);
+                close();
+            }
+        }
+
+        int write(Entry entry) {
+            final ByteBuffer data = entry.data;
+            final int length = data.remaining();
+            try {
+                if (ivf) {
+                    frameHeader.clear();
+                    frameHeader.putInt(length).putLong(entry.captureTimeNs / 1_000_000);
+                    frameHeader.flip();
+                    writeFully(frameHeader);
+                }
+                writeFully(data);
+                frameCount++;
+                return length + (ivf ? IVF_FRAME_HEADER_LENGTH : 0);
+            } catch (IOException e) {
+                AsyncLog.e(TAG, "Failed to write frame: %s", e);
+                close();
+                return 0;
+            }
+        }
+
+        void close() {
+            if (channel == null) {
+                return;
+            }
+            try {
+                if (ivf) {
+                    ByteBuffer count = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(0, frameCount);
+                    channel.write(count, IVF_FRAME_COUNT_OFFSET);
+                }
+                channel.close();
+            } catch (IOException e) {
+                AsyncLog.w(TAG, "Failed to close: %s", e);
+            }
+            channel = null;
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        }
+    }
+
+    private static ByteBuffer createIvfHeader(String fourcc, int width, int height) {
+        ByteBuffer header = ByteBuffer.allocate(IVF_HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'D').put((byte) 'K').put((byte) 'I').put((byte) 'F');
+        header.putShort((short) 0); // version
+        header.putShort((short) IVF_HEADER_LENGTH);
+        for (int i = 0; i < 4; i++) {
+            header.put((byte) fourcc.charAt(i));
+        }
+        header.putShort((short) width);
+        header.putShort((short) height);
+        header.putInt(IVF_TIMEBASE_DENOMINATOR);
+        header.putInt(1); // timebase numerator
+        header.putInt(0); // frame count, patched on close
+        header.putInt(0);
+        header.flip();
+        return header;
+    }
+
+    private static String getIvfFourcc(String codec) {
+        switch (codec) {
+            case PeerConnectionConstant.VIDEO_CODEC_VP8:
+                return "VP80";
+            case PeerConnectionConstant.VIDEO_CODEC_VP9:
+                return "VP90";
+            case PeerConnectionConstant.VIDEO_CODEC_AV1:
+                return "AV01";
+            default:
+                return null;
+        }
+    }
+}
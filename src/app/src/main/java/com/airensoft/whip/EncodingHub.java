@@ -0,0 +1,403 @@
+package com.airensoft.whip;
+
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Shares one encoder per (codec, resolution) between every session of the process that publishes
+ * the same source. The first encoder of a group encodes; the others never initialize their
+ * delegate and send the leader's output instead, re-stamped with the capture time of their own
+ * frames. Each output frame is copied once into a pooled buffer that the followers share by
+ * reference count, so followers never hold the leader's MediaCodec output buffers.
+ *
+ * A key frame request from any session is folded into the next frame the leader encodes, so one
+ * IDR serves all of them. The leader runs at the lowest bitrate any session asked for. A session
+ * that falls behind by more than MAX_PENDING_FRAMES drops its pending frames and skips to the
+ * next key frame.
+ */
+class EncodingHub {
+    private static final String TAG = "EncodingHub";
+    private static final int MAX_PENDING_FRAMES = 4;
+    private static final int MAX_POOLED_BUFFERS = 8;
+    private static final EncodingHub defaultHub = new EncodingHub();
+
+    private final Map<String, Group> groups = new HashMap<>();
+    // Direct buffers of released copies; EncodedImage payloads must be direct. Guarded by the hub.
+    private final ArrayDeque<ByteBuffer> pool = new ArrayDeque<>();
+
+    /**
+     * Copy of one leader output frame, released to the pool when no follower holds it any more.
+     */
+    private static class SharedFrame {
+        final ByteBuffer data;
+        final int encodedWidth;
+        final int encodedHeight;
+        final EncodedImage.FrameType frameType;
+        final int rotation;
+        final Integer qp;
+        // Guarded by the hub.
+        int refs;
+
+        SharedFrame(ByteBuffer data, EncodedImage image) {
+            this.data = data;
+            this.encodedWidth = image.encodedWidth;
+            this.encodedHeight = image.encodedHeight;
+            this.frameType = image.frameType;
+            this.rotation = image.rotation;
+            this.qp = image.qp;
+        }
+    }
+
+    private static class Group {
+        final String key;
+        final List<Subscriber> subscribers = new ArrayList<>();
+        Subscriber leader;
+        boolean keyFrameRequested;
+        boolean ratesChanged;
+        long encodedFrames;
+        long keyFrameRequests;
+        long keyFrames;
+
+        Group(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public String toString() {
+            return key + " sessions=" + subscribers.size() + " encoded=" + encodedFrames
+                    + " keyFrameRequests=" + keyFrameRequests + " keyFrames=" + keyFrames;
+        }
+    }
+
+    /**
+     * Returns the hub shared by every PeerConnectionClient of the process.
+     */
+    public static EncodingHub getDefault() {
+        return defaultHub;
+    }
+
+    /**
+     * Returns `encoder` as a member of the hub. Native encoders cannot be shared and are returned
+     * as they are.
+     */
+    public VideoEncoder wrap(VideoEncoder encoder, String codec) {
+        if (!ForwardingVideoEncoder.isWrappable(encoder)) {
+            return encoder;
+        }
+        return new Subscriber(encoder, codec);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return groups.values().toString();
+    }
+
+    // Call with the hub locked.
+    private SharedFrame copy(EncodedImage image) {
+        final ByteBuffer source = image.buffer.duplicate();
+        ByteBuffer data = pool.poll();
+        if (data == null || data.capacity() < source.remaining()) {
+            // Some headroom, so a larger key frame does not replace the buffer every time.
+            data = ByteBuffer.allocateDirect(source.remaining() + source.remaining() / 2);
+        }
+        data.clear();
+        data.put(source);
+        data.flip();
+        return new SharedFrame(data, image);
+    }
+
+    // Call with the hub locked.
+    private void releaseFrame(SharedFrame frame) {
+        if (--frame.refs == 0 && pool.size() < MAX_POOLED_BUFFERS) {
+            pool.add(frame.data);
+        }
+    }
+
+    private class Subscriber extends ForwardingVideoEncoder {
+        private final String codec;
+        // Guarded by the hub.
+        private Group group;
+        private Callback callback;
+        private RateControlParameters rates;
+        private final ArrayDeque<SharedFrame> pending = new ArrayDeque<>();
+        private boolean waitForKeyFrame;
+        // Accessed on this encoder's thread only.
+        private Settings settings;
+        private boolean delegateInitialized;
+
+        Subscriber(VideoEncoder delegate, String codec) {
+            super(delegate);
+            this.codec = codec;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+            final boolean releaseDelegate = delegateInitialized;
+            delegateInitialized = false;
+            this.settings = settings;
+            final boolean lead;
+            synchronized (EncodingHub.this) {
+                leave();
+                callback = encodeCallback;
+                final String key = codec + " " + settings.width + "x" + settings.height;
+                group = groups.get(key);
+                if (group == null) {
+                    group = new Group(key);
+                    groups.put(key, group);
+                }
+                group.subscribers.add(this);
+                if (group.leader == null) {
+                    group.leader = this;
+                } else {
+                    // Join at the next key frame.
+                    waitForKeyFrame = true;
+                    requestKeyFrame();
+                }
+                lead = group.leader == this;
+                AsyncLog.d(TAG, "Joined %s as %s", group, lead ? "leader" : "follower");
+            }
+            if (releaseDelegate) {
+                delegate.release();
+            }
+            return lead ? initDelegate() : VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            synchronized (EncodingHub.this) {
+                leave();
+                callback = null;
+            }
+            if (delegateInitialized) {
+                delegateInitialized = false;
+                return delegate.release();
+            }
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            boolean keyFrameRequested = false;
+            for (EncodedImage.FrameType frameType : info.frameTypes) {
+                keyFrameRequested |= frameType == EncodedImage.FrameType.VideoFrameKey;
+            }
+
+            final boolean lead;
+            boolean forceKeyFrame = false;
+            RateControlParameters leaderRates = null;
+            SharedFrame shared = null;
+            Callback output;
+            synchronized (EncodingHub.this) {
+                if (group == null) {
+                    return VideoCodecStatus.UNINITIALIZED;
+                }
+                if (keyFrameRequested) {
+                    requestKeyFrame();
+                }
+                lead = group.leader == this;
+                if (lead) {
+                    forceKeyFrame = group.keyFrameRequested;
+                    group.keyFrameRequested = false;
+                    if (group.ratesChanged) {
+                        leaderRates = getMinRates();
+                        group.ratesChanged = false;
+                    }
+                } else {
+                    shared = pending.poll();
+                }
+                output = callback;
+            }
+
+            if (!lead) {
+                // Nothing encoded for this frame yet; it is dropped.
+                if (shared != null) {
+                    emit(shared, frame, output);
+                }
+                return VideoCodecStatus.OK;
+            }
+            if (!delegateInitialized) {
+                // Promoted after the previous leader left.
+                VideoCodecStatus status = initDelegate();
+                if (status != VideoCodecStatus.OK) {
+                    return status;
+                }
+                forceKeyFrame = true;
+                leaderRates = null;
+            }
+            if (leaderRates != null) {
+                delegate.setRates(leaderRates);
+            }
+            return delegate.encode(frame, forceKeyFrame
+                    ? new EncodeInfo(new EncodedImage.FrameType[]{EncodedImage.FrameType.VideoFrameKey}) : info);
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            return setRates(new RateControlParameters(allocation, framerate));
+        }
+
+        @Override
+        public VideoCodecStatus setRates(RateControlParameters rcParameters) {
+            synchronized (EncodingHub.this) {
+                rates = rcParameters;
+                if (group != null) {
+                    group.ratesChanged = true;
+                }
+            }
+            return VideoCodecStatus.OK;
+        }
+
+        private VideoCodecStatus initDelegate() {
+            VideoCodecStatus status = delegate.initEncode(settings, this::onLeaderOutput);
+            delegateInitialized = status == VideoCodecStatus.OK;
+            if (delegateInitialized) {
+                RateControlParameters leaderRates = getMinRatesLocked();
+                if (leaderRates != null) {
+                    delegate.setRates(leaderRates);
+                }
+            }
+            return status;
+        }
+
+        /**
+         * Called on the leader's output thread: hands the frame to every follower, then sends it.
+         */
+        private void onLeaderOutput(EncodedImage image, CodecSpecificInfo info) {
+            Callback output;
+            synchronized (EncodingHub.this) {
+                if (group != null && group.leader == this) {
+                    group.encodedFrames++;
+                    if (image.frameType == EncodedImage.FrameType.VideoFrameKey) {
+                        group.keyFrames++;
+                    }
+                    SharedFrame shared = null;
+                    for (Subscriber subscriber : group.subscribers) {
+                        if (subscriber != this && subscriber.accept(image.frameType)) {
+                            if (shared == null) {
+                                shared = copy(image);
+                            }
+                            shared.refs++;
+                            subscriber.pending.add(shared);
+                        }
+                    }
+                }
+                output = callback;
+            }
+            if (output != null) {
+                output.onEncodedFrame(image, info);
+            }
+        }
+
+        /**
+         * Returns true if this follower takes the next leader frame of `frameType`. Call with
+         * the hub locked.
+         */
+        private boolean accept(EncodedImage.FrameType frameType) {
+            if (frameType == EncodedImage.FrameType.VideoFrameKey) {
+                // Everything before a key frame is obsolete.
+                clearPending();
+                waitForKeyFrame = false;
+                return true;
+            }
+            if (waitForKeyFrame) {
+                return false;
+            }
+            if (pending.size() == MAX_PENDING_FRAMES) {
+                AsyncLog.d(TAG, "Follower of %s fell behind, skipping to the next key frame", group.key);
+                clearPending();
+                waitForKeyFrame = true;
+                requestKeyFrame();
+                return false;
+            }
+            return true;
+        }
+
+        private void emit(SharedFrame shared, VideoFrame frame, Callback output) {
+            EncodedImage image = EncodedImage.builder()
+                    .setBuffer(shared.data.duplicate(), () -> {
+                        synchronized (EncodingHub.this) {
+                            releaseFrame(shared);
+                        }
+                    })
+                    .setEncodedWidth(shared.encodedWidth)
+                    .setEncodedHeight(shared.encodedHeight)
+                    .setCaptureTimeNs(frame.getTimestampNs())
+                    .setFrameType(shared.frameType)
+                    .setRotation(shared.rotation)
+                    .setQp(shared.qp)
+                    .createEncodedImage();
+            if (output != null) {
+                output.onEncodedFrame(image, new CodecSpecificInfo());
+            }
+            image.release();
+        }
+
+        // Call with the hub locked.
+        private void requestKeyFrame() {
+            group.keyFrameRequested = true;
+            group.keyFrameRequests++;
+        }
+
+        // Call with the hub locked.
+        private void leave() {
+            clearPending();
+            if (group == null) {
+                return;
+            }
+            group.subscribers.remove(this);
+            if (group.leader == this) {
+                group.leader = group.subscribers.isEmpty() ? null : group.subscribers.get(0);
+                // The new leader's encoder starts with a key frame; frames still pending belong to
+                // the old leader's stream.
+                for (Subscriber subscriber : group.subscribers) {
+                    subscriber.clearPending();
+                    subscriber.waitForKeyFrame = subscriber != group.leader;
+                }
+            }
+            group.ratesChanged = true;
+            AsyncLog.d(TAG, "Left %s", group);
+            if (group.subscribers.isEmpty()) {
+                groups.remove(group.key);
+            }
+            group = null;
+        }
+
+        // Call with the hub locked.
+        private void clearPending() {
+            SharedFrame frame;
+            while ((frame = pending.poll()) != null) {
+                releaseFrame(frame);
+            }
+        }
+
+        private RateControlParameters getMinRatesLocked() {
+            synchronized (EncodingHub.this) {
+                return getMinRates();
+            }
+        }
+
+        // Call with the hub locked.
+        private RateControlParameters getMinRates() {
+            if (group == null) {
+                return rates;
+            }
+            RateControlParameters min = null;
+            for (Subscriber subscriber : group.subscribers) {
+                RateControlParameters candidate = subscriber.rates;
+                if (candidate != null && (min == null || candidate.bitrate.getSum() < min.bitrate.getSum())) {
+                    min = candidate;
+                }
+            }
+            return min;
+        }
+    }
+}
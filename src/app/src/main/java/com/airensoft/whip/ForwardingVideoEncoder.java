@@ -0,0 +1,73 @@
+package com.airensoft.whip;
+
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoFrame;
+import org.webrtc.WrappedNativeVideoEncoder;
+
+/**
+ * VideoEncoder that forwards every call to a Java encoder. Only Java encoders (e.g. the
+ * MediaCodec based HardwareVideoEncoder) can be wrapped; native encoders are used directly by
+ * WebRTC and never see these calls.
+ */
+class ForwardingVideoEncoder implements VideoEncoder {
+    protected final VideoEncoder delegate;
+
+    ForwardingVideoEncoder(VideoEncoder delegate) {
+        this.delegate = delegate;
+    }
+
+    static boolean isWrappable(VideoEncoder encoder) {
+        return encoder != null && !(encoder instanceof WrappedNativeVideoEncoder);
+    }
+
+    @Override
+    public boolean isHardwareEncoder() {
+        return delegate.isHardwareEncoder();
+    }
+
+    @Override
+    public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+        return delegate.initEncode(settings, encodeCallback);
+    }
+
+    @Override
+    public VideoCodecStatus release() {
+        return delegate.release();
+    }
+
+    @Override
+    public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+        return delegate.encode(frame, info);
+    }
+
+    @Override
+    public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+        return delegate.setRateAllocation(allocation, framerate);
+    }
+
+    @Override
+    public VideoCodecStatus setRates(RateControlParameters rcParameters) {
+        return delegate.setRates(rcParameters);
+    }
+
+    @Override
+    public ScalingSettings getScalingSettings() {
+        return delegate.getScalingSettings();
+    }
+
+    @Override
+    public ResolutionBitrateLimits[] getResolutionBitrateLimits() {
+        return delegate.getResolutionBitrateLimits();
+    }
+
+    @Override
+    public String getImplementationName() {
+        return delegate.getImplementationName();
+    }
+
+    @Override
+    public EncoderInfo getEncoderInfo() {
+        return delegate.getEncoderInfo();
+    }
+}
@@ -0,0 +1,247 @@
+package com.airensoft.whip;
+
+import android.graphics.Matrix;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks the video frame buffers of a session to find the ones that are never released. Captured
+ * buffers are wrapped in a counting buffer that forwards to the original; buffers derived from it
+ * by cropAndScale() or toI420() are wrapped too, with the operation appended to the origin
+ * (e.g. "Camera2Capturer/cropAndScale"). A buffer is outstanding from its creation until its count
+ * drops to zero.
+ *
+ * Texture buffers stay texture buffers, so the encoders keep their surface input. Wrapping costs
+ * an allocation per buffer and is meant for soak runs only.
+ */
+class FrameBufferTracker {
+    private static final String TAG = "FrameBufferTracker";
+
+    private final Set<TrackedBuffer> outstanding = ConcurrentHashMap.newKeySet();
+    private final AtomicLong createdBuffers = new AtomicLong();
+    private final AtomicLong overReleases = new AtomicLong();
+
+    /**
+     * Outstanding buffers of one origin.
+     */
+    public static class Origin {
+        public final String name;
+        public int count;
+        public long oldestAgeMs;
+
+        Origin(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s count=%d oldest=%dms", name, count, oldestAgeMs);
+        }
+    }
+
+    /**
+     * Returns an observer that tracks every captured buffer before passing it to `observer`.
+     */
+    public CapturerObserver wrap(CapturerObserver observer, String origin) {
+        return new CapturerObserver() {
+            @Override
+            public void onCapturerStarted(boolean success) {
+                observer.onCapturerStarted(success);
+            }
+
+            @Override
+            public void onCapturerStopped() {
+                observer.onCapturerStopped();
+            }
+
+            @Override
+            public void onFrameCaptured(VideoFrame frame) {
+                // The tracked buffer takes over the frame's reference.
+                frame.retain();
+                VideoFrame tracked = new VideoFrame(track(frame.getBuffer(), origin), frame.getRotation(), frame.getTimestampNs());
+                observer.onFrameCaptured(tracked);
+                tracked.release();
+            }
+        };
+    }
+
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * Returns the outstanding buffers at least `minAgeMs` old, grouped by origin.
+     */
+    public List<Origin> getOutstanding(long minAgeMs) {
+        final long nowNs = System.nanoTime();
+        final Map<String, Origin> origins = new TreeMap<>();
+        for (TrackedBuffer buffer : outstanding) {
+            final long ageMs = TimeUnit.NANOSECONDS.toMillis(nowNs - buffer.createdNs);
+            if (ageMs < minAgeMs) {
+                continue;
+            }
+            Origin origin = origins.get(buffer.origin);
+            if (origin == null) {
+                origin = new Origin(buffer.origin);
+                origins.put(buffer.origin, origin);
+            }
+            origin.count++;
+            origin.oldestAgeMs = Math.max(origin.oldestAgeMs, ageMs);
+        }
+        return new ArrayList<>(origins.values());
+    }
+
+    @Override
+    public String toString() {
+        return "created=" + createdBuffers.get() + " outstanding=" + outstanding.size() + " overReleases=" + overReleases.get();
+    }
+
+    private VideoFrame.Buffer track(VideoFrame.Buffer buffer, String origin) {
+        if (buffer instanceof VideoFrame.TextureBuffer) {
+            return new TrackedTextureBuffer((VideoFrame.TextureBuffer) buffer, origin);
+        }
+        if (buffer instanceof VideoFrame.I420Buffer) {
+            return new TrackedI420Buffer((VideoFrame.I420Buffer) buffer, origin);
+        }
+        return new TrackedBuffer(buffer, origin);
+    }
+
+    private class TrackedBuffer implements VideoFrame.Buffer {
+        final VideoFrame.Buffer delegate;
+        final String origin;
+        final long createdNs = System.nanoTime();
+        private final AtomicInteger refCount = new AtomicInteger(1);
+
+        TrackedBuffer(VideoFrame.Buffer delegate, String origin) {
+            this.delegate = delegate;
+            this.origin = origin;
+            createdBuffers.incrementAndGet();
+            outstanding.add(this);
+        }
+
+        @Override
+        public int getWidth() {
+            return delegate.getWidth();
+        }
+
+        @Override
+        public int getHeight() {
+            return delegate.getHeight();
+        }
+
+        @Override
+        public VideoFrame.I420Buffer toI420() {
+            final VideoFrame.I420Buffer i420 = delegate.toI420();
+            return i420 != null ? new TrackedI420Buffer(i420, origin + "/toI420") : null;
+        }
+
+        @Override
+        public void retain() {
+            refCount.incrementAndGet();
+            delegate.retain();
+        }
+
+        @Override
+        public void release() {
+            final int count = refCount.decrementAndGet();
+            if (count < 0) {
+                overReleases.incrementAndGet();
+                AsyncLog.e(TAG, "Buffer from %s released once too often", origin);
+                return;
+            }
+            if (count == 0) {
+                outstanding.remove(this);
+            }
+            delegate.release();
+        }
+
+        @Override
+        public VideoFrame.Buffer cropAndScale(int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
+            return track(delegate.cropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight),
+                    origin + "/cropAndScale");
+        }
+    }
+
+    private class TrackedI420Buffer extends TrackedBuffer implements VideoFrame.I420Buffer {
+        private final VideoFrame.I420Buffer i420;
+
+        TrackedI420Buffer(VideoFrame.I420Buffer delegate, String origin) {
+            super(delegate, origin);
+            this.i420 = delegate;
+        }
+
+        @Override
+        public ByteBuffer getDataY() {
+            return i420.getDataY();
+        }
+
+        @Override
+        public ByteBuffer getDataU() {
+            return i420.getDataU();
+        }
+
+        @Override
+        public ByteBuffer getDataV() {
+            return i420.getDataV();
+        }
+
+        @Override
+        public int getStrideY() {
+            return i420.getStrideY();
+        }
+
+        @Override
+        public int getStrideU() {
+            return i420.getStrideU();
+        }
+
+        @Override
+        public int getStrideV() {
+            return i420.getStrideV();
+        }
+
+        @Override
+        public VideoFrame.I420Buffer toI420() {
+            // Same semantics as the wrapped buffer: another reference to this buffer.
+            retain();
+            return this;
+        }
+    }
+
+    private class TrackedTextureBuffer extends TrackedBuffer implements VideoFrame.TextureBuffer {
+        private final VideoFrame.TextureBuffer texture;
+
+        TrackedTextureBuffer(VideoFrame.TextureBuffer delegate, String origin) {
+            super(delegate, origin);
+            this.texture = delegate;
+        }
+
+        @Override
+        public Type getType() {
+            return texture.getType();
+        }
+
+        @Override
+        public int getTextureId() {
+            return texture.getTextureId();
+        }
+
+        @Override
+        public Matrix getTransformMatrix() {
+            return texture.getTransformMatrix();
+        }
+    }
+}
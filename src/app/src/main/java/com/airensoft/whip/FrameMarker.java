@@ -0,0 +1,148 @@
+package com.airensoft.whip;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Embeds a frame sequence number into the luma plane of captured frames and reads it back from
+ * decoded frames, so a decoded frame can be matched to its capture time (and source frame).
+ *
+ * The marker is a row of black/white blocks at the top left, sized relative to the frame width so
+ * it survives encoding and the downscaled simulcast layers: 16 sequence bits followed by 8 check
+ * bits.
+ */
+class FrameMarker {
+    private static final int SEQUENCE_BITS = 16;
+    private static final int CHECK_BITS = 8;
+    private static final int BITS = SEQUENCE_BITS + CHECK_BITS;
+    // Block width in 1/32 of the frame width, so the marker covers 3/4 of the top row.
+    private static final int BLOCKS_PER_WIDTH = 32;
+    private static final byte LUMA_ZERO = 16;
+    private static final byte LUMA_ONE = (byte) 235;
+    private static final int LUMA_THRESHOLD = 125;
+
+    private final AtomicLongArray captureTimesNs = new AtomicLongArray(1 << SEQUENCE_BITS);
+    private final AtomicIntegerArray captureIndices = new AtomicIntegerArray(1 << SEQUENCE_BITS);
+    private int nextSequence;
+    private int captureCount;
+
+    /**
+     * Returns an observer that marks every frame before passing it to `observer`.
+     */
+    public CapturerObserver wrap(CapturerObserver observer) {
+        return new CapturerObserver() {
+            @Override
+            public void onCapturerStarted(boolean success) {
+                observer.onCapturerStarted(success);
+            }
+
+            @Override
+            public void onCapturerStopped() {
+                observer.onCapturerStopped();
+            }
+
+            @Override
+            public void onFrameCaptured(VideoFrame frame) {
+                final int sequence = nextSequence;
+                nextSequence = (nextSequence + 1) & ((1 << SEQUENCE_BITS) - 1);
+                // Counted for unmarked frames too, so the index keeps matching the source frame.
+                final int captureIndex = captureCount++;
+
+                VideoFrame.I420Buffer buffer = frame.getBuffer().toI420();
+                if (buffer == null || !write(buffer, sequence)) {
+                    if (buffer != null) {
+                        buffer.release();
+                    }
+                    observer.onFrameCaptured(frame);
+                    return;
+                }
+                captureTimesNs.set(sequence, System.nanoTime());
+                captureIndices.set(sequence, captureIndex);
+                VideoFrame marked = new VideoFrame(buffer, frame.getRotation(), frame.getTimestampNs());
+                observer.onFrameCaptured(marked);
+                marked.release();
+            }
+        };
+    }
+
+    /**
+     * Returns the System.nanoTime() at which `sequence` was captured, 0 if unknown.
+     */
+    public long getCaptureTimeNs(int sequence) {
+        return captureTimesNs.get(sequence);
+    }
+
+    /**
+     * Returns how many frames were captured before `sequence`; for a looping file source this
+     * modulo the frame count is the source frame index.
+     */
+    public int getCaptureIndex(int sequence) {
+        return captureIndices.get(sequence);
+    }
+
+    /**
+     * Returns the number of rows the marker covers in a frame of `width`.
+     */
+    public static int getMarkerRows(int width) {
+        return width / BLOCKS_PER_WIDTH;
+    }
+
+    /**
+     * Returns the sequence number embedded in `buffer`, or -1 if there is no valid marker.
+     */
+    public static int read(VideoFrame.I420Buffer buffer) {
+        final int block = buffer.getWidth() / BLOCKS_PER_WIDTH;
+        if (block < 2 || buffer.getHeight() < block) {
+            return -1;
+        }
+        final ByteBuffer dataY = buffer.getDataY();
+        final int stride = buffer.getStrideY();
+        final int begin = block / 4;
+        final int end = block - block / 4;
+        int value = 0;
+        for (int bit = 0; bit < BITS; bit++) {
+            final int x = bit * block;
+            int sum = 0;
+            int count = 0;
+            for (int row = begin; row < end; row++) {
+                final int offset = row * stride + x;
+                for (int col = begin; col < end; col++) {
+                    sum += dataY.get(offset + col) & 0xFF;
+                    count++;
+                }
+            }
+            value = (value << 1) | (sum > LUMA_THRESHOLD * count ? 1 : 0);
+        }
+        final int sequence = value >>> CHECK_BITS;
+        return (value & ((1 << CHECK_BITS) - 1)) == check(sequence) ? sequence : -1;
+    }
+
+    private static boolean write(VideoFrame.I420Buffer buffer, int sequence) {
+        final int block = buffer.getWidth() / BLOCKS_PER_WIDTH;
+        final ByteBuffer dataY = buffer.getDataY();
+        if (block < 2 || buffer.getHeight() < block || dataY.isReadOnly()) {
+            return false;
+        }
+        final int stride = buffer.getStrideY();
+        final int value = (sequence << CHECK_BITS) | check(sequence);
+        for (int bit = 0; bit < BITS; bit++) {
+            final byte luma = ((value >>> (BITS - 1 - bit)) & 1) != 0 ? LUMA_ONE : LUMA_ZERO;
+            final int x = bit * block;
+            for (int row = 0; row < block; row++) {
+                final int offset = row * stride + x;
+                for (int col = 0; col < block; col++) {
+                    dataY.put(offset + col, luma);
+                }
+            }
+        }
+        return true;
+    }
+
+    private static int check(int sequence) {
+        return ((sequence >>> 8) ^ sequence ^ 0x5A) & ((1 << CHECK_BITS) - 1);
+    }
+}
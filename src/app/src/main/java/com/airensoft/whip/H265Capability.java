@@ -0,0 +1,121 @@
+package com.airensoft.whip;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+
+import androidx.annotation.Nullable;
+
+/**
+ * H265 profile/tier/level supported by the device's hardware encoder.
+ */
+class H265Capability {
+    private static final String TAG = "H265Capability";
+    private static final String MIME_TYPE = "video/hevc";
+
+    public static final int PROFILE_ID_MAIN = 1;
+    public static final int PROFILE_ID_MAIN10 = 2;
+    public static final int TIER_FLAG_MAIN = 0;
+    public static final int TIER_FLAG_HIGH = 1;
+    // level-id (RFC 7798) is 30 times the level number. The HEVC{Main,High}TierLevel* constants of
+    // CodecProfileLevel are (Main, High) bit pairs in the same order.
+    private static final int[] LEVEL_IDS = {30, 60, 63, 90, 93, 120, 123, 150, 153, 156, 180, 183, 186};
+    // MaxLumaPs for each entry of LEVEL_IDS (ITU-T H.265 Table A.8).
+    private static final int[] MAX_LUMA_PS = {36864, 122880, 245760, 552960, 983040, 2228224, 2228224,
+            8912896, 8912896, 8912896, 35651584, 35651584, 35651584};
+
+    public final String codecName;
+    public final int profileId;
+    public final int tierFlag;
+    public final int levelId;
+
+    private H265Capability(String codecName, int profileId, int tierFlag, int levelId) {
+        this.codecName = codecName;
+        this.profileId = profileId;
+        this.tierFlag = tierFlag;
+        this.levelId = levelId;
+    }
+
+    /**
+     * Returns the highest profile/tier/level of the H265 encoder HardwareVideoEncoderFactory
+     * will use, or null if it uses none. The factory takes the first encoder that passes its
+     * filter, so HardwareEncoderFilter is applied here. Main is preferred over Main10 because the
+     * capturers deliver 8-bit I420.
+     */
+    @Nullable
+    public static H265Capability query() {
+        final MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : mediaCodecList.getCodecInfos()) {
+            final MediaCodecInfo.CodecCapabilities capabilities = HardwareEncoderFilter.getCapabilities(info, MIME_TYPE);
+            if (capabilities == null) {
+                continue;
+            }
+
+            H265Capability main = null;
+            H265Capability main10 = null;
+            for (MediaCodecInfo.CodecProfileLevel profileLevel : capabilities.profileLevels) {
+                int levelIndex = getLevelIndex(profileLevel.level);
+                if (levelIndex < 0) {
+                    continue;
+                }
+                int tierFlag = isHighTier(profileLevel.level) ? TIER_FLAG_HIGH : TIER_FLAG_MAIN;
+                if (profileLevel.profile == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain) {
+                    main = higher(main, new H265Capability(info.getName(), PROFILE_ID_MAIN, tierFlag, LEVEL_IDS[levelIndex]));
+                } else if (profileLevel.profile == MediaCodecInfo.CodecProfileLevel.HEVCProfileMain10) {
+                    main10 = higher(main10, new H265Capability(info.getName(), PROFILE_ID_MAIN10, tierFlag, LEVEL_IDS[levelIndex]));
+                }
+            }
+
+            // The factory also stops at the first encoder with a Main/Main10 entry.
+            H265Capability capability = main != null ? main : main10;
+            if (capability != null) {
+                AsyncLog.d(TAG, "H265 capability: %s", capability);
+                return capability;
+            }
+        }
+        AsyncLog.w(TAG, "No H265 encoder of HardwareVideoEncoderFactory reports a Main/Main10 profile level");
+        return null;
+    }
+
+    /**
+     * Returns true if a picture of the given size fits the MaxLumaPs of this level.
+     */
+    public boolean supportsPictureSize(int width, int height) {
+        int index = indexOfLevelId(levelId);
+        return index >= 0 && (long) width * height <= MAX_LUMA_PS[index];
+    }
+
+    @Nullable
+    private static H265Capability higher(@Nullable H265Capability current, H265Capability candidate) {
+        if (current == null || candidate.levelId > current.levelId
+                || (candidate.levelId == current.levelId && candidate.tierFlag > current.tierFlag)) {
+            return candidate;
+        }
+        return current;
+    }
+
+    private static int getLevelIndex(int codecLevel) {
+        if (codecLevel <= 0) {
+            return -1;
+        }
+        int index = Integer.numberOfTrailingZeros(codecLevel) / 2;
+        return index < LEVEL_IDS.length ? index : -1;
+    }
+
+    private static boolean isHighTier(int codecLevel) {
+        return Integer.numberOfTrailingZeros(codecLevel) % 2 == 1;
+    }
+
+    private static int indexOfLevelId(int levelId) {
+        for (int i = 0; i < LEVEL_IDS.length; i++) {
+            if (LEVEL_IDS[i] == levelId) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s profile-id=%d;tier-flag=%d;level-id=%d", codecName, profileId, tierFlag, levelId);
+    }
+}
@@ -0,0 +1,82 @@
+package com.airensoft.whip;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+
+import androidx.annotation.Nullable;
+
+/**
+ * The encoder filter of HardwareVideoEncoderFactory (created with the Intel VP8 encoder disabled),
+ * so capability and capacity queries look at the encoder the factory will actually open.
+ */
+class HardwareEncoderFilter {
+    private static final String QCOM_PREFIX = "OMX.qcom.";
+    private static final String EXYNOS_PREFIX = "OMX.Exynos.";
+    private static final String C2_PREFIX = "c2.";
+    // MediaCodecUtils.ENCODER_COLOR_FORMATS: the factory skips encoders that support none of them.
+    private static final int[] COLOR_FORMATS = {
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar,
+            MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar,
+            0x7FA30C00, // COLOR_QCOM_FormatYUV420SemiPlanar
+            0x7FA30C04}; // COLOR_QCOM_FormatYUV420PackedSemiPlanar32m
+
+    private HardwareEncoderFilter() {
+    }
+
+    /**
+     * Returns the first encoder for `mime` the factory accepts, or null if it accepts none.
+     */
+    @Nullable
+    public static MediaCodecInfo find(String mime) {
+        final MediaCodecList mediaCodecList = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        for (MediaCodecInfo info : mediaCodecList.getCodecInfos()) {
+            if (getCapabilities(info, mime) != null) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the capabilities of `info` for `mime` if the factory accepts it, or null.
+     */
+    @Nullable
+    public static MediaCodecInfo.CodecCapabilities getCapabilities(@Nullable MediaCodecInfo info, String mime) {
+        if (info == null || !info.isEncoder() || info.isSoftwareOnly() || !hasPrefix(info.getName(), mime)) {
+            return null;
+        }
+        MediaCodecInfo.CodecCapabilities capabilities;
+        try {
+            capabilities = info.getCapabilitiesForType(mime);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return hasColorFormat(capabilities) ? capabilities : null;
+    }
+
+    // isHardwareSupportedInCurrentSdk* at minSdk 29; the factory accepts no AV1 encoder.
+    private static boolean hasPrefix(String name, String mime) {
+        switch (mime) {
+            case MediaFormat.MIMETYPE_VIDEO_VP8:
+            case MediaFormat.MIMETYPE_VIDEO_VP9:
+            case MediaFormat.MIMETYPE_VIDEO_AVC:
+                return name.startsWith(QCOM_PREFIX) || name.startsWith(EXYNOS_PREFIX);
+            case MediaFormat.MIMETYPE_VIDEO_HEVC:
+                return name.startsWith(QCOM_PREFIX) || name.startsWith(EXYNOS_PREFIX) || name.startsWith(C2_PREFIX);
+            default:
+                return false;
+        }
+    }
+
+    private static boolean hasColorFormat(MediaCodecInfo.CodecCapabilities capabilities) {
+        for (int supported : COLOR_FORMATS) {
+            for (int colorFormat : capabilities.colorFormats) {
+                if (colorFormat == supported) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,108 @@
+package com.airensoft.whip;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.IceCandidate;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Records how the host, srflx and relay paths fared while ICE races them: when the first local
+ * candidate of each type was gathered, when a pair of each type first succeeded, and which pair
+ * won. Times are relative to start().
+ *
+ * The winner is timed from the selected-pair callback. The other paths are only visible in the
+ * stats, so their connect times have the resolution of the stats interval.
+ */
+class IceRaceRecorder {
+    private static final Pattern CANDIDATE_TYPE = Pattern.compile(" typ (\\w+)");
+
+    private long startMs = -1;
+    private final Map<String, Long> gatheredMs = new LinkedHashMap<>();
+    private final Map<String, Long> connectedMs = new LinkedHashMap<>();
+    private String selectedType;
+    private long selectedMs = -1;
+
+    public void start() {
+        startMs = System.currentTimeMillis();
+        gatheredMs.clear();
+        connectedMs.clear();
+        selectedType = null;
+        selectedMs = -1;
+    }
+
+    public void onCandidateGathered(IceCandidate candidate) {
+        String type = getCandidateType(candidate.sdp);
+        if (type != null && startMs >= 0 && !gatheredMs.containsKey(type)) {
+            gatheredMs.put(type, System.currentTimeMillis() - startMs);
+        }
+    }
+
+    public void onSelectedPairChanged(IceCandidate local) {
+        String type = getCandidateType(local.sdp);
+        if (type == null || startMs < 0) {
+            return;
+        }
+        final long elapsedMs = System.currentTimeMillis() - startMs;
+        if (selectedType == null) {
+            selectedMs = elapsedMs;
+        }
+        selectedType = type;
+        if (!connectedMs.containsKey(type)) {
+            connectedMs.put(type, elapsedMs);
+        }
+    }
+
+    /**
+     * Records the first success of every candidate pair type found in `report`.
+     */
+    public void update(RTCStatsReport report) {
+        if (startMs < 0) {
+            return;
+        }
+        final Map<String, RTCStats> statsMap = report.getStatsMap();
+        final long elapsedMs = System.currentTimeMillis() - startMs;
+        for (RTCStats stats : statsMap.values()) {
+            if (!"candidate-pair".equals(stats.getType()) || !"succeeded".equals(stats.getMembers().get("state"))) {
+                continue;
+            }
+            RTCStats local = statsMap.get((String) stats.getMembers().get("localCandidateId"));
+            Object type = local != null ? local.getMembers().get("candidateType") : null;
+            if (type != null && !connectedMs.containsKey(type.toString())) {
+                connectedMs.put(type.toString(), elapsedMs);
+            }
+        }
+    }
+
+    @Nullable
+    public String getSelectedType() {
+        return selectedType;
+    }
+
+    public long getSelectedMs() {
+        return selectedMs;
+    }
+
+    public Map<String, Long> getConnectedMs() {
+        return connectedMs;
+    }
+
+    @Override
+    public String toString() {
+        return "selected=" + selectedType + " in " + selectedMs + "ms, gathered=" + gatheredMs + ", connected=" + connectedMs;
+    }
+
+    @Nullable
+    static String getCandidateType(@Nullable String candidateSdp) {
+        if (candidateSdp == null) {
+            return null;
+        }
+        Matcher matcher = CANDIDATE_TYPE.matcher(candidateSdp);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+}
@@ -0,0 +1,151 @@
+package com.airensoft.whip;
+
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoFrame;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides which key frame requests reach the encoders of a session. A burst of PLI/FIR from the
+ * server or its subscribers otherwise turns into a burst of IDRs, each a bitrate spike.
+ *
+ * - A request within coalesceWindowMs after a key frame was produced is answered by that key
+ *   frame; it was most likely sent before the server received it.
+ * - Any other request is served once minIntervalMs has passed since the previous key frame; the
+ *   requests that arrive meanwhile are served by the same key frame.
+ * - gopMs, if not 0, produces a key frame when none was produced for that long.
+ * - forceKeyFrame() produces one on the next frame of every layer, bypassing all of the above.
+ *
+ * Times are frame timestamps, and key frames the encoder produces on its own count as produced.
+ * Only Java encoders can be wrapped; native encoders keep handling requests themselves.
+ */
+class KeyFrameManager {
+    private static final String TAG = "KeyFrameManager";
+    private static final long UNSET = Long.MIN_VALUE;
+    private static final VideoEncoder.EncodeInfo DELTA_FRAME = new VideoEncoder.EncodeInfo(new EncodedImage.FrameType[]{EncodedImage.FrameType.VideoFrameDelta});
+    private static final VideoEncoder.EncodeInfo KEY_FRAME = new VideoEncoder.EncodeInfo(new EncodedImage.FrameType[]{EncodedImage.FrameType.VideoFrameKey});
+
+    private final long coalesceWindowNs;
+    private final long minIntervalNs;
+    private final long gopNs;
+    private final AtomicLong forceGeneration = new AtomicLong();
+
+    private final AtomicLong requested = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong forced = new AtomicLong();
+    private final AtomicLong periodic = new AtomicLong();
+    private final AtomicLong produced = new AtomicLong();
+
+    KeyFrameManager(long coalesceWindowMs, long minIntervalMs, long gopMs) {
+        this.coalesceWindowNs = TimeUnit.MILLISECONDS.toNanos(coalesceWindowMs);
+        this.minIntervalNs = TimeUnit.MILLISECONDS.toNanos(minIntervalMs);
+        this.gopNs = TimeUnit.MILLISECONDS.toNanos(gopMs);
+    }
+
+    /**
+     * Returns `encoder` with its key frame requests managed. Native encoders are returned as
+     * they are.
+     */
+    public VideoEncoder wrap(VideoEncoder encoder, int layer) {
+        if (!ForwardingVideoEncoder.isWrappable(encoder)) {
+            return encoder;
+        }
+        return new ManagedEncoder(encoder, layer);
+    }
+
+    /**
+     * Makes every layer produce a key frame on its next frame.
+     */
+    public void forceKeyFrame() {
+        forceGeneration.incrementAndGet();
+    }
+
+    public long getRequestedCount() {
+        return requested.get();
+    }
+
+    public long getProducedCount() {
+        return produced.get();
+    }
+
+    @Override
+    public String toString() {
+        return "requested=" + requested.get() + " coalesced=" + coalesced.get() + " forced=" + forced.get()
+                + " periodic=" + periodic.get() + " produced=" + produced.get();
+    }
+
+    private class ManagedEncoder extends ForwardingVideoEncoder {
+        private final int layer;
+        // Accessed on this encoder's thread only.
+        private long lastForceGeneration = forceGeneration.get();
+        private boolean requestPending;
+        // Set when a key frame is asked for and again when it comes out, so the frames encoded
+        // meanwhile do not ask for another one.
+        private volatile long lastKeyFrameNs = UNSET;
+
+        ManagedEncoder(VideoEncoder delegate, int layer) {
+            super(delegate);
+            this.layer = layer;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+            // A new encoder starts with a key frame, which answers everything before it.
+            requestPending = false;
+            lastForceGeneration = forceGeneration.get();
+            lastKeyFrameNs = UNSET;
+            return delegate.initEncode(settings, (image, info) -> {
+                if (image.frameType == EncodedImage.FrameType.VideoFrameKey) {
+                    lastKeyFrameNs = image.captureTimeNs;
+                    produced.incrementAndGet();
+                }
+                encodeCallback.onEncodedFrame(image, info);
+            });
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            final long nowNs = frame.getTimestampNs();
+            final boolean firstFrame = lastKeyFrameNs == UNSET;
+            final long sinceKeyFrameNs = firstFrame ? 0 : nowNs - lastKeyFrameNs;
+            boolean keyFrameRequested = false;
+            for (EncodedImage.FrameType frameType : info.frameTypes) {
+                keyFrameRequested |= frameType == EncodedImage.FrameType.VideoFrameKey;
+            }
+            if (keyFrameRequested) {
+                requested.incrementAndGet();
+                if (firstFrame || sinceKeyFrameNs < coalesceWindowNs || requestPending) {
+                    // Answered by this frame, the key frame just produced or the one pending.
+                    coalesced.incrementAndGet();
+                } else {
+                    requestPending = true;
+                }
+            }
+
+            boolean keyFrame = false;
+            final long generation = forceGeneration.get();
+            if (firstFrame) {
+                keyFrame = true;
+            } else if (generation != lastForceGeneration) {
+                lastForceGeneration = generation;
+                forced.incrementAndGet();
+                keyFrame = true;
+            } else if (requestPending && sinceKeyFrameNs >= minIntervalNs) {
+                keyFrame = true;
+            } else if (gopNs > 0 && sinceKeyFrameNs >= gopNs) {
+                periodic.incrementAndGet();
+                keyFrame = true;
+            }
+            if (keyFrame) {
+                requestPending = false;
+                lastKeyFrameNs = nowNs;
+                AsyncLog.d(TAG, "Key frame on layer %d after %dms", layer, TimeUnit.NANOSECONDS.toMillis(sinceKeyFrameNs));
+                return delegate.encode(frame, KEY_FRAME);
+            }
+            return delegate.encode(frame, keyFrameRequested ? DELTA_FRAME : info);
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.airensoft.whip;
+
+import org.webrtc.DataChannel;
+import org.webrtc.IceCandidate;
+import org.webrtc.MediaConstraints;
+import org.webrtc.MediaStream;
+import org.webrtc.MediaStreamTrack;
+import org.webrtc.PeerConnection;
+import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RtpReceiver;
+import org.webrtc.SdpObserver;
+import org.webrtc.SessionDescription;
+import org.webrtc.VideoFrame;
+import org.webrtc.VideoSink;
+import org.webrtc.VideoTrack;
+
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Receive-only PeerConnection in the same process that stands in for the WHIP server. It answers
+ * the publisher's offer, exchanges candidates directly, decodes the video and measures the
+ * capture-to-decode latency of every frame carrying a FrameMarker.
+ *
+ * Latency is bucketed by decoded resolution, which tells the simulcast layers (or SVC spatial
+ * layers) apart.
+ */
+class LoopbackReceiver {
+    private static final String TAG = "LoopbackReceiver";
+
+    public interface Callback {
+        void onAnswer(SessionDescription answer);
+
+        void onIceCandidate(IceCandidate candidate);
+
+        void onError(String description);
+    }
+
+    private final Executor executor;
+    private final FrameMarker marker;
+    private final Callback callback;
+    private final PeerConnection peerConnection;
+    private final Map<String, SessionExecutor.LatencyHistogram> latencyByResolution = new ConcurrentHashMap<>();
+    private final AtomicLong unmarkedFrames = new AtomicLong();
+    private final ArrayList<VideoTrack> tracks = new ArrayList<>();
+    private volatile QualityScorer qualityScorer;
+
+    private final VideoSink latencySink = new VideoSink() {
+        @Override
+        public void onFrame(VideoFrame frame) {
+            final long decodedNs = System.nanoTime();
+            VideoFrame.I420Buffer buffer = frame.getBuffer().toI420();
+            if (buffer == null) {
+                return;
+            }
+            final int sequence = FrameMarker.read(buffer);
+            final long captureNs = sequence >= 0 ? marker.getCaptureTimeNs(sequence) : 0;
+            if (captureNs > 0 && decodedNs >= captureNs) {
+                final String resolution = buffer.getWidth() + "x" + buffer.getHeight();
+                latencyByResolution.computeIfAbsent(resolution, key -> new SessionExecutor.LatencyHistogram())
+                        .record((decodedNs - captureNs) / 1000);
+            } else {
+                unmarkedFrames.incrementAndGet();
+            }
+            QualityScorer scorer = qualityScorer;
+            if (sequence >= 0 && scorer != null) {
+                scorer.offer(buffer, sequence);
+            }
+            buffer.release();
+        }
+    };
+
+    LoopbackReceiver(PeerConnectionFactory factory, Executor executor, FrameMarker marker, Callback callback) {
+        this.executor = executor;
+        this.marker = marker;
+        this.callback = callback;
+
+        PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(new ArrayList<>());
+        rtcConfig.bundlePolicy = PeerConnection.BundlePolicy.MAXBUNDLE;
+        rtcConfig.rtcpMuxPolicy = PeerConnection.RtcpMuxPolicy.REQUIRE;
+        rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
+        rtcConfig.keyType = PeerConnection.KeyType.ECDSA;
+        rtcConfig.sdpSemantics = PeerConnection.SdpSemantics.UNIFIED_PLAN;
+        peerConnection = factory.createPeerConnection(rtcConfig, new Observer());
+    }
+
+    /**
+     * Answers `offer`; the answer is delivered through Callback.onAnswer. Call on the executor.
+     */
+    public void answer(SessionDescription offer) {
+        if (peerConnection == null) {
+            callback.onError("Loopback PeerConnection is not created");
+            return;
+        }
+        peerConnection.setRemoteDescription(new SdpAdapter() {
+            @Override
+            public void onSetSuccess() {
+                executor.execute(() -> peerConnection.createAnswer(new SdpAdapter() {
+                    @Override
+                    public void onCreateSuccess(SessionDescription answer) {
+                        executor.execute(() -> peerConnection.setLocalDescription(new SdpAdapter() {
+                            @Override
+                            public void onSetSuccess() {
+                                executor.execute(() -> callback.onAnswer(answer));
+                            }
+                        }, answer));
+                    }
+                }, new MediaConstraints()));
+            }
+        }, offer);
+    }
+
+    public void addRemoteIceCandidate(IceCandidate candidate) {
+        if (peerConnection != null) {
+            peerConnection.addIceCandidate(candidate);
+        }
+    }
+
+    /**
+     * Scores the decoded frames against the source as well.
+     */
+    public void setQualityScorer(QualityScorer scorer) {
+        qualityScorer = scorer;
+    }
+
+    public Map<String, SessionExecutor.LatencyHistogram> getLatencyByResolution() {
+        return new TreeMap<>(latencyByResolution);
+    }
+
+    public long getUnmarkedFrames() {
+        return unmarkedFrames.get();
+    }
+
+    @Override
+    public String toString() {
+        QualityScorer scorer = qualityScorer;
+        return "latency=" + getLatencyByResolution() + " unmarked=" + getUnmarkedFrames()
+                + (scorer != null ? " quality=[" + scorer + "]" : "");
+    }
+
+    /**
+     * Call on the executor.
+     */
+    public void dispose() {
+        for (VideoTrack track : tracks) {
+            track.removeSink(latencySink);
+        }
+        tracks.clear();
+        if (peerConnection != null) {
+            peerConnection.dispose();
+        }
+        if (qualityScorer != null) {
+            qualityScorer.release();
+            qualityScorer = null;
+        }
+    }
+
+    private class Observer implements PeerConnection.Observer {
+        @Override
+        public void onIceCandidate(IceCandidate candidate) {
+            executor.execute(() -> callback.onIceCandidate(candidate));
+        }
+
+        @Override
+        public void onIceCandidatesRemoved(IceCandidate[] candidates) {
+        }
+
+        @Override
+        public void onSignalingChange(PeerConnection.SignalingState newState) {
+        }
+
+        @Override
+        public void onIceConnectionChange(PeerConnection.IceConnectionState newState) {
+            AsyncLog.d(TAG, "IceConnectionState: %s", newState);
+            if (newState == PeerConnection.IceConnectionState.FAILED) {
+                executor.execute(() -> callback.onError("Loopback ICE connection failed."));
+            }
+        }
+
+        @Override
+        public void onIceConnectionReceivingChange(boolean receiving) {
+        }
+
+        @Override
+        public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
+        }
+
+        @Override
+        public void onAddStream(MediaStream stream) {
+        }
+
+        @Override
+        public void onRemoveStream(MediaStream stream) {
+        }
+
+        @Override
+        public void onDataChannel(DataChannel dataChannel) {
+        }
+
+        @Override
+        public void onRenegotiationNeeded() {
+        }
+
+        @Override
+        public void onAddTrack(RtpReceiver receiver, MediaStream[] mediaStreams) {
+            MediaStreamTrack track = receiver.track();
+            if (track instanceof VideoTrack) {
+                executor.execute(() -> {
+                    AsyncLog.d(TAG, "Receiving video track %s", track.id());
+                    ((VideoTrack) track).addSink(latencySink);
+                    tracks.add((VideoTrack) track);
+                });
+            }
+        }
+    }
+
+    private class SdpAdapter implements SdpObserver {
+        @Override
+        public void onCreateSuccess(SessionDescription desc) {
+        }
+
+        @Override
+        public void onSetSuccess() {
+        }
+
+        @Override
+        public void onCreateFailure(String error) {
+            executor.execute(() -> callback.onError("Loopback createSDP error: " + error));
+        }
+
+        @Override
+        public void onSetFailure(String error) {
+            executor.execute(() -> callback.onError("Loopback setSDP error: " + error));
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.airensoft.whip;
+
+import android.os.Debug;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Samples the native heap, the Java heap, the PSS and the outstanding frame buffers of a session
+ * on its own thread. Samples go to the log and the session timeline.
+ *
+ * Once the native heap grew by more than nativeGrowthBytes since the first sample, the Java heap
+ * is above javaHeapFraction of its limit, or a frame buffer is older than leakAgeMs, the
+ * outstanding buffers are logged and the Java heap is dumped to an .hprof file. That happens once
+ * per session, since a dump suspends the process for seconds.
+ */
+class MemoryWatchdog {
+    private static final String TAG = "MemoryWatchdog";
+    private static final long BYTES_IN_KB = 1024;
+
+    private final File dumpDirectory;
+    private final FrameBufferTracker tracker;
+    private final long nativeGrowthBytes;
+    private final double javaHeapFraction;
+    private final long leakAgeMs;
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+
+    // Accessed on executor only.
+    private long baselineNativeBytes = -1;
+    private long maxNativeBytes;
+    private long maxJavaBytes;
+    private long maxPssKb;
+    private boolean dumped;
+
+    MemoryWatchdog(File dumpDirectory, FrameBufferTracker tracker, long nativeGrowthBytes,
+                   double javaHeapFraction, long leakAgeMs) {
+        this.dumpDirectory = dumpDirectory;
+        this.tracker = tracker;
+        this.nativeGrowthBytes = nativeGrowthBytes;
+        this.javaHeapFraction = javaHeapFraction;
+        this.leakAgeMs = leakAgeMs;
+    }
+
+    public void start(long intervalMs) {
+        executor.scheduleWithFixedDelay(this::sample, 0, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops sampling and logs the buffers that are still outstanding. Call after the video source
+     * and the factory are disposed, when every buffer should have been released.
+     */
+    public void release() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final List<FrameBufferTracker.Origin> leaks = tracker.getOutstanding(0);
+        if (leaks.isEmpty()) {
+            AsyncLog.i(TAG, "No leaked frame buffers (%s)", tracker);
+        } else {
+            AsyncLog.w(TAG, "Leaked frame buffers (%s): %s", tracker, leaks);
+        }
+        AsyncLog.i(TAG, "Peak native=%dKB java=%dKB pss=%dKB", maxNativeBytes / BYTES_IN_KB, maxJavaBytes / BYTES_IN_KB, maxPssKb);
+    }
+
+    private void sample() {
+        final Runtime runtime = Runtime.getRuntime();
+        final long nativeBytes = Debug.getNativeHeapAllocatedSize();
+        final long javaBytes = runtime.totalMemory() - runtime.freeMemory();
+        final long pssKb = Debug.getPss();
+        final int outstanding = tracker.getOutstandingCount();
+        if (baselineNativeBytes < 0) {
+            baselineNativeBytes = nativeBytes;
+        }
+        maxNativeBytes = Math.max(maxNativeBytes, nativeBytes);
+        maxJavaBytes = Math.max(maxJavaBytes, javaBytes);
+        maxPssKb = Math.max(maxPssKb, pssKb);
+        AsyncLog.d(TAG, "native=%dKB java=%dKB pss=%dKB buffers=%d", nativeBytes / BYTES_IN_KB, javaBytes / BYTES_IN_KB, pssKb, outstanding);
+        SessionTimeline.recordMemory(nativeBytes / BYTES_IN_KB, javaBytes / BYTES_IN_KB, pssKb, outstanding);
+
+        if (dumped) {
+            return;
+        }
+        String reason = null;
+        final List<FrameBufferTracker.Origin> stale = tracker.getOutstanding(leakAgeMs);
+        if (nativeBytes - baselineNativeBytes > nativeGrowthBytes) {
+            reason = "native heap grew by " + (nativeBytes - baselineNativeBytes) / BYTES_IN_KB + "KB";
+        } else if (javaBytes > runtime.maxMemory() * javaHeapFraction) {
+            reason = "Java heap at " + javaBytes / BYTES_IN_KB + "KB of " + runtime.maxMemory() / BYTES_IN_KB + "KB";
+        } else if (!stale.isEmpty()) {
+            reason = "frame buffers older than " + leakAgeMs + "ms";
+        }
+        if (reason != null) {
+            dumped = true;
+            dump(reason, stale);
+        }
+    }
+
+    private void dump(String reason, List<FrameBufferTracker.Origin> stale) {
+        AsyncLog.w(TAG, "Dump on %s. Outstanding buffers (%s): %s", reason, tracker, stale);
+        if (!dumpDirectory.isDirectory() && !dumpDirectory.mkdirs()) {
+            AsyncLog.e(TAG, "Can not create %s", dumpDirectory);
+            return;
+        }
+        final File file = new File(dumpDirectory, "heap_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".hprof");
+        try {
+            Debug.dumpHprofData(file.getAbsolutePath());
+            AsyncLog.i(TAG, "Heap dump: %s", file);
+        } catch (IOException e) {
+            AsyncLog.e(TAG, "Failed to dump the heap to %s: %s", file, e);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.airensoft.whip;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Per-layer view of the video outbound-rtp stats. Simulcast layers are separate outbound-rtp
+ * entries keyed by rid; an SVC encoding is a single entry that carries its scalabilityMode,
+ * since WebRTC does not report bytes per spatial layer.
+ */
+class OutboundLayerStats {
+    public static class Layer {
+        public final String id;
+        public final String rid;
+        public final String scalabilityMode;
+        public final long frameWidth;
+        public final long frameHeight;
+        public final double framesPerSecond;
+        public final long bitrateBps;
+        public final String qualityLimitationReason;
+
+        Layer(String id, String rid, String scalabilityMode, long frameWidth, long frameHeight,
+              double framesPerSecond, long bitrateBps, String qualityLimitationReason) {
+            this.id = id;
+            this.rid = rid;
+            this.scalabilityMode = scalabilityMode;
+            this.frameWidth = frameWidth;
+            this.frameHeight = frameHeight;
+            this.framesPerSecond = framesPerSecond;
+            this.bitrateBps = bitrateBps;
+            this.qualityLimitationReason = qualityLimitationReason;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s%s %dx%d %.1ffps %dkbps limitation=%s",
+                    rid != null ? rid : "-", scalabilityMode != null ? "(" + scalabilityMode + ")" : "",
+                    frameWidth, frameHeight, framesPerSecond, bitrateBps / PeerConnectionConstant.BPS_IN_KBPS, qualityLimitationReason);
+        }
+    }
+
+    private final Map<String, Long> lastBytesSent = new HashMap<>();
+    private final Map<String, Double> lastTimestampUs = new HashMap<>();
+
+    /**
+     * Returns the video layers of `report` with the bitrate since the previous call.
+     */
+    public List<Layer> update(RTCStatsReport report) {
+        List<Layer> layers = new ArrayList<>();
+        for (RTCStats stats : report.getStatsMap().values()) {
+            Map<String, Object> members = stats.getMembers();
+            if (!"outbound-rtp".equals(stats.getType()) || !"video".equals(members.get("kind"))) {
+                continue;
+            }
+            long bytesSent = getLong(members, "bytesSent") + getLong(members, "headerBytesSent");
+            double timestampUs = stats.getTimestampUs();
+            Long previousBytes = lastBytesSent.put(stats.getId(), bytesSent);
+            Double previousTimestampUs = lastTimestampUs.put(stats.getId(), timestampUs);
+            long bitrateBps = 0;
+            if (previousBytes != null && previousTimestampUs != null && timestampUs > previousTimestampUs) {
+                bitrateBps = (long) ((bytesSent - previousBytes) * 8 * 1_000_000.0 / (timestampUs - previousTimestampUs));
+            }
+
+            Object fps = members.get("framesPerSecond");
+            layers.add(new Layer(stats.getId(),
+                    (String) members.get("rid"),
+                    (String) members.get("scalabilityMode"),
+                    getLong(members, "frameWidth"),
+                    getLong(members, "frameHeight"),
+                    fps instanceof Number ? ((Number) fps).doubleValue() : 0,
+                    bitrateBps,
+                    String.valueOf(members.get("qualityLimitationReason"))));
+        }
+        return layers;
+    }
+
+    static long getLong(Map<String, Object> members, String name) {
+        Object value = members.get(name);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value != null) {
+            // Some counters are delivered as strings.
+            try {
+                return Long.parseLong(value.toString());
+            } catch (NumberFormatException e) {
+                return 0;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,267 @@
+package com.airensoft.whip;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.EncodedImage;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes a pre-encoded file instead of encoding the captured frames. The encoders answer every
+ * encode() call with the next frame of the EncodedFileIndex, and a key frame request with a jump
+ * to the nearest key frame.
+ *
+ * WebRTC matches encoder output to the frames it passed to encode(), so createCapturer() provides
+ * a capturer that delivers one reused blank buffer paced to the file timestamps. Frames are sent
+ * in file order; a frame dropped before the encoder only delays the file, it never skips a
+ * reference frame.
+ */
+class PassthroughEncoderFactory implements VideoEncoderFactory {
+    private static final String TAG = "Passthrough";
+    // Lower bound of the pace, so frames with equal timestamps do not spin the capturer.
+    private static final long MIN_FRAME_DURATION_US = 1000;
+
+    private final EncodedFileIndex index;
+    private final VideoCodecInfo codecInfo;
+
+    // Next frame of the file to send, shared by the encoders and the capturer.
+    private int cursor;
+    private long sentFrames;
+    private long keyFrameJumps;
+
+    /**
+     * `supportedCodecs` provides the SDP parameters to offer for the file's codec; without a match
+     * the codec is offered without parameters. The H264 profile-level-id is taken from the file's
+     * SPS, since the device's encoder profile says nothing about the file.
+     */
+    PassthroughEncoderFactory(EncodedFileIndex index, VideoCodecInfo[] supportedCodecs) {
+        this.index = index;
+        VideoCodecInfo match = null;
+        for (VideoCodecInfo info : supportedCodecs) {
+            if (info.name.equalsIgnoreCase(index.getCodec())) {
+                match = info;
+                break;
+            }
+        }
+        final Map<String, String> params = match != null ? new HashMap<>(match.params) : new HashMap<>();
+        final String profileLevelId = index.getH264ProfileLevelId();
+        if (index.getCodec().equals(PeerConnectionConstant.VIDEO_CODEC_H264) && profileLevelId != null) {
+            params.put(VideoCodecInfo.H264_FMTP_PROFILE_LEVEL_ID, profileLevelId);
+            params.put(VideoCodecInfo.H264_FMTP_LEVEL_ASYMMETRY_ALLOWED, "1");
+            // The file is sent NAL by NAL, so large slices need FU-A.
+            params.put(VideoCodecInfo.H264_FMTP_PACKETIZATION_MODE, "1");
+            AsyncLog.i(TAG, "H264 profile-level-id from SPS: %s", profileLevelId);
+        }
+        codecInfo = new VideoCodecInfo(match != null ? match.name : index.getCodec(), params);
+    }
+
+    @Nullable
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        if (!info.name.equalsIgnoreCase(index.getCodec())) {
+            AsyncLog.e(TAG, "Passthrough source is %s, cannot encode %s", index.getCodec(), info.name);
+            return null;
+        }
+        return new PassthroughEncoder();
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        return new VideoCodecInfo[]{codecInfo};
+    }
+
+    /**
+     * Returns the capturer that paces the encoders. The file restarts when capturing starts.
+     */
+    public VideoCapturer createCapturer() {
+        return new IdleCapturer();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return index.getCodec() + " sent=" + sentFrames + " keyFrameJumps=" + keyFrameJumps;
+    }
+
+    private synchronized int nextFrame(boolean keyFrameRequested) {
+        int frame = cursor;
+        if (keyFrameRequested && !index.isKeyFrame(frame)) {
+            frame = index.getNearestKeyFrame(frame);
+            keyFrameJumps++;
+        }
+        cursor = (frame + 1) % index.getFrameCount();
+        sentFrames++;
+        return frame;
+    }
+
+    private synchronized long getNextDurationNs() {
+        return Math.max(MIN_FRAME_DURATION_US, index.getDurationUs(cursor)) * 1000;
+    }
+
+    private synchronized void rewind() {
+        cursor = 0;
+    }
+
+    private class PassthroughEncoder implements VideoEncoder {
+        @Nullable
+        private Callback callback;
+        private int width;
+        private int height;
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+            callback = encodeCallback;
+            // Annex-B files carry no size in the index; the capturer delivers frames of the configured size.
+            width = index.getWidth() > 0 ? index.getWidth() : settings.width;
+            height = index.getHeight() > 0 ? index.getHeight() : settings.height;
+            AsyncLog.d(TAG, "Passthrough encoder %s %dx%d", index.getCodec(), width, height);
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            callback = null;
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            if (callback == null) {
+                return VideoCodecStatus.UNINITIALIZED;
+            }
+            boolean keyFrameRequested = false;
+            for (EncodedImage.FrameType frameType : info.frameTypes) {
+                keyFrameRequested |= frameType == EncodedImage.FrameType.VideoFrameKey;
+            }
+            final int frameIndex = nextFrame(keyFrameRequested);
+            final ByteBuffer data = index.getFrame(frameIndex);
+            EncodedImage image = EncodedImage.builder()
+                    .setBuffer(data, null)
+                    .setEncodedWidth(width)
+                    .setEncodedHeight(height)
+                    .setCaptureTimeNs(frame.getTimestampNs())
+                    .setFrameType(index.isKeyFrame(frameIndex) ? EncodedImage.FrameType.VideoFrameKey : EncodedImage.FrameType.VideoFrameDelta)
+                    .setRotation(frame.getRotation())
+                    .setQp(null)
+                    .createEncodedImage();
+            callback.onEncodedFrame(image, new CodecSpecificInfo());
+            image.release();
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            // The file has a fixed bitrate.
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return ScalingSettings.OFF;
+        }
+
+        @Override
+        public String getImplementationName() {
+            return "Passthrough";
+        }
+    }
+
+    /**
+     * Delivers a blank frame for every frame of the file at the file's pace. The buffer is
+     * allocated once and retained per frame.
+     */
+    private class IdleCapturer implements VideoCapturer {
+        @Nullable
+        private CapturerObserver observer;
+        @Nullable
+        private JavaI420Buffer buffer;
+        @Nullable
+        private Thread thread;
+        private volatile boolean running;
+
+        @Override
+        public void initialize(SurfaceTextureHelper surfaceTextureHelper, Context applicationContext, CapturerObserver capturerObserver) {
+            observer = capturerObserver;
+        }
+
+        @Override
+        public void startCapture(int width, int height, int framerate) {
+            if (buffer == null) {
+                buffer = JavaI420Buffer.allocate(index.getWidth() > 0 ? index.getWidth() : width,
+                        index.getHeight() > 0 ? index.getHeight() : height);
+                fill(buffer.getDataY(), (byte) 16);
+                fill(buffer.getDataU(), (byte) 128);
+                fill(buffer.getDataV(), (byte) 128);
+            }
+            rewind();
+            running = true;
+            thread = new Thread(this::run, "PassthroughCapturer");
+            thread.start();
+            observer.onCapturerStarted(true);
+        }
+
+        private void run() {
+            long deadlineNs = System.nanoTime();
+            while (running) {
+                buffer.retain();
+                VideoFrame frame = new VideoFrame(buffer, 0, deadlineNs);
+                observer.onFrameCaptured(frame);
+                frame.release();
+
+                deadlineNs += getNextDurationNs();
+                long waitNs;
+                while (running && (waitNs = deadlineNs - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(waitNs);
+                }
+            }
+        }
+
+        @Override
+        public void stopCapture() throws InterruptedException {
+            running = false;
+            if (thread != null) {
+                thread.join();
+                thread = null;
+                observer.onCapturerStopped();
+            }
+            AsyncLog.i(TAG, "Passthrough stopped: %s", PassthroughEncoderFactory.this);
+        }
+
+        @Override
+        public void changeCaptureFormat(int width, int height, int framerate) {
+            // The pace comes from the file.
+        }
+
+        @Override
+        public void dispose() {
+            if (buffer != null) {
+                buffer.release();
+                buffer = null;
+            }
+        }
+
+        @Override
+        public boolean isScreencast() {
+            return false;
+        }
+
+        private void fill(ByteBuffer plane, byte value) {
+            for (int i = 0; i < plane.capacity(); i++) {
+                plane.put(i, value);
+            }
+        }
+    }
+}
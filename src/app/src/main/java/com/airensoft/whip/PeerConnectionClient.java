@@ -13,7 +13,7 @@ package com.airensoft.whip;
 import android.content.Context;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
-import android.util.Log;
+import android.os.SystemClock;
 
 import androidx.annotation.Nullable;
 
@@ -21,9 +21,9 @@ import org.webrtc.AudioSource;
 import org.webrtc.AudioTrack;
 import org.webrtc.BuiltinAudioEncoderFactoryFactory;
 import org.webrtc.CandidatePairChangeEvent;
+import org.webrtc.CapturerObserver;
 import org.webrtc.DataChannel;
 import org.webrtc.DefaultVideoDecoderFactory;
-import org.webrtc.DefaultVideoEncoderFactory;
 import org.webrtc.SimulcastVideoEncoderFactory;
 import org.webrtc.EglBase;
 import org.webrtc.IceCandidate;
@@ -36,16 +36,19 @@ import org.webrtc.PeerConnection;
 import org.webrtc.PeerConnection.IceConnectionState;
 import org.webrtc.PeerConnection.PeerConnectionState;
 import org.webrtc.PeerConnectionFactory;
+import org.webrtc.RTCStats;
 import org.webrtc.RTCStatsCollectorCallback;
 import org.webrtc.RTCStatsReport;
 import org.webrtc.RtpCapabilities;
 import org.webrtc.RtpParameters;
 import org.webrtc.RtpReceiver;
+import org.webrtc.RtpSender;
 import org.webrtc.RtpTransceiver;
 import org.webrtc.SdpObserver;
 import org.webrtc.SessionDescription;
 import org.webrtc.SurfaceTextureHelper;
 import org.webrtc.VideoCapturer;
+import org.webrtc.VideoCodecInfo;
 import org.webrtc.VideoDecoderFactory;
 import org.webrtc.VideoEncoderFactory;
 import org.webrtc.VideoSink;
@@ -56,16 +59,19 @@ import org.webrtc.audio.JavaAudioDeviceModule;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackErrorCallback;
 import org.webrtc.audio.JavaAudioDeviceModule.AudioTrackStateCallback;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 public class PeerConnectionClient {
     private static final String TAG = "PCRTCClient";
-    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static boolean nativeLoggingEnabled;
+    private static final SessionExecutor executor = new SessionExecutor("PCRTCClient");
     private final PCObserver pcObserver = new PCObserver();
     private final SDPObserver sdpObserver = new SDPObserver();
     private final Timer statsTimer = new Timer();
@@ -93,6 +99,18 @@ public class PeerConnectionClient {
     private boolean isInitiator;
     @Nullable
     private SessionDescription localDescription; // either offer or answer description
+    private TraceCapture.Span sdpSpan = TraceCapture.NO_SPAN;
+    private final IceRaceRecorder iceRaceRecorder = new IceRaceRecorder();
+    @Nullable
+    private PeerConnection.RTCConfiguration rtcConfiguration;
+    @Nullable
+    private FrameMarker frameMarker;
+    @Nullable
+    private MemoryWatchdog memoryWatchdog;
+    @Nullable
+    private KeyFrameManager keyFrameManager;
+    @Nullable
+    private LoopbackReceiver loopbackReceiver;
     @Nullable
     private VideoCapturer videoCapturer;
     // enableVideo is set to true if video should be rendered and sent.
@@ -103,6 +121,38 @@ public class PeerConnectionClient {
     private boolean enableAudio = true;
     @Nullable
     private AudioTrack localAudioTrack;
+    @Nullable
+    private H265Capability h265Capability;
+    @Nullable
+    private SimulcastEncoderAllocator encoderAllocator;
+    @Nullable
+    private EncodedStreamTee encodedStreamTee;
+    @Nullable
+    private PassthroughEncoderFactory passthroughFactory;
+    @Nullable
+    private RtpSender localVideoSender;
+    // Sender encodings as configured at creation, before any degradation is applied.
+    @Nullable
+    private List<RtpParameters.Encoding> baseEncodings;
+    @Nullable
+    private RtpParameters.DegradationPreference baseDegradationPreference;
+    @Nullable
+    private EncodeGovernor encodeGovernor;
+    private final CpuLoadSampler cpuLoadSampler = new CpuLoadSampler();
+    private final Map<String, Double> lastTotalEncodeTime = new HashMap<>();
+    private long lastGovernorSampleMs;
+    @Nullable
+    private ThermalGovernor thermalGovernor;
+    @Nullable
+    private ThermalSampler thermalSampler;
+    private final OutboundLayerStats outboundLayerStats = new OutboundLayerStats();
+    private final ProtectionStats protectionStats = new ProtectionStats();
+    private final BandwidthEstimateTracker bandwidthEstimateTracker = new BandwidthEstimateTracker();
+    // Start bitrate applied to the remote description, 0 for WebRTC's default.
+    private int startBitrateKbps;
+    @Nullable
+    private RtcEventLogRecorder rtcEventLogRecorder;
+    private boolean connected;
 
     public PeerConnectionClient(Context appContext,
                                 EglBase eglBase,
@@ -116,12 +166,15 @@ public class PeerConnectionClient {
         // Initialize PeerConnectionFactory
         final String fieldTrials = PeerConnectionClientUtil.getFieldTrials(peerConnectionParameters);
         executor.execute(() -> {
-            Log.d(TAG, "Initialize WebRTC. Field trials: " + fieldTrials);
+            AsyncLog.d(TAG, "Initialize WebRTC. Field trials: %s", fieldTrials);
             PeerConnectionFactory.initialize(
                     PeerConnectionFactory.InitializationOptions.builder(appContext)
                             .setFieldTrials(fieldTrials)
                             .setEnableInternalTracer(true)
                             .createInitializationOptions());
+            if (peerConnectionParameters.tracing) {
+                startTraceCaptureInternal();
+            }
 
             if (factory != null) {
                 throw new IllegalStateException("PeerConnectionFactory has already been constructed");
@@ -132,7 +185,7 @@ public class PeerConnectionClient {
 
     public void createPeerConnection(final VideoSink localRender, final VideoCapturer videoCapturer, List<PeerConnection.IceServer> iceServers) {
         if (peerConnectionParameters == null) {
-            Log.e(TAG, "Creating peer connection without initializing factory.");
+            AsyncLog.e(TAG, "Creating peer connection without initializing factory.");
             return;
         }
         this.localRender = localRender;
@@ -143,8 +196,10 @@ public class PeerConnectionClient {
         }
         executor.execute(() -> {
             try {
+                final TraceCapture.Span span = TraceCapture.beginSpan("signaling", "createPeerConnection");
                 createMediaConstraintsInternal();
                 createPeerConnectionInternal();
+                span.end();
             } catch (Exception e) {
                 reportError("Failed to create peer connection: " + e.getMessage());
                 throw e;
@@ -152,10 +207,147 @@ public class PeerConnectionClient {
         });
     }
 
+    /**
+     * Replaces the ICE servers of the created PeerConnection. Call before createOffer so the
+     * candidates are gathered against them.
+     */
+    public void setIceServers(List<PeerConnection.IceServer> iceServers) {
+        executor.execute(() -> {
+            _iceServers.clear();
+            _iceServers.addAll(iceServers);
+            if (peerConnection == null || isError || rtcConfiguration == null) {
+                return;
+            }
+            // Only ICE fields may change after creation, so update the configuration it was created with.
+            PeerConnection.RTCConfiguration config = getRTCConfiguration();
+            rtcConfiguration.iceServers = config.iceServers;
+            rtcConfiguration.iceTransportsType = config.iceTransportsType;
+            if (!peerConnection.setConfiguration(rtcConfiguration)) {
+                AsyncLog.e(TAG, "Failed to set ICE servers");
+            }
+        });
+    }
+
+    /**
+     * Answers `offer` with an in-process receive-only PeerConnection instead of a WHIP server
+     * and measures the capture-to-decode latency of the received frames.
+     */
+    public void startLoopback(SessionDescription offer) {
+        executor.execute(() -> {
+            if (peerConnection == null || isError || factory == null || frameMarker == null) {
+                reportError("Loopback requires the loopback parameter.");
+                return;
+            }
+            loopbackReceiver = new LoopbackReceiver(factory, executor, frameMarker, new LoopbackReceiver.Callback() {
+                @Override
+                public void onAnswer(SessionDescription answer) {
+                    setRemoteDescription(answer);
+                }
+
+                @Override
+                public void onIceCandidate(IceCandidate candidate) {
+                    if (peerConnection != null) {
+                        peerConnection.addIceCandidate(candidate);
+                    }
+                }
+
+                @Override
+                public void onError(String description) {
+                    reportError(description);
+                }
+            });
+            if (!peerConnectionParameters.qualityReferencePath.isEmpty()) {
+                try {
+                    loopbackReceiver.setQualityScorer(new QualityScorer(
+                            new Y4mReader(new File(peerConnectionParameters.qualityReferencePath)), frameMarker,
+                            new File(appContext.getExternalFilesDir(null), PeerConnectionConstant.QUALITY_DIRECTORY)));
+                } catch (IOException e) {
+                    AsyncLog.w(TAG, "Quality scoring disabled: %s", e);
+                }
+            }
+            loopbackReceiver.answer(offer);
+        });
+    }
+
     public void close() {
         executor.execute(this::closeInternal);
     }
 
+    public void startRtcEventLog() {
+        executor.execute(() -> {
+            if (rtcEventLogRecorder != null) {
+                rtcEventLogRecorder.start("requested");
+            }
+        });
+    }
+
+    public void stopRtcEventLog() {
+        executor.execute(() -> {
+            if (rtcEventLogRecorder != null) {
+                rtcEventLogRecorder.stop();
+            }
+        });
+    }
+
+    /**
+     * Captures the internal trace merged with signaling spans for TRACE_CAPTURE_WINDOW_MS.
+     */
+    public void startTraceCapture() {
+        executor.execute(this::startTraceCaptureInternal);
+    }
+
+    /**
+     * Makes every video layer produce a key frame on its next frame, bypassing the key frame
+     * coalescing and minimum interval. Does nothing without key frame control.
+     */
+    public void requestKeyFrame() {
+        if (keyFrameManager != null) {
+            keyFrameManager.forceKeyFrame();
+        }
+    }
+
+    /**
+     * Starts the bandwidth estimation of the video at `kbps` instead of WebRTC's default. Takes
+     * effect with the next remote description.
+     */
+    public void setStartBitrate(int kbps) {
+        executor.execute(() -> startBitrateKbps = kbps);
+    }
+
+    /**
+     * Returns the bandwidth estimate sustained over the last minute, or 0 if the session was too
+     * short to tell.
+     */
+    public long getSustainedBandwidthBps() {
+        return bandwidthEstimateTracker.getSustainedBps();
+    }
+
+    private void startTraceCaptureInternal() {
+        TraceCapture.start(new File(appContext.getExternalFilesDir(null), PeerConnectionConstant.TRACE_CAPTURE_DIRECTORY),
+                PeerConnectionConstant.TRACE_CAPTURE_WINDOW_MS, PeerConnectionConstant.TRACE_CAPTURE_MAX_BYTES);
+    }
+
+    private void armRtcEventLog(String reason) {
+        if (rtcEventLogRecorder != null) {
+            rtcEventLogRecorder.arm(reason, PeerConnectionConstant.RTC_EVENT_LOG_ARM_DURATION_MS);
+        }
+    }
+
+    /**
+     * Returns the queue depth and wait/run time histograms of a lane of the PeerConnection thread.
+     */
+    public SessionExecutor.LaneMetrics getExecutorMetrics(SessionExecutor.Lane lane) {
+        return executor.getMetrics(lane);
+    }
+
+    /**
+     * Returns the hardware/software encoder chosen for each simulcast layer.
+     */
+    public List<SimulcastEncoderAllocator.Allocation> getEncoderAllocations() {
+        SimulcastEncoderAllocator allocator = encoderAllocator;
+        return allocator != null ? allocator.getAllocations() : new ArrayList<>();
+    }
+
     private boolean isVideoCallEnabled() {
         return peerConnectionParameters.videoCallEnabled && videoCapturer != null;
     }
@@ -167,20 +359,49 @@ public class PeerConnectionClient {
 
         // Create peer connection factory.
         if (options != null) {
-            Log.d(TAG, "Factory networkIgnoreMask option: " + options.networkIgnoreMask);
+            AsyncLog.d(TAG, "Factory networkIgnoreMask option: %d", options.networkIgnoreMask);
         }
 
+        final TraceCapture.Span span = TraceCapture.beginSpan("signaling", "createPeerConnectionFactory");
         final VideoDecoderFactory decoderFactory = new DefaultVideoDecoderFactory(rootEglBase.getEglBaseContext());
-        final VideoEncoderFactory encoderFactory = new DefaultVideoEncoderFactory(rootEglBase.getEglBaseContext(), false, true);
-        final SimulcastVideoEncoderFactory simulcastFactory = new SimulcastVideoEncoderFactory(encoderFactory);
+        encoderAllocator = new SimulcastEncoderAllocator(rootEglBase.getEglBaseContext(),
+                peerConnectionParameters.videoSimulcastEnabled ? PeerConnectionConstant.SIMULCAST_LAYER_COUNT : 1);
+        encoderAllocator.prepare(PeerConnectionClientUtil.getSdpVideoCodecName(peerConnectionParameters.videoCodec));
+        if (peerConnectionParameters.videoSharedEncoder) {
+            encoderAllocator.setHub(EncodingHub.getDefault());
+        }
+        if (peerConnectionParameters.keyFrameMinIntervalMs > 0 || peerConnectionParameters.keyFrameGopMs > 0) {
+            keyFrameManager = new KeyFrameManager(PeerConnectionConstant.KEY_FRAME_COALESCE_WINDOW_MS,
+                    peerConnectionParameters.keyFrameMinIntervalMs, peerConnectionParameters.keyFrameGopMs);
+            encoderAllocator.setKeyFrameManager(keyFrameManager);
+        }
+        if (peerConnectionParameters.encodedStreamDump) {
+            encodedStreamTee = new EncodedStreamTee(new File(appContext.getExternalFilesDir(null), PeerConnectionConstant.ENCODED_STREAM_DIRECTORY),
+                    PeerConnectionConstant.ENCODED_STREAM_QUEUE_CAPACITY, PeerConnectionConstant.ENCODED_STREAM_MAX_BYTES);
+            encoderAllocator.setTee(encodedStreamTee);
+        }
+        final VideoEncoderFactory encoderFactory = encoderAllocator;
+        VideoEncoderFactory videoEncoderFactory = new SimulcastVideoEncoderFactory(encoderFactory);
+        if (!peerConnectionParameters.passthroughPath.isEmpty()) {
+            // Publish the pre-encoded file; the file is indexed once and memory-mapped.
+            try {
+                int fps = peerConnectionParameters.videoFps > 0 ? peerConnectionParameters.videoFps : PeerConnectionConstant.DEFAULT_VIDEO_FPS;
+                passthroughFactory = new PassthroughEncoderFactory(EncodedFileIndex.open(new File(peerConnectionParameters.passthroughPath), fps),
+                        encoderAllocator.getSupportedCodecs());
+                videoEncoderFactory = passthroughFactory;
+            } catch (IOException e) {
+                reportError("Failed to open passthrough source: " + e.getMessage());
+            }
+        }
 
         factory = PeerConnectionFactory.builder()
                 .setOptions(options)
                 .setAudioDeviceModule(adm)
-                .setVideoEncoderFactory(simulcastFactory) //.setVideoEncoderFactory(encoderFactory)
+                .setVideoEncoderFactory(videoEncoderFactory) //.setVideoEncoderFactory(encoderFactory)
                 .setAudioEncoderFactoryFactory(new BuiltinAudioEncoderFactoryFactory())
                 .createPeerConnectionFactory();
-        Log.d(TAG, "Peer connection factory created.");
+        span.end();
+        AsyncLog.d(TAG, "Peer connection factory created.");
     }
 
     AudioDeviceModule createJavaAudioDevice() {
@@ -189,20 +410,20 @@ public class PeerConnectionClient {
         AudioTrackErrorCallback audioTrackErrorCallback = new AudioTrackErrorCallback() {
             @Override
             public void onWebRtcAudioTrackInitError(String errorMessage) {
-                Log.e(TAG, "onWebRtcAudioTrackInitError: " + errorMessage);
+                AsyncLog.e(TAG, "onWebRtcAudioTrackInitError: %s", errorMessage);
                 reportError(errorMessage);
             }
 
             @Override
             public void onWebRtcAudioTrackStartError(
                     JavaAudioDeviceModule.AudioTrackStartErrorCode errorCode, String errorMessage) {
-                Log.e(TAG, "onWebRtcAudioTrackStartError: " + errorCode + ". " + errorMessage);
+                AsyncLog.e(TAG, "onWebRtcAudioTrackStartError: %s. %s", errorCode, errorMessage);
                 reportError(errorMessage);
             }
 
             @Override
             public void onWebRtcAudioTrackError(String errorMessage) {
-                Log.e(TAG, "onWebRtcAudioTrackError: " + errorMessage);
+                AsyncLog.e(TAG, "onWebRtcAudioTrackError: %s", errorMessage);
                 reportError(errorMessage);
             }
         };
@@ -211,12 +432,12 @@ public class PeerConnectionClient {
         AudioTrackStateCallback audioTrackStateCallback = new AudioTrackStateCallback() {
             @Override
             public void onWebRtcAudioTrackStart() {
-                Log.i(TAG, "Audio playout starts");
+                AsyncLog.i(TAG, "Audio playout starts");
             }
 
             @Override
             public void onWebRtcAudioTrackStop() {
-                Log.i(TAG, "Audio playout stops");
+                AsyncLog.i(TAG, "Audio playout stops");
             }
         };
 
@@ -234,7 +455,7 @@ public class PeerConnectionClient {
         audioConstraints = new MediaConstraints();
         // added for audio performance measurements
         if (peerConnectionParameters.noAudioProcessing) {
-            Log.d(TAG, "Disabling audio processing");
+            AsyncLog.d(TAG, "Disabling audio processing");
             audioConstraints.mandatory.add(
                     new MediaConstraints.KeyValuePair(PeerConnectionConstant.AUDIO_ECHO_CANCELLATION_CONSTRAINT, "false"));
             audioConstraints.mandatory.add(
@@ -249,7 +470,7 @@ public class PeerConnectionClient {
         sdpMediaConstraints = new MediaConstraints();
         sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveAudio", "false"));
         sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair("OfferToReceiveVideo", "false"));
-        sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair("googNumSimulcastLayers", "3"));
+        sdpMediaConstraints.mandatory.add(new MediaConstraints.KeyValuePair("googNumSimulcastLayers", String.valueOf(PeerConnectionConstant.SIMULCAST_LAYER_COUNT)));
 
     }
 
@@ -257,8 +478,14 @@ public class PeerConnectionClient {
         PeerConnection.RTCConfiguration rtcConfig = new PeerConnection.RTCConfiguration(_iceServers);
 
         if (!_iceServers.isEmpty()) {
-            Log.d(TAG, "Enable tcpCandidatePolicy");
-            rtcConfig.iceTransportsType = PeerConnection.IceTransportsType.RELAY;
+            AsyncLog.d(TAG, "Enable tcpCandidatePolicy, ICE policy: %s", peerConnectionParameters.iceTransportPolicy);
+            if (PeerConnectionConstant.ICE_POLICY_RELAY.equals(peerConnectionParameters.iceTransportPolicy)) {
+                rtcConfig.iceTransportsType = PeerConnection.IceTransportsType.RELAY;
+            } else {
+                // Gather host, srflx and relay candidates together and let ICE race them. Candidate
+                // priorities favour the direct paths; relay stays available as the fallback.
+                rtcConfig.iceTransportsType = PeerConnection.IceTransportsType.ALL;
+            }
             rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.ENABLED;
         } else {
             rtcConfig.tcpCandidatePolicy = PeerConnection.TcpCandidatePolicy.DISABLED;
@@ -275,24 +502,40 @@ public class PeerConnectionClient {
     }
 
     private void createPeerConnectionInternal() {
-        Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
+        // Native logging goes straight to logcat from every WebRTC thread; only turn it on when asked.
+        if (!nativeLoggingEnabled && AsyncLog.isLoggable(PeerConnectionConstant.NATIVE_LOG_COMPONENT, AsyncLog.Level.INFO)) {
+            Logging.enableLogToDebugOutput(Logging.Severity.LS_INFO);
+            nativeLoggingEnabled = true;
+        }
 
         if (factory == null || isError) {
-            Log.e(TAG, "Peerconnection factory is not created");
+            AsyncLog.e(TAG, "Peerconnection factory is not created");
             return;
         }
 
-        peerConnection = factory.createPeerConnection(getRTCConfiguration(), pcObserver);
+        rtcConfiguration = getRTCConfiguration();
+        peerConnection = factory.createPeerConnection(rtcConfiguration, pcObserver);
         if (peerConnection == null) {
-            Log.e(TAG, "Peerconnection is not created");
+            AsyncLog.e(TAG, "Peerconnection is not created");
             return;
         }
 
         isInitiator = false;
 
+        File rtcEventLogDirectory = new File(appContext.getExternalFilesDir(null), PeerConnectionConstant.RTC_EVENT_LOG_DIRECTORY);
+        rtcEventLogRecorder = new RtcEventLogRecorder(rtcEventLogDirectory, executor, peerConnection,
+                PeerConnectionConstant.RTC_EVENT_LOG_MAX_FILE_BYTES, PeerConnectionConstant.RTC_EVENT_LOG_MAX_FILES,
+                PeerConnectionConstant.RTC_EVENT_LOG_ROTATE_INTERVAL_MS);
+        if (peerConnectionParameters.enableRtcEventLog) {
+            rtcEventLogRecorder.start("enabled by parameters");
+        }
+
 //        AudioTrack audioTrack = createAudioTrack();
 //        peerConnection.addTransceiver(audioTrack);
 
+        if (passthroughFactory != null && videoCapturer == null) {
+            videoCapturer = passthroughFactory.createCapturer();
+        }
         if (isVideoCallEnabled()) {
             VideoTrack videoTrack = createVideoTrack(videoCapturer);
 
@@ -301,7 +544,23 @@ public class PeerConnectionClient {
             //---------------------------------
             RtpTransceiver.RtpTransceiverInit transceiverInit = null;
 
-            if (peerConnectionParameters.videoSimulcastEnabled) {
+            //---------------------------------
+            // SVC (VP9/AV1)
+            //---------------------------------
+            // A passthrough file has a single layer.
+            String scalabilityMode = passthroughFactory == null ? selectScalabilityMode() : null;
+
+            if (scalabilityMode != null) {
+                if (peerConnectionParameters.videoSimulcastEnabled) {
+                    AsyncLog.w(TAG, "Scalability mode %s replaces simulcast", scalabilityMode);
+                }
+                List<String> streamIds = new ArrayList<>();
+                List<RtpParameters.Encoding> encodings = new ArrayList<>();
+                RtpParameters.Encoding encoding = new RtpParameters.Encoding(null, true, 1.0);
+                encoding.scalabilityMode = scalabilityMode;
+                encodings.add(encoding);
+                transceiverInit = new RtpTransceiver.RtpTransceiverInit(RtpTransceiver.RtpTransceiverDirection.SEND_ONLY, streamIds, encodings);
+            } else if (peerConnectionParameters.videoSimulcastEnabled && passthroughFactory == null) {
                 List<String> streamIds = new ArrayList<>();
                 List<RtpParameters.Encoding> encodings = new ArrayList<>();
                 RtpParameters.Encoding encodingLo = new RtpParameters.Encoding("low", true, 4.0);
@@ -326,9 +585,42 @@ public class PeerConnectionClient {
             // Added Transceiver
             RtpTransceiver transceiver = peerConnection.addTransceiver(videoTrack, transceiverInit);
             if (transceiver == null || transceiver.getSender() == null) {
-                Log.e(TAG, "RtpTransceiver is not created");
+                AsyncLog.e(TAG, "RtpTransceiver is not created");
                 return;
             }
+            localVideoSender = transceiver.getSender();
+            RtpParameters senderParameters = localVideoSender.getParameters();
+            baseEncodings = senderParameters.encodings;
+            baseDegradationPreference = senderParameters.degradationPreference;
+
+            //---------------------------------
+            // CPU Governor
+            //---------------------------------
+            List<EncodeGovernor.Step> ladder = EncodeGovernor.Step.parseLadder(peerConnectionParameters.cpuGovernorLadder);
+            if (!ladder.isEmpty()) {
+                AsyncLog.d(TAG, "Enable encode governor: %s", ladder);
+                encodeGovernor = new EncodeGovernor(ladder, (oldLevel, newLevel, step, sample) -> {
+                    AsyncLog.i(TAG, "Encode governor %s %d -> %d (%s) %s", newLevel > oldLevel ? "down" : "up", oldLevel, newLevel, step, sample);
+                    SessionTimeline.recordGovernor(oldLevel, newLevel, step, sample);
+                    applySenderDegradation();
+                });
+            }
+
+            //---------------------------------
+            // Thermal Governor
+            //---------------------------------
+            List<EncodeGovernor.Step> thermalLadder = ThermalGovernor.parseLadder(peerConnectionParameters.thermalGovernorLadder);
+            if (!thermalLadder.isEmpty()) {
+                AsyncLog.d(TAG, "Enable thermal governor: %s", thermalLadder);
+                thermalGovernor = new ThermalGovernor(thermalLadder, (oldLevel, newLevel, step, sample) -> {
+                    AsyncLog.i(TAG, "Thermal governor %s %d -> %d (%s) %s", newLevel > oldLevel ? "down" : "up", oldLevel, newLevel, step, sample);
+                    SessionTimeline.recordThermal(oldLevel, newLevel, step, sample);
+                    applySenderDegradation();
+                });
+                // Status changes are applied right away, on the lane that runs the governors.
+                thermalSampler = new ThermalSampler(appContext, PeerConnectionConstant.THERMAL_FORECAST_SECONDS,
+                        runnable -> executor.execute(SessionExecutor.Lane.BACKGROUND, runnable), this::updateThermalGovernor);
+            }
 
             //---------------------------------
             // Get Available Codec List
@@ -338,7 +630,7 @@ public class PeerConnectionClient {
                 if (info == null || !info.isEncoder()) {
                     continue;
                 }
-                Log.e(TAG, String.format("%s / %s / hw(%s)", info.getName(), info.getCanonicalName(), info.isHardwareAccelerated() ? "true" : "false"));
+                AsyncLog.d(TAG, "%s / %s / hw(%s)", info.getName(), info.getCanonicalName(), info.isHardwareAccelerated());
             }
 
             //---------------------------------
@@ -362,26 +654,88 @@ public class PeerConnectionClient {
                     }
                 }
             }
+            PeerConnectionClientUtil.filterFecCodecs(codecPreference, peerConnectionParameters.videoFecMode);
             transceiver.setCodecPreferences(codecPreference);
+
+            //---------------------------------
+            // H265 Profile/Tier/Level
+            //---------------------------------
+            if (peerConnectionParameters.videoCodec.equals(PeerConnectionConstant.VIDEO_CODEC_H265)) {
+                h265Capability = H265Capability.query();
+                if (h265Capability != null && !h265Capability.supportsPictureSize(peerConnectionParameters.videoWidth, peerConnectionParameters.videoHeight)) {
+                    AsyncLog.w(TAG, "Capture size exceeds the highest H265 level: %s", h265Capability);
+                }
+            }
         } // isVideoCallEnabled
 
-        Log.d(TAG, "Peer connection created.");
+        AsyncLog.d(TAG, "Peer connection created.");
+    }
+
+    @Nullable
+    private String selectScalabilityMode() {
+        final String requested = peerConnectionParameters.videoScalabilityMode;
+        final String codecName = PeerConnectionClientUtil.getSdpVideoCodecName(peerConnectionParameters.videoCodec);
+        if (requested == null || requested.isEmpty() || encoderAllocator == null) {
+            return null;
+        }
+        if (!ScalabilityModeSelector.isSvcCodec(codecName)) {
+            AsyncLog.w(TAG, "Scalability mode %s is not supported for %s", requested, codecName);
+            return null;
+        }
+        // MediaCodec encoders do not produce SVC, so the mode comes from the software encoder.
+        VideoCodecInfo codecInfo = encoderAllocator.findSoftwareCodec(codecName);
+        if (codecInfo == null) {
+            AsyncLog.w(TAG, "No software %s encoder for scalability mode %s", codecName, requested);
+            return null;
+        }
+        List<String> supported = ScalabilityModeSelector.toModeNames(codecInfo.scalabilityModes);
+        String mode = ScalabilityModeSelector.select(requested, supported);
+        AsyncLog.d(TAG, "Scalability mode requested: %s, supported: %s, selected: %s", requested, supported, mode);
+        if (mode != null) {
+            encoderAllocator.setPreferSoftware(true);
+        }
+        return mode;
     }
 
     private void closeInternal() {
-        Log.d(TAG, "Closing peer connection.");
+        AsyncLog.d(TAG, "Closing peer connection.");
         statsTimer.cancel();
-
+        // Stats and thermal tasks already queued on the background lane run after this; drop
+        // what they would touch so they return before reaching the disposed sender.
+        encodeGovernor = null;
+        thermalGovernor = null;
+        localVideoSender = null;
+        baseEncodings = null;
+
+        // Live objects are logged as toString() snapshots taken here; the drain thread formats later.
+        if (AsyncLog.isLoggable(TAG, AsyncLog.Level.INFO)) {
+            AsyncLog.i(TAG, "ICE race (%s): %s", peerConnectionParameters.iceTransportPolicy, iceRaceRecorder.toString());
+        }
+        if (thermalSampler != null) {
+            thermalSampler.release();
+            thermalSampler = null;
+        }
+        if (loopbackReceiver != null) {
+            if (AsyncLog.isLoggable(TAG, AsyncLog.Level.INFO)) {
+                AsyncLog.i(TAG, "Loopback: %s", loopbackReceiver.toString());
+            }
+            loopbackReceiver.dispose();
+            loopbackReceiver = null;
+        }
+        if (rtcEventLogRecorder != null) {
+            rtcEventLogRecorder.release();
+            rtcEventLogRecorder = null;
+        }
         if (peerConnection != null) {
             peerConnection.dispose();
             peerConnection = null;
         }
-        Log.d(TAG, "Closing audio source.");
+        AsyncLog.d(TAG, "Closing audio source.");
         if (audioSource != null) {
             audioSource.dispose();
             audioSource = null;
         }
-        Log.d(TAG, "Stopping capture.");
+        AsyncLog.d(TAG, "Stopping capture.");
         if (videoCapturer != null) {
             try {
                 videoCapturer.stopCapture();
@@ -392,7 +746,7 @@ public class PeerConnectionClient {
             videoCapturer.dispose();
             videoCapturer = null;
         }
-        Log.d(TAG, "Closing video source.");
+        AsyncLog.d(TAG, "Closing video source.");
         if (videoSource != null) {
             videoSource.dispose();
             videoSource = null;
@@ -402,15 +756,34 @@ public class PeerConnectionClient {
             surfaceTextureHelper = null;
         }
         localRender = null;
-        Log.d(TAG, "Closing peer connection factory.");
+        AsyncLog.d(TAG, "Closing peer connection factory.");
         if (factory != null) {
             factory.dispose();
             factory = null;
         }
+        if (encodedStreamTee != null) {
+            // The encoders are released with the factory, so nothing is offered any more.
+            encodedStreamTee.release();
+            encodedStreamTee = null;
+        }
+        if (memoryWatchdog != null) {
+            // Every buffer should be released once the source and the factory are gone.
+            memoryWatchdog.release();
+            memoryWatchdog = null;
+        }
         rootEglBase.release();
-        Log.d(TAG, "Closing peer connection done.");
+        AsyncLog.d(TAG, "Closing peer connection done.");
+        if (AsyncLog.isLoggable(TAG, AsyncLog.Level.INFO)) {
+            if (peerConnectionParameters.videoSharedEncoder) {
+                AsyncLog.i(TAG, "Shared encoders: %s", EncodingHub.getDefault().toString());
+            }
+            if (keyFrameManager != null) {
+                AsyncLog.i(TAG, "Key frames: %s", keyFrameManager.toString());
+            }
+            AsyncLog.i(TAG, "Executor metrics:\n%s", executor.toString());
+        }
         events.onPeerConnectionClosed();
-        PeerConnectionFactory.stopInternalTracingCapture();
+        TraceCapture.stop();
         PeerConnectionFactory.shutdownInternalTracer();
     }
 
@@ -422,21 +795,171 @@ public class PeerConnectionClient {
             @Override
             public void onStatsDelivered(RTCStatsReport report) {
                 events.onPeerConnectionStatsReady(report);
+                executor.execute(SessionExecutor.Lane.BACKGROUND, () -> {
+                    if (peerConnection == null) {
+                        // Closed while the report was queued.
+                        return;
+                    }
+                    iceRaceRecorder.update(report);
+                    if (connected) {
+                        bandwidthEstimateTracker.update(report);
+                    }
+                    List<OutboundLayerStats.Layer> layers = outboundLayerStats.update(report);
+                    AsyncLog.d(TAG, "Outbound layers: %s", layers);
+                    SessionTimeline.recordLayers(layers);
+                    if (connected && isStalled(layers)) {
+                        armRtcEventLog("video stalled");
+                    }
+                    ProtectionStats.Sample protection = protectionStats.update(report);
+                    if (protection != null) {
+                        AsyncLog.d(TAG, "Protection (%s): %s", peerConnectionParameters.videoFecMode, protection);
+                    }
+                    updateEncodeGovernor(report);
+                    updateThermalGovernor();
+                    if (AsyncLog.isLoggable(TAG, AsyncLog.Level.DEBUG)) {
+                        if (keyFrameManager != null) {
+                            AsyncLog.d(TAG, "Key frames: %s", keyFrameManager.toString());
+                        }
+                        if (loopbackReceiver != null) {
+                            AsyncLog.d(TAG, "Loopback: %s", loopbackReceiver.toString());
+                        }
+                    }
+                });
             }
         });
     }
 
+    private static boolean isStalled(List<OutboundLayerStats.Layer> layers) {
+        if (layers.isEmpty()) {
+            return false;
+        }
+        for (OutboundLayerStats.Layer layer : layers) {
+            if (layer.bitrateBps > 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void updateEncodeGovernor(RTCStatsReport report) {
+        if (encodeGovernor == null || peerConnection == null || isError) {
+            return;
+        }
+        final long nowMs = SystemClock.elapsedRealtime();
+        final double elapsedSec = (nowMs - lastGovernorSampleMs) / 1000.0;
+        double encodeLoad = 0;
+        String qualityLimitationReason = "none";
+        for (RTCStats stats : report.getStatsMap().values()) {
+            if (!"outbound-rtp".equals(stats.getType()) || !"video".equals(stats.getMembers().get("kind"))) {
+                continue;
+            }
+            Object totalEncodeTime = stats.getMembers().get("totalEncodeTime");
+            if (totalEncodeTime instanceof Double) {
+                Double last = lastTotalEncodeTime.put(stats.getId(), (Double) totalEncodeTime);
+                if (last != null && elapsedSec > 0) {
+                    encodeLoad = Math.max(encodeLoad, ((Double) totalEncodeTime - last) / elapsedSec);
+                }
+            }
+            Object reason = stats.getMembers().get("qualityLimitationReason");
+            if (reason != null && !"cpu".equals(qualityLimitationReason) && !"none".equals(reason)) {
+                qualityLimitationReason = reason.toString();
+            }
+        }
+        lastGovernorSampleMs = nowMs;
+
+        cpuLoadSampler.sample();
+        encodeGovernor.update(new EncodeGovernor.Sample(nowMs, cpuLoadSampler.getProcessLoad(),
+                cpuLoadSampler.getMaxCoreLoad(), encodeLoad, qualityLimitationReason));
+    }
+
+    private void updateThermalGovernor() {
+        // Both are dropped at close, while status changes may still be queued.
+        if (thermalGovernor == null || thermalSampler == null || peerConnection == null || isError) {
+            return;
+        }
+        thermalGovernor.update(thermalSampler.sample());
+    }
+
+    private static int countSteps(@Nullable List<EncodeGovernor.Step> steps) {
+        int count = 0;
+        if (steps != null) {
+            for (EncodeGovernor.Step step : steps) {
+                if (step == EncodeGovernor.Step.LAYERS) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Rebuilds the sender encodings from the ones configured at creation and the ladder steps
+     * currently applied by either governor. A step applied by both is applied once.
+     * Each LAYERS level deactivates the next highest layer, so a ladder lists "layers" once per
+     * layer it may drop; the lowest layer is always kept and a single encoding skips the step.
+     */
+    private void applySenderDegradation() {
+        if (peerConnection == null || localVideoSender == null || baseEncodings == null) {
+            return;
+        }
+        final List<EncodeGovernor.Step> steps = new ArrayList<>();
+        if (encodeGovernor != null) {
+            steps.addAll(encodeGovernor.getActiveSteps());
+        }
+        if (thermalGovernor != null) {
+            steps.addAll(thermalGovernor.getActiveSteps());
+        }
+
+        RtpParameters parameters = localVideoSender.getParameters();
+        if (parameters.encodings.size() != baseEncodings.size()) {
+            AsyncLog.w(TAG, "RtpParameters changed since creation, skip degradation.");
+            return;
+        }
+        final int defaultFps = peerConnectionParameters.videoFps > 0 ? peerConnectionParameters.videoFps : PeerConnectionConstant.DEFAULT_VIDEO_FPS;
+        // Encodings are ordered from the lowest to the highest layer.
+        final int layerSteps = Math.max(countSteps(encodeGovernor != null ? encodeGovernor.getActiveSteps() : null),
+                countSteps(thermalGovernor != null ? thermalGovernor.getActiveSteps() : null));
+        final int activeLayers = Math.max(1, baseEncodings.size() - layerSteps);
+        if (layerSteps > 0 && baseEncodings.size() - layerSteps < 1) {
+            AsyncLog.d(TAG, "Layers step skipped, %d of %d encodings left.", activeLayers, baseEncodings.size());
+        }
+        for (int i = 0; i < parameters.encodings.size(); i++) {
+            RtpParameters.Encoding base = baseEncodings.get(i);
+            RtpParameters.Encoding encoding = parameters.encodings.get(i);
+            int baseFps = base.maxFramerate != null ? base.maxFramerate : defaultFps;
+            double baseScale = base.scaleResolutionDownBy != null ? base.scaleResolutionDownBy : 1.0;
+            encoding.maxFramerate = steps.contains(EncodeGovernor.Step.FRAMERATE)
+                    ? Math.max(PeerConnectionConstant.MIN_DEGRADED_FPS, baseFps / 2) : base.maxFramerate;
+            encoding.scaleResolutionDownBy = steps.contains(EncodeGovernor.Step.RESOLUTION)
+                    ? baseScale * 2 : base.scaleResolutionDownBy;
+            encoding.active = base.active && i < activeLayers;
+        }
+        if (encoderAllocator != null && !parameters.encodings.isEmpty()) {
+            // The encoders of the halved layers are re-initialized and must keep their layer.
+            Double topScale = parameters.encodings.get(parameters.encodings.size() - 1).scaleResolutionDownBy;
+            encoderAllocator.setTopLayerScale(topScale != null ? topScale : 1.0);
+        }
+        // WebRTC exposes no codec complexity knob, so the last step lets its own adaptation trade
+        // resolution and framerate together.
+        parameters.degradationPreference = steps.contains(EncodeGovernor.Step.COMPLEXITY)
+                ? RtpParameters.DegradationPreference.BALANCED : baseDegradationPreference;
+
+        if (!localVideoSender.setParameters(parameters)) {
+            AsyncLog.e(TAG, "RtpSender.setParameters failed.");
+        }
+    }
+
     public void enableStatsEvents(boolean enable, int periodMs) {
         if (enable) {
             try {
                 statsTimer.schedule(new TimerTask() {
                     @Override
                     public void run() {
-                        executor.execute(() -> getStats());
+                        executor.execute(SessionExecutor.Lane.BACKGROUND, () -> getStats());
                     }
                 }, 0, periodMs);
             } catch (Exception e) {
-                Log.e(TAG, "Can not schedule statistics timer", e);
+                AsyncLog.e(TAG, "Can not schedule statistics timer", e);
             }
         } else {
             statsTimer.cancel();
@@ -447,8 +970,10 @@ public class PeerConnectionClient {
         executor.execute(() -> {
             if (peerConnection != null && !isError) {
                 isInitiator = true;
+                sdpSpan = TraceCapture.beginSpan("sdp", "createOffer");
+                iceRaceRecorder.start();
                 peerConnection.createOffer(sdpObserver, sdpMediaConstraints);
-                Log.d(TAG, "PC create OFFSER\n" + sdpMediaConstraints.toString());
+                AsyncLog.d(TAG, "PC create OFFSER\n%s", sdpMediaConstraints);
             }
         });
     }
@@ -459,16 +984,29 @@ public class PeerConnectionClient {
                 return;
             }
             String sdp = desc.description;
-            Log.d(TAG, "Set remote SDP.\n" + sdp);
+            if (startBitrateKbps > 0) {
+                // The sender takes the start bitrate from the codec parameters of the remote description.
+                sdp = PeerConnectionClientUtil.setStartBitrate(PeerConnectionClientUtil.getSdpVideoCodecName(peerConnectionParameters.videoCodec), true, sdp, startBitrateKbps);
+            }
+            if (peerConnectionParameters.videoAbsCaptureTime) {
+                AsyncLog.i(TAG, "abs-capture-time extension ID %d (-1 if declined)",
+                        PeerConnectionClientUtil.getHeaderExtensionId(sdp, PeerConnectionConstant.ABS_CAPTURE_TIME_URI, false));
+            }
+            AsyncLog.v(TAG, "Set remote SDP.\n%s", sdp);
             SessionDescription sdpRemote = new SessionDescription(desc.type, sdp);
+            sdpSpan = TraceCapture.beginSpan("sdp", "setRemoteDescription");
             peerConnection.setRemoteDescription(sdpObserver, sdpRemote);
+            if (startBitrateKbps > 0) {
+                // Also seeds the estimator for codecs the munger does not find in the answer.
+                peerConnection.setBitrate(null, startBitrateKbps * PeerConnectionConstant.BPS_IN_KBPS, null);
+            }
         });
     }
 
     public void stopVideoSource() {
         executor.execute(() -> {
             if (videoCapturer != null && !videoCapturerStopped) {
-                Log.d(TAG, "Stop video source.");
+                AsyncLog.d(TAG, "Stop video source.");
                 try {
                     videoCapturer.stopCapture();
                 } catch (InterruptedException e) {
@@ -479,7 +1017,7 @@ public class PeerConnectionClient {
     }
 
     private void reportError(final String errorMessage) {
-        Log.e(TAG, "Peerconnection error: " + errorMessage);
+        AsyncLog.e(TAG, "Peerconnection error: %s", errorMessage);
         executor.execute(() -> {
             if (!isError) {
                 events.onPeerConnectionError(errorMessage);
@@ -498,7 +1036,9 @@ public class PeerConnectionClient {
 
     @Nullable
     private VideoTrack createVideoTrack(VideoCapturer capturer) {
-        surfaceTextureHelper = SurfaceTextureHelper.create("CaptureThread", rootEglBase.getEglBaseContext());
+        // The abs-capture-time of a frame is its timestamp on the WebRTC clock, so camera
+        // timestamps (which may run on the sensor clock) are aligned to it.
+        surfaceTextureHelper = SurfaceTextureHelper.create("CaptureThread", rootEglBase.getEglBaseContext(), peerConnectionParameters.videoAbsCaptureTime);
         videoSource = factory.createVideoSource(false);
 
         int videoWidth = peerConnectionParameters.videoWidth;
@@ -516,8 +1056,25 @@ public class PeerConnectionClient {
         }
 
         Logging.d(TAG, "Capturing format: " + videoWidth + "x" + videoHeight + "@" + videoFps);
+        if (encoderAllocator != null) {
+            encoderAllocator.setCaptureSize(videoWidth, videoHeight);
+        }
 
-        capturer.initialize(surfaceTextureHelper, appContext, videoSource.getCapturerObserver());
+        CapturerObserver capturerObserver = videoSource.getCapturerObserver();
+        if (peerConnectionParameters.loopback) {
+            // Mark the frames so the loopback receiver can match them to their capture time.
+            frameMarker = new FrameMarker();
+            capturerObserver = frameMarker.wrap(capturerObserver);
+        }
+        if (peerConnectionParameters.memoryWatchdog) {
+            FrameBufferTracker frameBufferTracker = new FrameBufferTracker();
+            capturerObserver = frameBufferTracker.wrap(capturerObserver, capturer.getClass().getSimpleName());
+            memoryWatchdog = new MemoryWatchdog(new File(appContext.getExternalFilesDir(null), PeerConnectionConstant.MEMORY_DUMP_DIRECTORY),
+                    frameBufferTracker, PeerConnectionConstant.MEMORY_WATCHDOG_NATIVE_GROWTH_BYTES,
+                    PeerConnectionConstant.MEMORY_WATCHDOG_JAVA_HEAP_FRACTION, PeerConnectionConstant.MEMORY_WATCHDOG_BUFFER_LEAK_AGE_MS);
+            memoryWatchdog.start(PeerConnectionConstant.MEMORY_WATCHDOG_INTERVAL_MS);
+        }
+        capturer.initialize(surfaceTextureHelper, appContext, capturerObserver);
         capturer.startCapture(videoWidth, videoHeight, videoFps);
 
         localVideoTrack = factory.createVideoTrack(PeerConnectionConstant.VIDEO_TRACK_ID, videoSource);
@@ -529,32 +1086,44 @@ public class PeerConnectionClient {
     private class PCObserver implements PeerConnection.Observer {
         @Override
         public void onIceCandidate(final IceCandidate candidate) {
-            executor.execute(() -> events.onIceCandidate(candidate));
+            executor.execute(SessionExecutor.Lane.OBSERVER, () -> {
+                iceRaceRecorder.onCandidateGathered(candidate);
+                if (loopbackReceiver != null) {
+                    loopbackReceiver.addRemoteIceCandidate(candidate);
+                }
+                events.onIceCandidate(candidate);
+            });
         }
 
         @Override
         public void onIceCandidateError(final IceCandidateErrorEvent event) {
-            Log.d(TAG, "IceCandidateError address: " + event.address + ", port: " + event.port + ", url: "
-                    + event.url + ", errorCode: " + event.errorCode + ", errorText: " + event.errorText);
+            AsyncLog.d(TAG, "IceCandidateError address: %s, port: %d, url: %s, errorCode: %d, errorText: %s",
+                    event.address, event.port, event.url, event.errorCode, event.errorText);
         }
 
         @Override
         public void onIceCandidatesRemoved(final IceCandidate[] candidates) {
-            executor.execute(() -> events.onIceCandidatesRemoved(candidates));
+            executor.execute(SessionExecutor.Lane.OBSERVER, () -> events.onIceCandidatesRemoved(candidates));
         }
 
         @Override
         public void onSignalingChange(PeerConnection.SignalingState newState) {
-            Log.d(TAG, "SignalingState: " + newState);
+            AsyncLog.d(TAG, "SignalingState: %s", newState);
         }
 
         @Override
         public void onIceConnectionChange(final PeerConnection.IceConnectionState newState) {
             executor.execute(() -> {
-                Log.d(TAG, "IceConnectionState: " + newState);
+                AsyncLog.d(TAG, "IceConnectionState: %s", newState);
+                TraceCapture.instant("ice", "IceConnectionState " + newState);
+                SessionTimeline.recordIceState(newState);
                 if (newState == IceConnectionState.CONNECTED) {
+                    if (AsyncLog.isLoggable(TAG, AsyncLog.Level.INFO)) {
+                        AsyncLog.i(TAG, "ICE connected (%s): %s", peerConnectionParameters.iceTransportPolicy, iceRaceRecorder.toString());
+                    }
                     events.onIceConnected();
                 } else if (newState == IceConnectionState.DISCONNECTED) {
+                    armRtcEventLog("ICE disconnected");
                     events.onIceDisconnected();
                 } else if (newState == IceConnectionState.FAILED) {
                     reportError("ICE connection failed.");
@@ -565,10 +1134,14 @@ public class PeerConnectionClient {
         @Override
         public void onConnectionChange(final PeerConnection.PeerConnectionState newState) {
             executor.execute(() -> {
-                Log.d(TAG, "PeerConnectionState: " + newState);
+                AsyncLog.d(TAG, "PeerConnectionState: %s", newState);
+                TraceCapture.instant("signaling", "PeerConnectionState " + newState);
+                SessionTimeline.recordConnectionState(newState);
+                connected = newState == PeerConnectionState.CONNECTED;
                 if (newState == PeerConnectionState.CONNECTED) {
                     events.onConnected();
                 } else if (newState == PeerConnectionState.DISCONNECTED) {
+                    armRtcEventLog("DTLS disconnected");
                     events.onDisconnected();
                 } else if (newState == PeerConnectionState.FAILED) {
                     reportError("DTLS connection failed.");
@@ -578,17 +1151,18 @@ public class PeerConnectionClient {
 
         @Override
         public void onIceGatheringChange(PeerConnection.IceGatheringState newState) {
-            Log.d(TAG, "IceGatheringState: " + newState);
+            AsyncLog.d(TAG, "IceGatheringState: %s", newState);
         }
 
         @Override
         public void onIceConnectionReceivingChange(boolean receiving) {
-            Log.d(TAG, "IceConnectionReceiving changed to " + receiving);
+            AsyncLog.d(TAG, "IceConnectionReceiving changed to %s", receiving);
         }
 
         @Override
         public void onSelectedCandidatePairChanged(CandidatePairChangeEvent event) {
-            Log.d(TAG, "Selected candidate pair changed because: " + event);
+            AsyncLog.d(TAG, "Selected candidate pair changed because: %s", event);
+            executor.execute(() -> iceRaceRecorder.onSelectedPairChanged(event.local));
         }
 
         @Override
@@ -601,7 +1175,7 @@ public class PeerConnectionClient {
 
         @Override
         public void onDataChannel(final DataChannel dc) {
-            Log.d(TAG, "New Data channel " + dc.label());
+            AsyncLog.d(TAG, "New Data channel %s", dc.label());
         }
 
         @Override
@@ -625,13 +1199,21 @@ public class PeerConnectionClient {
                 reportError("Multiple SDP create.");
                 return;
             }
+            sdpSpan.end();
             String sdp = desc.description;
+            if (h265Capability != null) {
+                sdp = PeerConnectionClientUtil.setH265ProfileTierLevel(sdp, h265Capability);
+            }
+            if (peerConnectionParameters.videoAbsCaptureTime) {
+                sdp = PeerConnectionClientUtil.addHeaderExtension(sdp, PeerConnectionConstant.ABS_CAPTURE_TIME_URI, false);
+            }
 
             final SessionDescription newDesc = new SessionDescription(desc.type, sdp);
             localDescription = newDesc;
             executor.execute(() -> {
                 if (peerConnection != null && !isError) {
-                    Log.d(TAG, "Set local SDP from  \n" + newDesc.description);
+                    AsyncLog.v(TAG, "Set local SDP from  \n%s", newDesc.description);
+                    sdpSpan = TraceCapture.beginSpan("sdp", "setLocalDescription");
                     peerConnection.setLocalDescription(sdpObserver, newDesc);
                 }
             });
@@ -643,19 +1225,20 @@ public class PeerConnectionClient {
                 if (peerConnection == null || isError) {
                     return;
                 }
+                sdpSpan.end();
                 if (isInitiator) {
                     if (peerConnection.getRemoteDescription() == null) {
-                        Log.d(TAG, "Local SDP set succesfully");
+                        AsyncLog.d(TAG, "Local SDP set succesfully");
                         events.onLocalDescription(localDescription);
                     } else {
-                        Log.d(TAG, "Remote SDP set succesfully");
+                        AsyncLog.d(TAG, "Remote SDP set succesfully");
                     }
                 } else {
                     if (peerConnection.getLocalDescription() != null) {
-                        Log.d(TAG, "Local SDP set succesfully");
+                        AsyncLog.d(TAG, "Local SDP set succesfully");
                         events.onLocalDescription(localDescription);
                     } else {
-                        Log.d(TAG, "Remote SDP set succesfully");
+                        AsyncLog.d(TAG, "Remote SDP set succesfully");
                     }
                 }
             });
@@ -5,10 +5,15 @@ import android.util.Pair;
 
 import androidx.annotation.Nullable;
 
+import org.webrtc.RtpCapabilities;
+
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -160,6 +165,159 @@ class PeerConnectionClientUtil {
         return newSdpDescription.toString();
     }
 
+    /**
+     * Sets `params` on the a=fmtp line of every payload type of `codec`, replacing values that are
+     * already present and adding an a=fmtp line where none exists.
+     */
+    public static String setFmtpParameters(String sdp, String codec, Map<String, String> params) {
+        final String[] lines = sdp.split("\r\n");
+        final List<String> codecPayloadTypes = new ArrayList<>();
+        final Pattern codecPattern = Pattern.compile("^a=rtpmap:(\\d+) " + codec + "(/\\d+)+[\r]?$");
+        for (String line : lines) {
+            Matcher codecMatcher = codecPattern.matcher(line);
+            if (codecMatcher.matches()) {
+                codecPayloadTypes.add(codecMatcher.group(1));
+            }
+        }
+        if (codecPayloadTypes.isEmpty()) {
+            Log.w(TAG, "No payload types with name " + codec);
+            return sdp;
+        }
+
+        final List<String> updatedPayloadTypes = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            for (String payloadType : codecPayloadTypes) {
+                final String fmtpPrefix = "a=fmtp:" + payloadType + " ";
+                if (lines[i].startsWith(fmtpPrefix)) {
+                    lines[i] = fmtpPrefix + mergeFmtpParameters(lines[i].substring(fmtpPrefix.length()), params);
+                    updatedPayloadTypes.add(payloadType);
+                    break;
+                }
+            }
+        }
+
+        StringBuilder newSdpDescription = new StringBuilder();
+        for (String line : lines) {
+            newSdpDescription.append(line).append("\r\n");
+            Matcher codecMatcher = codecPattern.matcher(line);
+            if (codecMatcher.matches() && !updatedPayloadTypes.contains(codecMatcher.group(1))) {
+                newSdpDescription.append("a=fmtp:").append(codecMatcher.group(1)).append(" ")
+                        .append(mergeFmtpParameters("", params)).append("\r\n");
+            }
+        }
+        return newSdpDescription.toString();
+    }
+
+    private static String mergeFmtpParameters(String fmtp, Map<String, String> params) {
+        final Map<String, String> merged = new LinkedHashMap<>();
+        for (String param : fmtp.split(";")) {
+            final String[] keyValue = param.trim().split("=", 2);
+            if (!keyValue[0].isEmpty()) {
+                merged.put(keyValue[0], keyValue.length > 1 ? keyValue[1] : "");
+            }
+        }
+        merged.putAll(params);
+
+        final List<String> parts = new ArrayList<>();
+        for (Map.Entry<String, String> entry : merged.entrySet()) {
+            parts.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return joinString(parts, ";", false /* delimiterAtEnd */);
+    }
+
+    public static String setH265ProfileTierLevel(String sdp, H265Capability capability) {
+        final Map<String, String> params = new LinkedHashMap<>();
+        params.put(PeerConnectionConstant.H265_FMTP_PROFILE_ID, String.valueOf(capability.profileId));
+        params.put(PeerConnectionConstant.H265_FMTP_TIER_FLAG, String.valueOf(capability.tierFlag));
+        params.put(PeerConnectionConstant.H265_FMTP_LEVEL_ID, String.valueOf(capability.levelId));
+        return setFmtpParameters(sdp, PeerConnectionConstant.VIDEO_CODEC_H265, params);
+    }
+
+    /**
+     * Adds the RTP header extension `uri` to every audio or video media description that does not
+     * negotiate it yet, with the lowest extension ID free in the whole session (IDs are shared
+     * across a BUNDLE group). Only one-byte IDs (1-14) are used, so the extension does not depend
+     * on the two-byte header format being negotiated.
+     */
+    public static String addHeaderExtension(String sdp, String uri, boolean isAudio) {
+        if (getHeaderExtensionId(sdp, uri, isAudio) >= 0) {
+            return sdp;
+        }
+        final String[] lines = sdp.split("\r\n");
+        final Pattern extmapPattern = Pattern.compile("^a=extmap:(\\d+)(/\\w+)? (\\S+).*$");
+        final List<Integer> usedIds = new ArrayList<>();
+        for (String line : lines) {
+            Matcher extmapMatcher = extmapPattern.matcher(line);
+            if (extmapMatcher.matches()) {
+                usedIds.add(Integer.parseInt(extmapMatcher.group(1)));
+            }
+        }
+        int id = 1;
+        while (usedIds.contains(id)) {
+            id++;
+        }
+        if (id > 14) {
+            Log.w(TAG, "No free one-byte header extension ID for " + uri);
+            return sdp;
+        }
+
+        final String mediaDescription = isAudio ? "m=audio " : "m=video ";
+        final String extmapLine = "a=extmap:" + id + " " + uri;
+        final List<String> newLines = new ArrayList<>();
+        for (int i = 0; i < lines.length; i++) {
+            newLines.add(lines[i]);
+            if (!lines[i].startsWith(mediaDescription)) {
+                continue;
+            }
+            // Insert after the section's last extmap line, or at the end of the section.
+            int end = i + 1;
+            while (end < lines.length && !lines[end].startsWith("m=")) {
+                end++;
+            }
+            int insertAt = end;
+            boolean negotiated = false;
+            for (int j = i + 1; j < end; j++) {
+                Matcher extmapMatcher = extmapPattern.matcher(lines[j]);
+                if (extmapMatcher.matches()) {
+                    negotiated |= extmapMatcher.group(3).equals(uri);
+                    insertAt = j + 1;
+                }
+            }
+            for (int j = i + 1; j < end; j++) {
+                if (j == insertAt && !negotiated) {
+                    newLines.add(extmapLine);
+                }
+                newLines.add(lines[j]);
+            }
+            if (insertAt == end && !negotiated) {
+                newLines.add(extmapLine);
+            }
+            i = end - 1;
+        }
+        Log.d(TAG, "Add header extension " + uri + " with ID " + id);
+        return joinString(newLines, "\r\n", true /* delimiterAtEnd */);
+    }
+
+    /**
+     * Returns the ID of the RTP header extension `uri` in the first audio or video media
+     * description, or -1 if it is not negotiated there.
+     */
+    public static int getHeaderExtensionId(String sdp, String uri, boolean isAudio) {
+        final String[] lines = sdp.split("\r\n");
+        final int mLineIndex = findMediaDescriptionLine(isAudio, lines);
+        if (mLineIndex == -1) {
+            return -1;
+        }
+        final Pattern extmapPattern = Pattern.compile("^a=extmap:(\\d+)(/\\w+)? " + Pattern.quote(uri) + "( .*)?$");
+        for (int i = mLineIndex + 1; i < lines.length && !lines[i].startsWith("m="); i++) {
+            Matcher extmapMatcher = extmapPattern.matcher(lines[i]);
+            if (extmapMatcher.matches()) {
+                return Integer.parseInt(extmapMatcher.group(1));
+            }
+        }
+        return -1;
+    }
+
     public static String getSdpVideoCodecName(String videoCodec) {
         switch (videoCodec) {
             case PeerConnectionConstant.VIDEO_CODEC_VP8:
@@ -190,9 +348,39 @@ class PeerConnectionClientUtil {
         return null;
     }
 
+    /**
+     * Removes the redundancy codecs that `fecMode` does not use, so that only the selected
+     * scheme is negotiated. NACK is negotiated in every mode.
+     */
+    public static void filterFecCodecs(List<RtpCapabilities.CodecCapability> codecs, String fecMode) {
+        final List<String> removed = new ArrayList<>();
+        switch (fecMode) {
+            case PeerConnectionConstant.VIDEO_FEC_MODE_RED_ULPFEC:
+                removed.add(PeerConnectionConstant.VIDEO_CODEC_FLEXFEC);
+                break;
+            case PeerConnectionConstant.VIDEO_FEC_MODE_FLEXFEC:
+                removed.add(PeerConnectionConstant.VIDEO_CODEC_RED);
+                removed.add(PeerConnectionConstant.VIDEO_CODEC_ULPFEC);
+                break;
+            case PeerConnectionConstant.VIDEO_FEC_MODE_NONE:
+            default:
+                removed.add(PeerConnectionConstant.VIDEO_CODEC_RED);
+                removed.add(PeerConnectionConstant.VIDEO_CODEC_ULPFEC);
+                removed.add(PeerConnectionConstant.VIDEO_CODEC_FLEXFEC);
+                break;
+        }
+        Iterator<RtpCapabilities.CodecCapability> iter = codecs.iterator();
+        while (iter.hasNext()) {
+            if (removed.contains(iter.next().name.toLowerCase(Locale.US))) {
+                iter.remove();
+            }
+        }
+        Log.d(TAG, "FEC mode " + fecMode + " removes " + removed);
+    }
+
     public static String getFieldTrials(PeerConnectionParameters peerConnectionParameters) {
         String fieldTrials = "";
-        if (peerConnectionParameters.videoFlexfecEnabled) {
+        if (PeerConnectionConstant.VIDEO_FEC_MODE_FLEXFEC.equals(peerConnectionParameters.videoFecMode)) {
             fieldTrials += PeerConnectionConstant.VIDEO_FLEXFEC_FIELDTRIAL;
             Log.d(TAG, "Enable FlexFEC field trial.");
         }
@@ -15,6 +15,15 @@ class PeerConnectionConstant {
     public static final String AUDIO_CODEC_OPUS = "opus";
 
     public static final String VIDEO_CODEC_PARAM_START_BITRATE = "x-google-start-bitrate";
+    public static final String H265_FMTP_PROFILE_ID = "profile-id";
+    public static final String H265_FMTP_TIER_FLAG = "tier-flag";
+    public static final String H265_FMTP_LEVEL_ID = "level-id";
+    public static final String VIDEO_FEC_MODE_NONE = "none";
+    public static final String VIDEO_FEC_MODE_RED_ULPFEC = "red_ulpfec";
+    public static final String VIDEO_FEC_MODE_FLEXFEC = "flexfec";
+    public static final String VIDEO_CODEC_RED = "red";
+    public static final String VIDEO_CODEC_ULPFEC = "ulpfec";
+    public static final String VIDEO_CODEC_FLEXFEC = "flexfec-03";
     public static final String VIDEO_FLEXFEC_FIELDTRIAL = "WebRTC-FlexFEC-03-Advertised/Enabled/WebRTC-FlexFEC-03/Enabled/";
     public static final String DISABLE_WEBRTC_AGC_FIELDTRIAL = "WebRTC-Audio-MinimizeResamplingOnMobile/Enabled/";
     public static final String LEGACY_SIMULCAST_LAYER_LIMIT_FIELDTRIAL = "WebRTC-LegacySimulcastLayerLimit/Disabled/";
@@ -29,4 +38,46 @@ class PeerConnectionConstant {
     public static final int DEFAULT_VIDEO_HEIGHT = 1080;
     public static final int DEFAULT_VIDEO_FPS = 15;
     public static final int BPS_IN_KBPS = 1000;
+    public static final int STATS_INTERVAL_MS = 1000;
+    public static final String RTC_EVENT_LOG_DIRECTORY = "rtc_event_log";
+    public static final int RTC_EVENT_LOG_MAX_FILE_BYTES = 10_000_000;
+    public static final int RTC_EVENT_LOG_MAX_FILES = 5;
+    public static final long RTC_EVENT_LOG_ROTATE_INTERVAL_MS = 5 * 60 * 1000;
+    public static final long RTC_EVENT_LOG_ARM_DURATION_MS = 60 * 1000;
+    public static final String WHIP_ENDPOINT_HEALTH_FILE = "whip_endpoint_health.properties";
+    public static final int WHIP_ENDPOINT_PROBE_TIMEOUT_MS = 2000;
+    public static final long WHIP_ENDPOINT_PROBE_WAIT_MS = 500;
+    // Connect and read timeout of the WHIP POST and DELETE, so a dead node fails over promptly.
+    public static final int WHIP_REQUEST_TIMEOUT_MS = 5000;
+    public static final String ABS_CAPTURE_TIME_URI = "http://www.webrtc.org/experiments/rtp-hdrext/abs-capture-time";
+    public static final String START_BITRATE_CACHE_FILE = "start_bitrate.properties";
+    public static final String ICE_POLICY_RACE = "race";
+    public static final String ICE_POLICY_RELAY = "relay";
+    public static final String NATIVE_LOG_COMPONENT = "WebRTC";
+    public static final String TRACE_CAPTURE_DIRECTORY = "trace";
+    public static final long TRACE_CAPTURE_WINDOW_MS = 30 * 1000;
+    public static final long TRACE_CAPTURE_MAX_BYTES = 50_000_000;
+    public static final String ENCODED_STREAM_DIRECTORY = "encoded";
+    public static final String SOURCE_PYRAMID_DIRECTORY = "pyramid";
+    public static final String SESSION_TIMELINE_DIRECTORY = "timeline";
+    public static final String QUALITY_DIRECTORY = "quality";
+    // About 7 hours of three simulcast layers at STATS_INTERVAL_MS.
+    public static final int SESSION_TIMELINE_MAX_BYTES = 4 * 1024 * 1024;
+    public static final int SESSION_TIMELINE_MAX_FILES = 10;
+    public static final String MEMORY_DUMP_DIRECTORY = "memory";
+    public static final long MEMORY_WATCHDOG_INTERVAL_MS = 10 * 1000;
+    public static final long MEMORY_WATCHDOG_NATIVE_GROWTH_BYTES = 100_000_000;
+    public static final double MEMORY_WATCHDOG_JAVA_HEAP_FRACTION = 0.85;
+    // Frames live for a few frame intervals; one held this long is leaked.
+    public static final long MEMORY_WATCHDOG_BUFFER_LEAK_AGE_MS = 5 * 1000;
+    // Heap copies, so the queue can absorb about a second of disk stalls.
+    public static final int ENCODED_STREAM_QUEUE_CAPACITY = 30;
+    public static final long ENCODED_STREAM_MAX_BYTES = 500_000_000;
+    public static final int SIMULCAST_LAYER_COUNT = 3;
+    public static final String DEFAULT_CPU_GOVERNOR_LADDER = "fps,resolution,layers,layers,complexity";
+    public static final String DEFAULT_THERMAL_GOVERNOR_LADDER = "fps,resolution,layers";
+    public static final int THERMAL_FORECAST_SECONDS = 10;
+    // About one RTT: requests sent before the server saw the last key frame.
+    public static final long KEY_FRAME_COALESCE_WINDOW_MS = 500;
+    public static final int MIN_DEGRADED_FPS = 5;
 }
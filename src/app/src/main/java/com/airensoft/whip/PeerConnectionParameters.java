@@ -13,8 +13,9 @@ public class PeerConnectionParameters {
     public final String videoCodec;
     public final int maxBFrames;
     public final boolean videoCodecHwAcceleration;
-    public final boolean videoFlexfecEnabled;
+    public final String videoFecMode;
     public final boolean videoSimulcastEnabled;
+    public final String videoScalabilityMode;
     public final int audioStartBitrate;
     public final String audioCodec;
     public final boolean noAudioProcessing;
@@ -24,13 +25,30 @@ public class PeerConnectionParameters {
     public final boolean disableWebRtcAGCAndHPF;
     public final boolean enableRtcEventLog;
     public final boolean enableCpuOveruseDetection;
+    public final String cpuGovernorLadder;
+    public final String iceTransportPolicy;
+    public final boolean loopback;
+    public final String qualityReferencePath;
+    public final boolean encodedStreamDump;
+    public final String passthroughPath;
+    public final boolean videoSharedEncoder;
+    public final boolean memoryWatchdog;
+    public final String thermalGovernorLadder;
+    public final int keyFrameMinIntervalMs;
+    public final int keyFrameGopMs;
+    public final boolean videoAbsCaptureTime;
 
     public PeerConnectionParameters(boolean videoCallEnabled, boolean tracing,
                                     int videoWidth, int videoHeight, int videoFps, int videoMaxBitrate, String videoCodec, int maxBFrames,
-                                    boolean videoCodecHwAcceleration, boolean videoFlexfecEnabled, boolean videoSimulcastEnabled,
+                                    boolean videoCodecHwAcceleration, String videoFecMode, boolean videoSimulcastEnabled, String videoScalabilityMode,
                                     int audioStartBitrate, String audioCodec, boolean noAudioProcessing,
                                     boolean disableBuiltInAEC, boolean disableBuiltInAGC,
-                                    boolean disableBuiltInNS, boolean disableWebRtcAGCAndHPF, boolean enableRtcEventLog, boolean enableCpuOveruseDetection) {
+                                    boolean disableBuiltInNS, boolean disableWebRtcAGCAndHPF, boolean enableRtcEventLog, boolean enableCpuOveruseDetection,
+                                    String cpuGovernorLadder, String iceTransportPolicy, boolean loopback,
+                                    String qualityReferencePath, boolean encodedStreamDump, String passthroughPath,
+                                    boolean videoSharedEncoder, boolean memoryWatchdog,
+                                    String thermalGovernorLadder, int keyFrameMinIntervalMs, int keyFrameGopMs,
+                                    boolean videoAbsCaptureTime) {
         this.videoCallEnabled = videoCallEnabled;
         this.tracing = tracing;
         this.videoWidth = videoWidth;
@@ -39,8 +57,9 @@ public class PeerConnectionParameters {
         this.videoMaxBitrate = videoMaxBitrate;
         this.videoCodec = videoCodec;
         this.videoSimulcastEnabled = videoSimulcastEnabled;
+        this.videoScalabilityMode = videoScalabilityMode;
         this.maxBFrames = maxBFrames;
-        this.videoFlexfecEnabled = videoFlexfecEnabled;
+        this.videoFecMode = videoFecMode;
         this.videoCodecHwAcceleration = videoCodecHwAcceleration;
         this.audioStartBitrate = audioStartBitrate;
         this.audioCodec = audioCodec;
@@ -51,5 +70,17 @@ public class PeerConnectionParameters {
         this.disableWebRtcAGCAndHPF = disableWebRtcAGCAndHPF;
         this.enableRtcEventLog = enableRtcEventLog;
         this.enableCpuOveruseDetection = enableCpuOveruseDetection;
+        this.cpuGovernorLadder = cpuGovernorLadder;
+        this.iceTransportPolicy = iceTransportPolicy;
+        this.loopback = loopback;
+        this.qualityReferencePath = qualityReferencePath;
+        this.encodedStreamDump = encodedStreamDump;
+        this.passthroughPath = passthroughPath;
+        this.videoSharedEncoder = videoSharedEncoder;
+        this.memoryWatchdog = memoryWatchdog;
+        this.thermalGovernorLadder = thermalGovernorLadder;
+        this.keyFrameMinIntervalMs = keyFrameMinIntervalMs;
+        this.keyFrameGopMs = keyFrameGopMs;
+        this.videoAbsCaptureTime = videoAbsCaptureTime;
     }
 }
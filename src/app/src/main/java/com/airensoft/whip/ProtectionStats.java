@@ -0,0 +1,117 @@
+package com.airensoft.whip;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Estimates the redundancy overhead from the outbound-rtp stats. FEC is taken from fecBytesSent,
+ * or from fecPacketsSent at the stream's mean packet size where only the count is reported; when
+ * neither is present the FEC rate is unknown. What the transport sent beyond the outbound-rtp
+ * streams (RTCP, STUN, padding and probes) is reported separately as non-media overhead.
+ */
+class ProtectionStats {
+    public static class Sample {
+        public final long mediaBps;
+        /** FEC rate, or -1 when the stats carry no FEC counters. */
+        public final long protectionBps;
+        public final long retransmissionBps;
+        public final long nonMediaBps;
+        public final double fractionLost;
+
+        Sample(long mediaBps, long protectionBps, long retransmissionBps, long nonMediaBps, double fractionLost) {
+            this.mediaBps = mediaBps;
+            this.protectionBps = protectionBps;
+            this.retransmissionBps = retransmissionBps;
+            this.nonMediaBps = nonMediaBps;
+            this.fractionLost = fractionLost;
+        }
+
+        public double getProtectionOverhead() {
+            return mediaBps > 0 && protectionBps > 0 ? (double) protectionBps / mediaBps : 0;
+        }
+
+        @Override
+        public String toString() {
+            final String fec = protectionBps < 0 ? "n/a" : String.format(Locale.US, "%dkbps(%.1f%%)",
+                    protectionBps / PeerConnectionConstant.BPS_IN_KBPS, getProtectionOverhead() * 100);
+            return String.format(Locale.US, "media=%dkbps fec=%s rtx=%dkbps non-media=%dkbps loss=%.1f%%",
+                    mediaBps / PeerConnectionConstant.BPS_IN_KBPS, fec, retransmissionBps / PeerConnectionConstant.BPS_IN_KBPS,
+                    nonMediaBps / PeerConnectionConstant.BPS_IN_KBPS, fractionLost * 100);
+        }
+    }
+
+    private long lastTransportBytes = -1;
+    private long lastSentBytes;
+    private long lastFecBytes;
+    private long lastRetransmittedBytes;
+    private double lastTimestampUs;
+
+    /**
+     * Returns the rates since the previous call, or null on the first call.
+     */
+    @Nullable
+    public Sample update(RTCStatsReport report) {
+        long transportBytes = 0;
+        long sentBytes = 0;
+        long fecBytes = 0;
+        boolean hasFec = false;
+        long retransmittedBytes = 0;
+        double fractionLost = 0;
+        for (RTCStats stats : report.getStatsMap().values()) {
+            Map<String, Object> members = stats.getMembers();
+            switch (stats.getType()) {
+                case "transport":
+                    transportBytes += OutboundLayerStats.getLong(members, "bytesSent");
+                    break;
+                case "outbound-rtp":
+                    final long bytes = OutboundLayerStats.getLong(members, "bytesSent") + OutboundLayerStats.getLong(members, "headerBytesSent");
+                    sentBytes += bytes;
+                    retransmittedBytes += OutboundLayerStats.getLong(members, "retransmittedBytesSent");
+                    if (members.get("fecBytesSent") != null) {
+                        fecBytes += OutboundLayerStats.getLong(members, "fecBytesSent");
+                        hasFec = true;
+                    } else if (members.get("fecPacketsSent") != null) {
+                        final long packets = OutboundLayerStats.getLong(members, "packetsSent");
+                        if (packets > 0) {
+                            fecBytes += bytes * OutboundLayerStats.getLong(members, "fecPacketsSent") / packets;
+                        }
+                        hasFec = true;
+                    }
+                    break;
+                case "remote-inbound-rtp":
+                    Object lost = members.get("fractionLost");
+                    if (lost instanceof Number) {
+                        fractionLost = Math.max(fractionLost, ((Number) lost).doubleValue());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        final double timestampUs = report.getTimestampUs();
+        Sample sample = null;
+        if (lastTransportBytes >= 0 && timestampUs > lastTimestampUs) {
+            final double seconds = (timestampUs - lastTimestampUs) / 1_000_000.0;
+            final long sentDelta = sentBytes - lastSentBytes;
+            // RED/ULPFEC and FlexFEC are counted in the stream's bytesSent.
+            final long fecDelta = hasFec ? Math.max(0, fecBytes - lastFecBytes) : -1;
+            final long mediaDelta = sentDelta - Math.max(0, fecDelta);
+            final long nonMediaDelta = Math.max(0, (transportBytes - lastTransportBytes) - sentDelta);
+            sample = new Sample((long) (mediaDelta * 8 / seconds), fecDelta < 0 ? -1 : (long) (fecDelta * 8 / seconds),
+                    (long) ((retransmittedBytes - lastRetransmittedBytes) * 8 / seconds),
+                    (long) (nonMediaDelta * 8 / seconds), fractionLost);
+        }
+        lastTransportBytes = transportBytes;
+        lastSentBytes = sentBytes;
+        lastFecBytes = fecBytes;
+        lastRetransmittedBytes = retransmittedBytes;
+        lastTimestampUs = timestampUs;
+        return sample;
+    }
+}
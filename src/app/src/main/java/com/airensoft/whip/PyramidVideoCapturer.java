@@ -0,0 +1,200 @@
+package com.airensoft.whip;
+
+import android.content.Context;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.CapturerObserver;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoFrame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Plays the variants of a SourcePyramid in a loop. Frames are memory-mapped, not read or
+ * converted. A frame is delivered at the first variant's resolution; when the encoder pipeline
+ * scales it (simulcast layers) to the size of another variant, that variant's frame is returned
+ * instead of scaling.
+ */
+class PyramidVideoCapturer implements VideoCapturer {
+    private static final String TAG = "PyramidVideoCapturer";
+
+    static class Variant {
+        final File file;
+        final int width;
+        final int height;
+        final int chromaWidth;
+        final int chromaHeight;
+        final int frameSize;
+        @Nullable
+        MappedByteBuffer data;
+
+        Variant(File file, int width, int height) {
+            this.file = file;
+            this.width = width;
+            this.height = height;
+            this.chromaWidth = (width + 1) / 2;
+            this.chromaHeight = (height + 1) / 2;
+            this.frameSize = width * height + 2 * chromaWidth * chromaHeight;
+        }
+
+        VideoFrame.I420Buffer wrap(int frame) {
+            final int offset = frame * frameSize;
+            final int sizeY = width * height;
+            final int sizeUV = chromaWidth * chromaHeight;
+            return JavaI420Buffer.wrap(width, height,
+                    slice(offset, sizeY), width,
+                    slice(offset + sizeY, sizeUV), chromaWidth,
+                    slice(offset + sizeY + sizeUV, sizeUV), chromaWidth, null);
+        }
+
+        private ByteBuffer slice(int offset, int length) {
+            ByteBuffer slice = data.duplicate();
+            slice.limit(offset + length);
+            slice.position(offset);
+            return slice.slice();
+        }
+    }
+
+    private final List<Variant> variants;
+    private final int frameCount;
+    private final Timer timer = new Timer(TAG);
+    @Nullable
+    private CapturerObserver capturerObserver;
+    @Nullable
+    private TimerTask tickTask;
+    private int nextFrame;
+
+    PyramidVideoCapturer(List<Variant> variants) throws IOException {
+        this.variants = variants;
+        int count = Integer.MAX_VALUE;
+        for (Variant variant : variants) {
+            try (RandomAccessFile input = new RandomAccessFile(variant.file, "r")) {
+                if (input.length() > Integer.MAX_VALUE) {
+                    throw new IOException("Too large to map: " + variant.file);
+                }
+                variant.data = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+            }
+            count = Math.min(count, (int) (variant.file.length() / variant.frameSize));
+        }
+        if (variants.isEmpty() || count == 0) {
+            throw new IOException("No frames in the source pyramid");
+        }
+        frameCount = count;
+        AsyncLog.d(TAG, "Opened %d variants of %d frames", variants.size(), frameCount);
+    }
+
+    @Override
+    public void initialize(SurfaceTextureHelper surfaceTextureHelper, Context applicationContext, CapturerObserver capturerObserver) {
+        this.capturerObserver = capturerObserver;
+    }
+
+    @Override
+    public void startCapture(int width, int height, int framerate) {
+        tickTask = new TimerTask() {
+            @Override
+            public void run() {
+                tick();
+            }
+        };
+        timer.schedule(tickTask, 0, 1000 / Math.max(1, framerate));
+        capturerObserver.onCapturerStarted(true);
+    }
+
+    private void tick() {
+        final long captureTimeNs = System.nanoTime();
+        VideoFrame frame = new VideoFrame(new PyramidBuffer(nextFrame), 0, captureTimeNs);
+        nextFrame = (nextFrame + 1) % frameCount;
+        capturerObserver.onFrameCaptured(frame);
+        frame.release();
+    }
+
+    @Override
+    public void stopCapture() throws InterruptedException {
+        if (tickTask != null) {
+            tickTask.cancel();
+            tickTask = null;
+        }
+        capturerObserver.onCapturerStopped();
+    }
+
+    @Override
+    public void changeCaptureFormat(int width, int height, int framerate) {
+        // The size is fixed by the variants; only the rate changes.
+        if (tickTask != null) {
+            tickTask.cancel();
+            startCapture(width, height, framerate);
+        }
+    }
+
+    @Override
+    public void dispose() {
+        timer.cancel();
+    }
+
+    @Override
+    public boolean isScreencast() {
+        return false;
+    }
+
+    /**
+     * A frame of the pyramid. Scaling the whole frame to the size of a variant returns that
+     * variant's frame; any other crop or scale falls back to scaling the first variant.
+     */
+    private class PyramidBuffer implements VideoFrame.Buffer {
+        private final int frame;
+
+        PyramidBuffer(int frame) {
+            this.frame = frame;
+        }
+
+        @Override
+        public int getWidth() {
+            return variants.get(0).width;
+        }
+
+        @Override
+        public int getHeight() {
+            return variants.get(0).height;
+        }
+
+        @Override
+        public VideoFrame.I420Buffer toI420() {
+            return variants.get(0).wrap(frame);
+        }
+
+        // The mapping outlives the frames, so there is nothing to count or free.
+        @Override
+        public void retain() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public VideoFrame.Buffer cropAndScale(int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
+            if (cropX == 0 && cropY == 0 && cropWidth == getWidth() && cropHeight == getHeight()) {
+                for (Variant variant : variants) {
+                    if (variant.width == scaleWidth && variant.height == scaleHeight) {
+                        return variant.wrap(frame);
+                    }
+                }
+            }
+            VideoFrame.I420Buffer i420 = toI420();
+            VideoFrame.Buffer scaled = i420.cropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight);
+            i420.release();
+            return scaled;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.airensoft.whip;
+
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Per-plane PSNR and SSIM of a test frame against a reference frame. Planes are scored in
+ * parallel and each plane is split into row bands on a fork-join pool. The inner loops work on
+ * primitive arrays only; nothing is allocated per pixel or per window.
+ *
+ * SSIM uses 8x8 windows on a 4 pixel grid. A reference larger than the test frame (a downscaled
+ * simulcast layer) is box-filtered to the test size first.
+ */
+class QualityEngine {
+    private static final int WINDOW = 8;
+    private static final int WINDOW_STEP = 4;
+    private static final int TILE_ROWS = 64;
+    private static final double MAX_PSNR = 100.0;
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    public static class Plane {
+        byte[] data;
+        int width;
+        int height;
+        int stride;
+        // Rows at the top that are excluded from the score (e.g. the frame marker).
+        int skipRows;
+
+        public Plane set(byte[] data, int width, int height, int stride, int skipRows) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+            this.stride = stride;
+            this.skipRows = skipRows;
+            return this;
+        }
+    }
+
+    public static class Score {
+        public final double[] psnr = new double[3];
+        public final double[] ssim = new double[3];
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "psnr=%.2f/%.2f/%.2f ssim=%.4f/%.4f/%.4f",
+                    psnr[0], psnr[1], psnr[2], ssim[0], ssim[1], ssim[2]);
+        }
+    }
+
+    private final ForkJoinPool pool;
+    // Scaled reference planes, reused between frames.
+    private final byte[][] scaled = new byte[3][];
+    private final Plane[] scaledPlanes = {new Plane(), new Plane(), new Plane()};
+
+    QualityEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Scores the three planes of `test` against `reference`. Not reentrant.
+     */
+    public Score compare(Plane[] reference, Plane[] test) {
+        PlaneTask[] tasks = new PlaneTask[3];
+        for (int i = 0; i < 3; i++) {
+            tasks[i] = new PlaneTask(i, reference[i], test[i]);
+        }
+        Score score = new Score();
+        pool.invoke(new RecursiveTask<Void>() {
+            @Override
+            protected Void compute() {
+                invokeAll(tasks);
+                return null;
+            }
+        });
+        for (int i = 0; i < 3; i++) {
+            double[] sums = tasks[i].join();
+            final double mse = sums[1] > 0 ? sums[0] / sums[1] : 0;
+            score.psnr[i] = mse > 0 ? Math.min(MAX_PSNR, 10 * Math.log10(255.0 * 255.0 / mse)) : MAX_PSNR;
+            score.ssim[i] = sums[3] > 0 ? sums[2] / sums[3] : 1.0;
+        }
+        return score;
+    }
+
+    private class PlaneTask extends RecursiveTask<double[]> {
+        private final int index;
+        private final Plane reference;
+        private final Plane test;
+
+        PlaneTask(int index, Plane reference, Plane test) {
+            this.index = index;
+            this.reference = reference;
+            this.test = test;
+        }
+
+        @Override
+        protected double[] compute() {
+            Plane source = reference;
+            if (reference.width != test.width || reference.height != test.height) {
+                final int size = test.width * test.height;
+                if (scaled[index] == null || scaled[index].length < size) {
+                    scaled[index] = new byte[size];
+                }
+                boxScale(reference, scaled[index], test.width, test.height);
+                source = scaledPlanes[index].set(scaled[index], test.width, test.height, test.width, test.skipRows);
+            }
+            return new TileTask(source, test, test.skipRows, test.height).compute();
+        }
+    }
+
+    /**
+     * Sums {sse, pixels, ssim, windows} over rows [rowBegin, rowEnd); SSIM windows are assigned
+     * to the band holding their top row. Bands start on the window grid of the first scored row.
+     */
+    private static class TileTask extends RecursiveTask<double[]> {
+        private final Plane a;
+        private final Plane b;
+        private final int rowBegin;
+        private final int rowEnd;
+
+        TileTask(Plane a, Plane b, int rowBegin, int rowEnd) {
+            this.a = a;
+            this.b = b;
+            this.rowBegin = rowBegin;
+            this.rowEnd = rowEnd;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (rowEnd - rowBegin > TILE_ROWS) {
+                // Split on the window grid so no window is counted twice.
+                int middle = rowBegin + ((rowEnd - rowBegin) / 2 / WINDOW_STEP) * WINDOW_STEP;
+                TileTask top = new TileTask(a, b, rowBegin, middle);
+                TileTask bottom = new TileTask(a, b, middle, rowEnd);
+                top.fork();
+                double[] result = bottom.compute();
+                double[] other = top.join();
+                for (int i = 0; i < result.length; i++) {
+                    result[i] += other[i];
+                }
+                return result;
+            }
+            return new double[]{sse(), (double) (rowEnd - rowBegin) * b.width, ssimSum(), windowCount()};
+        }
+
+        private double sse() {
+            final byte[] da = a.data;
+            final byte[] db = b.data;
+            long sum = 0;
+            for (int y = rowBegin; y < rowEnd; y++) {
+                int ia = y * a.stride;
+                int ib = y * b.stride;
+                for (int x = 0; x < b.width; x++) {
+                    int d = (da[ia + x] & 0xFF) - (db[ib + x] & 0xFF);
+                    sum += d * d;
+                }
+            }
+            return sum;
+        }
+
+        private double windowCount() {
+            double count = 0;
+            for (int y = rowBegin; y < rowEnd && y + WINDOW <= b.height; y += WINDOW_STEP) {
+                for (int x = 0; x + WINDOW <= b.width; x += WINDOW_STEP) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private double ssimSum() {
+            final byte[] da = a.data;
+            final byte[] db = b.data;
+            final double n = WINDOW * WINDOW;
+            double total = 0;
+            for (int y = rowBegin; y < rowEnd && y + WINDOW <= b.height; y += WINDOW_STEP) {
+                for (int x = 0; x + WINDOW <= b.width; x += WINDOW_STEP) {
+                    long sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+                    for (int wy = 0; wy < WINDOW; wy++) {
+                        int ia = (y + wy) * a.stride + x;
+                        int ib = (y + wy) * b.stride + x;
+                        for (int wx = 0; wx < WINDOW; wx++) {
+                            int pa = da[ia + wx] & 0xFF;
+                            int pb = db[ib + wx] & 0xFF;
+                            sa += pa;
+                            sb += pb;
+                            saa += pa * pa;
+                            sbb += pb * pb;
+                            sab += pa * pb;
+                        }
+                    }
+                    final double ma = sa / n;
+                    final double mb = sb / n;
+                    final double va = saa / n - ma * ma;
+                    final double vb = sbb / n - mb * mb;
+                    final double cov = sab / n - ma * mb;
+                    total += ((2 * ma * mb + C1) * (2 * cov + C2)) / ((ma * ma + mb * mb + C1) * (va + vb + C2));
+                }
+            }
+            return total;
+        }
+    }
+
+    /**
+     * Area-averages `src` into a tightly packed `dst` of dstWidth x dstHeight.
+     */
+    static void boxScale(Plane src, byte[] dst, int dstWidth, int dstHeight) {
+        boxScale(src.data, 0, src.stride, src.width, src.height, dst, dstWidth, dstHeight);
+    }
+
+    /**
+     * Area-averages the width x height region at `offset` of `data` into a tightly packed `dst`.
+     */
+    static void boxScale(byte[] data, int offset, int stride, int width, int height, byte[] dst, int dstWidth, int dstHeight) {
+        for (int y = 0; y < dstHeight; y++) {
+            final int y0 = y * height / dstHeight;
+            final int y1 = Math.max(y0 + 1, (y + 1) * height / dstHeight);
+            for (int x = 0; x < dstWidth; x++) {
+                final int x0 = x * width / dstWidth;
+                final int x1 = Math.max(x0 + 1, (x + 1) * width / dstWidth);
+                int sum = 0;
+                for (int sy = y0; sy < y1; sy++) {
+                    final int row = offset + sy * stride;
+                    for (int sx = x0; sx < x1; sx++) {
+                        sum += data[row + sx] & 0xFF;
+                    }
+                }
+                dst[y * dstWidth + x] = (byte) (sum / ((y1 - y0) * (x1 - x0)));
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+package com.airensoft.whip;
+
+import org.webrtc.VideoFrame;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scores decoded loopback frames against the Y4M source with QualityEngine. The source frame is
+ * found through the FrameMarker sequence; the marker rows are left out of the score.
+ *
+ * One frame is scored at a time. Frames arriving while the engine is busy are skipped, so the
+ * decoder is never held up; the sampling rate follows from the cost of scoring.
+ *
+ * The retained time series of every decoded resolution is written to a CSV in `directory` on
+ * release.
+ */
+class QualityScorer {
+    private static final String TAG = "QualityScorer";
+    private static final int MAX_SAMPLES = 600;
+    // Extra rows below the marker whose blocks bleed into the picture after encoding.
+    private static final int MARKER_MARGIN_ROWS = 2;
+
+    public static class Sample {
+        public final long timestampMs;
+        public final int sourceFrame;
+        public final QualityEngine.Score score;
+
+        Sample(long timestampMs, int sourceFrame, QualityEngine.Score score) {
+            this.timestampMs = timestampMs;
+            this.sourceFrame = sourceFrame;
+            this.score = score;
+        }
+    }
+
+    private final Y4mReader reference;
+    private final FrameMarker marker;
+    private final File directory;
+    private final ForkJoinPool pool = new ForkJoinPool();
+    private final QualityEngine engine = new QualityEngine(pool);
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private final AtomicLong skippedFrames = new AtomicLong();
+    private final Map<String, ArrayDeque<Sample>> samplesByResolution = new TreeMap<>();
+
+    // Reused planes, touched only by the job holding `busy`.
+    private final byte[][] referenceData;
+    private final byte[][] testData = new byte[3][];
+    private final QualityEngine.Plane[] referencePlanes = {new QualityEngine.Plane(), new QualityEngine.Plane(), new QualityEngine.Plane()};
+    private final QualityEngine.Plane[] testPlanes = {new QualityEngine.Plane(), new QualityEngine.Plane(), new QualityEngine.Plane()};
+
+    QualityScorer(Y4mReader reference, FrameMarker marker, File directory) {
+        this.reference = reference;
+        this.marker = marker;
+        this.directory = directory;
+        final int chromaSize = reference.getChromaWidth() * reference.getChromaHeight();
+        referenceData = new byte[][]{new byte[reference.getWidth() * reference.getHeight()], new byte[chromaSize], new byte[chromaSize]};
+    }
+
+    /**
+     * Scores `buffer` in the background unless a frame is already being scored. The buffer is
+     * retained until the score is done.
+     */
+    public void offer(VideoFrame.I420Buffer buffer, int sequence) {
+        if (!busy.compareAndSet(false, true)) {
+            skippedFrames.incrementAndGet();
+            return;
+        }
+        buffer.retain();
+        pool.execute(() -> {
+            try {
+                score(buffer, marker.getCaptureIndex(sequence) % reference.getFrameCount());
+            } catch (IOException | RuntimeException e) {
+                AsyncLog.w(TAG, "Scoring failed: %s", e);
+            } finally {
+                buffer.release();
+                busy.set(false);
+            }
+        });
+    }
+
+    private void score(VideoFrame.I420Buffer buffer, int sourceFrame) throws IOException {
+        reference.readFrame(sourceFrame, referenceData[0], referenceData[1], referenceData[2]);
+
+        final int width = buffer.getWidth();
+        final int height = buffer.getHeight();
+        final int chromaWidth = (width + 1) / 2;
+        final int chromaHeight = (height + 1) / 2;
+        // The marker was drawn at source size and scaled with the layer.
+        final int skipRows = (FrameMarker.getMarkerRows(reference.getWidth()) * height + reference.getHeight() - 1) / reference.getHeight()
+                + MARKER_MARGIN_ROWS;
+
+        copyPlane(0, buffer.getDataY(), buffer.getStrideY(), width, height);
+        copyPlane(1, buffer.getDataU(), buffer.getStrideU(), chromaWidth, chromaHeight);
+        copyPlane(2, buffer.getDataV(), buffer.getStrideV(), chromaWidth, chromaHeight);
+        testPlanes[0].set(testData[0], width, height, width, Math.min(height, skipRows));
+        testPlanes[1].set(testData[1], chromaWidth, chromaHeight, chromaWidth, Math.min(chromaHeight, (skipRows + 1) / 2));
+        testPlanes[2].set(testData[2], chromaWidth, chromaHeight, chromaWidth, Math.min(chromaHeight, (skipRows + 1) / 2));
+        referencePlanes[0].set(referenceData[0], reference.getWidth(), reference.getHeight(), reference.getWidth(), 0);
+        referencePlanes[1].set(referenceData[1], reference.getChromaWidth(), reference.getChromaHeight(), reference.getChromaWidth(), 0);
+        referencePlanes[2].set(referenceData[2], reference.getChromaWidth(), reference.getChromaHeight(), reference.getChromaWidth(), 0);
+
+        QualityEngine.Score score = engine.compare(referencePlanes, testPlanes);
+        synchronized (samplesByResolution) {
+            ArrayDeque<Sample> samples = samplesByResolution.get(width + "x" + height);
+            if (samples == null) {
+                samples = new ArrayDeque<>();
+                samplesByResolution.put(width + "x" + height, samples);
+            }
+            if (samples.size() == MAX_SAMPLES) {
+                samples.removeFirst();
+            }
+            samples.addLast(new Sample(System.currentTimeMillis(), sourceFrame, score));
+        }
+    }
+
+    private void copyPlane(int index, ByteBuffer source, int stride, int width, int height) {
+        if (testData[index] == null || testData[index].length < width * height) {
+            testData[index] = new byte[width * height];
+        }
+        ByteBuffer rows = source.duplicate();
+        for (int y = 0; y < height; y++) {
+            rows.position(y * stride);
+            rows.get(testData[index], y * width, width);
+        }
+    }
+
+    /**
+     * Returns the time series of the most recent scores per decoded resolution.
+     */
+    public Map<String, List<Sample>> getSamples() {
+        Map<String, List<Sample>> copy = new TreeMap<>();
+        synchronized (samplesByResolution) {
+            for (Map.Entry<String, ArrayDeque<Sample>> entry : samplesByResolution.entrySet()) {
+                copy.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+            }
+        }
+        return copy;
+    }
+
+    public long getSkippedFrames() {
+        return skippedFrames.get();
+    }
+
+    /**
+     * Mean and minimum luma PSNR/SSIM per resolution over the retained samples.
+     */
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, List<Sample>> entry : getSamples().entrySet()) {
+            double psnrSum = 0, ssimSum = 0;
+            double psnrMin = Double.MAX_VALUE, ssimMin = Double.MAX_VALUE;
+            for (Sample sample : entry.getValue()) {
+                psnrSum += sample.score.psnr[0];
+                ssimSum += sample.score.ssim[0];
+                psnrMin = Math.min(psnrMin, sample.score.psnr[0]);
+                ssimMin = Math.min(ssimMin, sample.score.ssim[0]);
+            }
+            final int count = entry.getValue().size();
+            builder.append(String.format(Locale.US, "%s n=%d psnrY=%.2f(min %.2f) ssimY=%.4f(min %.4f) ",
+                    entry.getKey(), count, psnrSum / count, psnrMin, ssimSum / count, ssimMin));
+        }
+        return builder.append("skipped=").append(getSkippedFrames()).toString();
+    }
+
+    public void release() {
+        pool.shutdown();
+        try {
+            reference.close();
+        } catch (IOException e) {
+            AsyncLog.w(TAG, "Failed to close reference: %s", e);
+        }
+        writeCsv();
+    }
+
+    private void writeCsv() {
+        final Map<String, List<Sample>> samples = getSamples();
+        if (samples.isEmpty()) {
+            return;
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            AsyncLog.e(TAG, "Failed to create %s", directory);
+            return;
+        }
+        final File file = new File(directory, "quality_"
+                + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date()) + ".csv");
+        try (Writer writer = new FileWriter(file)) {
+            writer.write("resolution,timestampMs,sourceFrame,psnrY,psnrU,psnrV,ssimY,ssimU,ssimV\n");
+            for (Map.Entry<String, List<Sample>> entry : samples.entrySet()) {
+                for (Sample sample : entry.getValue()) {
+                    final QualityEngine.Score score = sample.score;
+                    writer.write(String.format(Locale.US, "%s,%d,%d,%.3f,%.3f,%.3f,%.5f,%.5f,%.5f\n",
+                            entry.getKey(), sample.timestampMs, sample.sourceFrame,
+                            score.psnr[0], score.psnr[1], score.psnr[2], score.ssim[0], score.ssim[1], score.ssim[2]));
+                }
+            }
+            AsyncLog.i(TAG, "Quality time series: %s", file);
+        } catch (IOException e) {
+            AsyncLog.e(TAG, "Failed to write %s: %s", file, e);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.airensoft.whip;
+
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import org.webrtc.PeerConnection;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Captures the RTC event log into a rotating set of size-capped files. Files are opened, polled
+ * and pruned on a dedicated I/O thread; PeerConnection calls are posted to the client's executor.
+ * A file is rotated once it nears maxFileBytes, where WebRTC would stop writing, or after
+ * rotateIntervalMs at the latest.
+ */
+class RtcEventLogRecorder {
+    private static final String TAG = "RtcEventLog";
+    private static final String FILE_PREFIX = "rtc_event_";
+    private static final String FILE_SUFFIX = ".log";
+    private static final long SIZE_POLL_INTERVAL_MS = 1000;
+    // Rotate before the cap so the events written between two polls still fit.
+    private static final double ROTATE_FILL_RATIO = 0.9;
+
+    private final File directory;
+    private final Executor pcExecutor;
+    private final PeerConnection peerConnection;
+    private final int maxFileBytes;
+    private final int maxFiles;
+    private final long rotateIntervalMs;
+    private final ScheduledExecutorService ioExecutor = Executors.newSingleThreadScheduledExecutor();
+
+    // Accessed on pcExecutor only.
+    private boolean started;
+    private boolean released;
+    // Accessed on ioExecutor only.
+    private ScheduledFuture<?> rotateFuture;
+    private ScheduledFuture<?> disarmFuture;
+    private File currentFile;
+    private long currentOpenedMs;
+
+    RtcEventLogRecorder(File directory, Executor pcExecutor, PeerConnection peerConnection,
+                        int maxFileBytes, int maxFiles, long rotateIntervalMs) {
+        this.directory = directory;
+        this.pcExecutor = pcExecutor;
+        this.peerConnection = peerConnection;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = maxFiles;
+        this.rotateIntervalMs = rotateIntervalMs;
+    }
+
+    /**
+     * Starts capturing until stop() is called.
+     */
+    public void start(String reason) {
+        runOnIo(() -> {
+            cancelDisarm();
+            if (rotateFuture == null) {
+                Log.i(TAG, "Start RTC event log: " + reason);
+                startRotation();
+            }
+        });
+    }
+
+    /**
+     * Starts capturing if it is not running yet and stops again after `durationMs`. Used when the
+     * reconnect or stall handling fires, so the incident is on disk without logging every session.
+     */
+    public void arm(String reason, long durationMs) {
+        runOnIo(() -> {
+            if (rotateFuture != null && disarmFuture == null) {
+                // Already capturing on request, keep it running.
+                return;
+            }
+            if (rotateFuture == null) {
+                Log.i(TAG, "Arm RTC event log for " + durationMs + "ms: " + reason);
+                startRotation();
+            }
+            cancelDisarm();
+            disarmFuture = ioExecutor.schedule(this::stopInternal, durationMs, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    public void stop() {
+        runOnIo(this::stopInternal);
+    }
+
+    /**
+     * Stops the capture and the I/O thread. Must be called on pcExecutor before the
+     * PeerConnection is disposed.
+     */
+    public void release() {
+        if (started) {
+            peerConnection.stopRtcEventLog();
+            started = false;
+        }
+        released = true;
+        ioExecutor.shutdownNow();
+    }
+
+    private void runOnIo(Runnable runnable) {
+        try {
+            ioExecutor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "RTC event log is already released");
+        }
+    }
+
+    private void stopInternal() {
+        cancelDisarm();
+        if (rotateFuture != null) {
+            rotateFuture.cancel(false);
+            rotateFuture = null;
+            currentFile = null;
+            Log.i(TAG, "Stop RTC event log");
+        }
+        pcExecutor.execute(() -> {
+            if (started && !released) {
+                peerConnection.stopRtcEventLog();
+                started = false;
+            }
+        });
+    }
+
+    private void cancelDisarm() {
+        if (disarmFuture != null) {
+            disarmFuture.cancel(false);
+            disarmFuture = null;
+        }
+    }
+
+    private void startRotation() {
+        openNextFile();
+        final long pollMs = Math.min(SIZE_POLL_INTERVAL_MS, rotateIntervalMs);
+        rotateFuture = ioExecutor.scheduleWithFixedDelay(this::rotateIfNeeded, pollMs, pollMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void rotateIfNeeded() {
+        final long length = currentFile != null ? currentFile.length() : 0;
+        if (length >= maxFileBytes * ROTATE_FILL_RATIO) {
+            Log.d(TAG, "Rotate RTC event log at " + length + " bytes");
+            openNextFile();
+        } else if (System.currentTimeMillis() - currentOpenedMs >= rotateIntervalMs) {
+            // Also retries a file that failed to open.
+            openNextFile();
+        }
+    }
+
+    private void openNextFile() {
+        currentFile = null;
+        currentOpenedMs = System.currentTimeMillis();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e(TAG, "Can not create " + directory);
+            return;
+        }
+        // Make room for the new file first so the set never exceeds maxFiles.
+        prune(maxFiles - 1);
+
+        final File file = new File(directory, FILE_PREFIX
+                + new SimpleDateFormat("yyyyMMdd_HHmmss_SSS", Locale.US).format(new Date()) + FILE_SUFFIX);
+        final int fd;
+        try {
+            fd = ParcelFileDescriptor.open(file, ParcelFileDescriptor.MODE_READ_WRITE
+                    | ParcelFileDescriptor.MODE_CREATE | ParcelFileDescriptor.MODE_TRUNCATE).detachFd();
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to open " + file + ": " + e.getMessage());
+            return;
+        }
+        currentFile = file;
+
+        pcExecutor.execute(() -> {
+            if (released) {
+                closeFd(fd);
+                return;
+            }
+            if (started) {
+                peerConnection.stopRtcEventLog();
+            }
+            // WebRTC takes ownership of the descriptor and stops writing at maxFileBytes.
+            started = peerConnection.startRtcEventLog(fd, maxFileBytes);
+            if (started) {
+                Log.d(TAG, "RTC event log file: " + file);
+            } else {
+                Log.e(TAG, "Failed to start RTC event log");
+            }
+        });
+    }
+
+    private void prune(int keep) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files == null || files.length <= keep) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (int i = 0; i < files.length - Math.max(0, keep); i++) {
+            if (!files[i].delete()) {
+                Log.w(TAG, "Failed to delete " + files[i]);
+            }
+        }
+    }
+
+    private static void closeFd(int fd) {
+        try {
+            ParcelFileDescriptor.adoptFd(fd).close();
+        } catch (IOException e) {
+            Log.w(TAG, "Failed to close RTC event log descriptor: " + e.getMessage());
+        }
+    }
+}
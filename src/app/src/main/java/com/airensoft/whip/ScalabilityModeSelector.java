@@ -0,0 +1,80 @@
+package com.airensoft.whip;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Picks the SVC scalability mode (e.g. L1T3, L3T3_KEY) for a single VP9/AV1 encoding from the
+ * modes the encoder reports.
+ */
+class ScalabilityModeSelector {
+    // Names in the order of the native webrtc::ScalabilityMode enum, which is what
+    // VideoCodecInfo.scalabilityModes carries.
+    private static final String[] MODE_NAMES = {
+            "L1T1", "L1T2", "L1T3",
+            "L2T1", "L2T1h", "L2T1_KEY",
+            "L2T2", "L2T2h", "L2T2_KEY", "L2T2_KEY_SHIFT",
+            "L2T3", "L2T3h", "L2T3_KEY",
+            "L3T1", "L3T1h", "L3T1_KEY",
+            "L3T2", "L3T2h", "L3T2_KEY",
+            "L3T3", "L3T3h", "L3T3_KEY",
+            "S2T1", "S2T1h", "S2T2", "S2T2h", "S2T3", "S2T3h",
+            "S3T1", "S3T1h", "S3T2", "S3T2h", "S3T3", "S3T3h"};
+    private static final Pattern MODE_PATTERN = Pattern.compile("^[LS](\\d)T(\\d)(.*)$");
+
+    public static boolean isSvcCodec(String codecName) {
+        return PeerConnectionConstant.VIDEO_CODEC_VP9.equals(codecName) || PeerConnectionConstant.VIDEO_CODEC_AV1.equals(codecName);
+    }
+
+    public static List<String> toModeNames(@Nullable int[] scalabilityModes) {
+        List<String> names = new ArrayList<>();
+        if (scalabilityModes == null) {
+            return names;
+        }
+        for (int mode : scalabilityModes) {
+            if (mode >= 0 && mode < MODE_NAMES.length) {
+                names.add(MODE_NAMES[mode]);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Returns `requested` if it is supported, otherwise the supported mode with the most layers
+     * that does not exceed the requested spatial and temporal layer counts. Returns null if no
+     * layered mode is available.
+     */
+    @Nullable
+    public static String select(String requested, List<String> supported) {
+        if (supported.contains(requested)) {
+            return requested;
+        }
+        Matcher requestedMatcher = MODE_PATTERN.matcher(requested);
+        if (!requestedMatcher.matches()) {
+            return null;
+        }
+        final int maxSpatial = Integer.parseInt(requestedMatcher.group(1));
+        final int maxTemporal = Integer.parseInt(requestedMatcher.group(2));
+
+        String best = null;
+        int bestLayers = 1;
+        for (String mode : supported) {
+            Matcher matcher = MODE_PATTERN.matcher(mode);
+            // Only full SVC modes ("L") without the 1.5:1 ratio ("h") are candidates.
+            if (!mode.startsWith("L") || !matcher.matches() || matcher.group(3).equals("h")) {
+                continue;
+            }
+            int spatial = Integer.parseInt(matcher.group(1));
+            int temporal = Integer.parseInt(matcher.group(2));
+            if (spatial <= maxSpatial && temporal <= maxTemporal && spatial * temporal > bestLayers) {
+                best = mode;
+                bestLayers = spatial * temporal;
+            }
+        }
+        return best;
+    }
+}
@@ -0,0 +1,193 @@
+package com.airensoft.whip;
+
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Single-threaded executor with priority lanes. All work still runs on one thread, so the
+ * PeerConnection threading rules are unchanged, but queued CONTROL work (signaling, state
+ * changes, close) always runs before OBSERVER callbacks, and both before BACKGROUND work
+ * (stats, logging). execute(Runnable) submits to CONTROL.
+ *
+ * Each lane records its queue depth and wait/run time histograms.
+ */
+class SessionExecutor implements Executor {
+    public enum Lane {
+        CONTROL, OBSERVER, BACKGROUND
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final long enqueueNs;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+            this.enqueueNs = System.nanoTime();
+        }
+    }
+
+    /**
+     * Power-of-two microsecond buckets; bucket i counts durations below 2^i us.
+     */
+    public static class LatencyHistogram {
+        private static final int BUCKETS = 26; // up to ~33s
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong maxUs = new AtomicLong();
+
+        void record(long durationUs) {
+            int bucket = durationUs <= 0 ? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(durationUs));
+            counts.incrementAndGet(bucket);
+            total.incrementAndGet();
+            long max;
+            while (durationUs > (max = maxUs.get()) && !maxUs.compareAndSet(max, durationUs)) {
+                // retry
+            }
+        }
+
+        public long getCount() {
+            return total.get();
+        }
+
+        public long getMaxUs() {
+            return maxUs.get();
+        }
+
+        /**
+         * Returns the upper bound of the bucket holding the `percentile` (0-100) sample.
+         */
+        public long getPercentileUs(double percentile) {
+            final long count = total.get();
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return maxUs.get();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "n=%d p50<%dus p99<%dus max=%dus",
+                    getCount(), getPercentileUs(50), getPercentileUs(99), getMaxUs());
+        }
+    }
+
+    public static class LaneMetrics {
+        private final AtomicInteger depth = new AtomicInteger();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        public final LatencyHistogram waitTime = new LatencyHistogram();
+        public final LatencyHistogram runTime = new LatencyHistogram();
+
+        public int getDepth() {
+            return depth.get();
+        }
+
+        public int getMaxDepth() {
+            return maxDepth.get();
+        }
+
+        private void enqueued() {
+            int current = depth.incrementAndGet();
+            int max;
+            while (current > (max = maxDepth.get()) && !maxDepth.compareAndSet(max, current)) {
+                // retry
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "depth=%d max=%d wait[%s] run[%s]", getDepth(), getMaxDepth(), waitTime, runTime);
+        }
+    }
+
+    private final Lane[] lanes = Lane.values();
+    @SuppressWarnings("unchecked")
+    private final Queue<Task>[] queues = new Queue[lanes.length];
+    private final LaneMetrics[] metrics = new LaneMetrics[lanes.length];
+    // One permit per queued task.
+    private final Semaphore pending = new Semaphore(0);
+    private final Thread thread;
+
+    SessionExecutor(String name) {
+        for (int i = 0; i < lanes.length; i++) {
+            queues[i] = new ConcurrentLinkedQueue<>();
+            metrics[i] = new LaneMetrics();
+        }
+        thread = new Thread(this::run, name);
+        thread.start();
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        execute(Lane.CONTROL, runnable);
+    }
+
+    public void execute(Lane lane, Runnable runnable) {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+        metrics[lane.ordinal()].enqueued();
+        queues[lane.ordinal()].offer(new Task(runnable));
+        pending.release();
+    }
+
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == thread;
+    }
+
+    public LaneMetrics getMetrics(Lane lane) {
+        return metrics[lane.ordinal()];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (Lane lane : lanes) {
+            builder.append(lane).append(": ").append(metrics[lane.ordinal()]).append('\n');
+        }
+        return builder.toString();
+    }
+
+    private void run() {
+        while (true) {
+            pending.acquireUninterruptibly();
+            for (int i = 0; i < lanes.length; i++) {
+                Task task = queues[i].poll();
+                if (task != null) {
+                    runTask(task, metrics[i]);
+                    break;
+                }
+            }
+        }
+    }
+
+    private void runTask(Task task, LaneMetrics laneMetrics) {
+        laneMetrics.depth.decrementAndGet();
+        final long startNs = System.nanoTime();
+        laneMetrics.waitTime.record((startNs - task.enqueueNs) / 1000);
+        try {
+            task.runnable.run();
+        } catch (Throwable t) {
+            // Same outcome as a pool thread dying, but the lanes keep being served.
+            Thread.UncaughtExceptionHandler handler = thread.getUncaughtExceptionHandler();
+            if (handler != null) {
+                handler.uncaughtException(thread, t);
+            }
+        } finally {
+            laneMetrics.runTime.record((System.nanoTime() - startNs) / 1000);
+        }
+    }
+}
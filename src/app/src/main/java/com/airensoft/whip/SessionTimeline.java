@@ -0,0 +1,244 @@
+package com.airensoft.whip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records the session as a binary timeline of fixed-width records: per-layer stats, ICE and
+ * PeerConnection state transitions, WHIP request timings, encode and thermal governor decisions
+ * and memory samples.
+ *
+ * The file is sized up front and memory-mapped, so a record is a few stores into the page cache
+ * without a system call or an allocation. Writers reserve their slot with an atomic add and write
+ * the record type last, so a record that was not finished reads as empty and is skipped. The
+ * kernel owns the written pages, so a killed process loses at most the records being written.
+ *
+ * The layout is described in SessionTimelineSummarizer, which reads the files offline.
+ */
+class SessionTimeline {
+    private static final String TAG = "SessionTimeline";
+    private static final String FILE_PREFIX = "timeline_";
+    static final String FILE_SUFFIX = ".wtl";
+
+    static final int MAGIC = 0x57544C31; // "WTL1"
+    static final short VERSION = 1;
+    static final int HEADER_BYTES = 32;
+    static final int RECORD_BYTES = 32;
+
+    // Record types; 0 is a slot that was never written.
+    static final byte TYPE_LAYER = 1;
+    static final byte TYPE_ICE_STATE = 2;
+    static final byte TYPE_CONNECTION_STATE = 3;
+    static final byte TYPE_WHIP = 4;
+    static final byte TYPE_GOVERNOR = 5;
+    static final byte TYPE_MEMORY = 6;
+    static final byte TYPE_THERMAL = 7;
+
+    static final byte WHIP_OPTIONS = 0;
+    static final byte WHIP_POST = 1;
+    static final byte WHIP_DELETE = 2;
+
+    private static final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private static final Object lock = new Object();
+    private static final AtomicInteger nextOffset = new AtomicInteger();
+    private static final AtomicLong droppedRecords = new AtomicLong();
+    private static volatile MappedByteBuffer buffer;
+    private static long startNs;
+    private static File file;
+
+    /**
+     * Starts a timeline of at most `maxBytes` in `directory`, keeping the newest `maxFiles`.
+     */
+    public static boolean start(File directory, int maxBytes, int maxFiles) {
+        synchronized (lock) {
+            if (buffer != null) {
+                AsyncLog.w(TAG, "Session timeline is already running");
+                return false;
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                AsyncLog.e(TAG, "Can not create %s", directory);
+                return false;
+            }
+            // Make room for the new file first so the set never exceeds maxFiles.
+            prune(directory, maxFiles - 1);
+
+            final long epochMs = System.currentTimeMillis();
+            file = new File(directory, FILE_PREFIX + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date(epochMs)) + FILE_SUFFIX);
+            final int length = HEADER_BYTES + (maxBytes - HEADER_BYTES) / RECORD_BYTES * RECORD_BYTES;
+            MappedByteBuffer mapped;
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw")) {
+                // A new file reads as zeros, i.e. an empty timeline.
+                output.setLength(length);
+                mapped = output.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            } catch (IOException e) {
+                AsyncLog.e(TAG, "Failed to create %s: %s", file, e);
+                return false;
+            }
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            mapped.putInt(0, MAGIC);
+            mapped.putShort(4, VERSION);
+            mapped.putShort(6, (short) RECORD_BYTES);
+            mapped.putLong(8, epochMs);
+
+            startNs = System.nanoTime();
+            nextOffset.set(HEADER_BYTES);
+            droppedRecords.set(0);
+            buffer = mapped;
+            AsyncLog.i(TAG, "Session timeline started: %s", file);
+            return true;
+        }
+    }
+
+    /**
+     * Stops the timeline and logs its summary on a background thread.
+     */
+    public static void stop() {
+        final MappedByteBuffer mapped;
+        final File output;
+        synchronized (lock) {
+            mapped = buffer;
+            if (mapped == null) {
+                return;
+            }
+            buffer = null;
+            output = file;
+        }
+        executor.execute(() -> {
+            mapped.putLong(16, droppedRecords.get());
+            mapped.force();
+            try {
+                AsyncLog.i(TAG, "Session timeline %s:\n%s", output, SessionTimelineSummarizer.summarize(output));
+            } catch (IOException e) {
+                AsyncLog.w(TAG, "Failed to summarize %s: %s", output, e);
+            }
+        });
+    }
+
+    public static boolean isRecording() {
+        return buffer != null;
+    }
+
+    /**
+     * Records the video layers of one stats interval. The subject is the simulcast rid, so a layer
+     * keeps its subject whatever order the stats report lists it in.
+     */
+    public static void recordLayers(List<OutboundLayerStats.Layer> layers) {
+        if (buffer == null) {
+            return;
+        }
+        for (OutboundLayerStats.Layer layer : layers) {
+            final int subject = layer.rid != null ? indexOf(SessionTimelineSummarizer.LAYERS, layer.rid) : 0;
+            record(TYPE_LAYER, subject, indexOf(SessionTimelineSummarizer.LIMITATION_REASONS, layer.qualityLimitationReason),
+                    (int) layer.frameWidth, (int) layer.frameHeight, (int) layer.bitrateBps,
+                    (float) layer.framesPerSecond, 0, 0);
+        }
+    }
+
+    public static void recordIceState(Enum<?> state) {
+        if (buffer == null) {
+            return;
+        }
+        record(TYPE_ICE_STATE, 0, indexOf(SessionTimelineSummarizer.ICE_STATES, state.name()), 0, 0, 0, 0, 0, 0);
+    }
+
+    public static void recordConnectionState(Enum<?> state) {
+        if (buffer == null) {
+            return;
+        }
+        record(TYPE_CONNECTION_STATE, 0, indexOf(SessionTimelineSummarizer.CONNECTION_STATES, state.name()), 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Records a WHIP request that started at `requestStartNs` (System.nanoTime) and ended now. `status`
+     * is the HTTP status, or -1 if the request failed.
+     */
+    public static void recordWhip(byte method, int status, long requestStartNs) {
+        if (buffer == null) {
+            return;
+        }
+        record(TYPE_WHIP, method, status, (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestStartNs), 0, 0, 0, 0, 0);
+    }
+
+    public static void recordGovernor(int oldLevel, int newLevel, EncodeGovernor.Step step, EncodeGovernor.Sample sample) {
+        if (buffer == null) {
+            return;
+        }
+        record(TYPE_GOVERNOR, step.ordinal(), indexOf(SessionTimelineSummarizer.LIMITATION_REASONS, sample.qualityLimitationReason),
+                oldLevel, newLevel, 0, (float) sample.processLoad, (float) sample.maxCoreLoad, (float) sample.encodeLoad);
+    }
+
+    public static void recordThermal(int oldLevel, int newLevel, EncodeGovernor.Step step, ThermalGovernor.Sample sample) {
+        if (buffer == null) {
+            return;
+        }
+        record(TYPE_THERMAL, step.ordinal(), sample.status, oldLevel, newLevel, 0, (float) sample.headroom, 0, 0);
+    }
+
+    public static void recordMemory(long nativeKb, long javaKb, long pssKb, int outstandingBuffers) {
+        if (buffer == null) {
+            return;
+        }
+        record(TYPE_MEMORY, 0, 0, (int) nativeKb, (int) javaKb, (int) pssKb, outstandingBuffers, 0, 0);
+    }
+
+    private static void record(byte type, int subject, int code, int v0, int v1, int v2, float f0, float f1, float f2) {
+        final MappedByteBuffer mapped = buffer;
+        if (mapped == null) {
+            return;
+        }
+        final int offset = nextOffset.getAndAdd(RECORD_BYTES);
+        if (offset > mapped.capacity() - RECORD_BYTES) {
+            droppedRecords.incrementAndGet();
+            return;
+        }
+        // Absolute stores only, so writers never share the buffer's position.
+        mapped.putInt(offset, (int) TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNs));
+        mapped.put(offset + 5, (byte) subject);
+        mapped.putShort(offset + 6, (short) code);
+        mapped.putInt(offset + 8, v0);
+        mapped.putInt(offset + 12, v1);
+        mapped.putInt(offset + 16, v2);
+        mapped.putFloat(offset + 20, f0);
+        mapped.putFloat(offset + 24, f1);
+        mapped.putFloat(offset + 28, f2);
+        // Last, so a record is either complete or reads as empty.
+        mapped.put(offset + 4, type);
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void prune(File directory, int keep) {
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(FILE_PREFIX) && name.endsWith(FILE_SUFFIX));
+        if (files == null || files.length <= keep) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        for (int i = 0; i < files.length - Math.max(0, keep); i++) {
+            if (!files[i].delete()) {
+                AsyncLog.w(TAG, "Failed to delete %s", files[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package com.airensoft.whip;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads the files of SessionTimeline. It uses no Android or WebRTC API, so SessionTimelineTool
+ * in the test source set runs it on a desktop against pulled files.
+ *
+ * All values are little endian. The 32 byte header is the magic "WTL1" (int), the version
+ * (short), the record size (short), the start time in epoch ms (long) and the number of dropped
+ * records (long, written on stop). Each 32 byte record is:
+ *
+ *     0  int    ms since the start
+ *     4  byte   type (0 for a slot that was never written)
+ *     5  byte   subject: layer rid, WHIP method or governor step
+ *     6  short  code: limitation reason, state, HTTP or thermal status
+ *     8  int    v0, v1, v2
+ *     20 float  f0, f1, f2
+ *
+ *     LAYER       v0=width v1=height v2=bitrate (bps) f0=fps
+ *     ICE_STATE   code=IceConnectionState
+ *     CONNECTION  code=PeerConnectionState
+ *     WHIP        v0=duration (ms)
+ *     GOVERNOR    v0=old level v1=new level f0=process load f1=max core load f2=encode load
+ *     THERMAL     v0=old level v1=new level code=thermal status f0=headroom
+ *     MEMORY      v0=native heap (KB) v1=Java heap (KB) v2=PSS (KB) f0=outstanding frame buffers
+ */
+class SessionTimelineSummarizer {
+    // Layer subjects: a single encoding has no rid.
+    static final String[] LAYERS = {"-", "low", "mid", "high"};
+    static final String[] LIMITATION_REASONS = {"none", "cpu", "bandwidth", "other"};
+    static final String[] ICE_STATES = {"NEW", "CHECKING", "CONNECTED", "COMPLETED", "FAILED", "DISCONNECTED", "CLOSED"};
+    static final String[] CONNECTION_STATES = {"NEW", "CONNECTING", "CONNECTED", "DISCONNECTED", "FAILED", "CLOSED"};
+    static final String[] WHIP_METHODS = {"OPTIONS", "POST", "DELETE"};
+    static final String[] GOVERNOR_STEPS = {"FRAMERATE", "RESOLUTION", "LAYERS", "COMPLEXITY"};
+    private static final String[] TYPES = {"", "LAYER", "ICE_STATE", "CONNECTION", "WHIP", "GOVERNOR", "MEMORY", "THERMAL"};
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    static class Record {
+        int timeMs;
+        int type;
+        int subject;
+        int code;
+        int v0;
+        int v1;
+        int v2;
+        float f0;
+        float f1;
+        float f2;
+    }
+
+    static class Timeline {
+        long startEpochMs;
+        long droppedRecords;
+        final List<Record> records = new ArrayList<>();
+    }
+
+    public static Timeline read(File file) throws IOException {
+        final ByteBuffer data;
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            data = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, input.length());
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.capacity() < SessionTimeline.HEADER_BYTES || data.getInt(0) != SessionTimeline.MAGIC) {
+            throw new IOException("Not a session timeline: " + file);
+        }
+        if (data.getShort(4) > SessionTimeline.VERSION) {
+            throw new IOException("Unsupported version " + data.getShort(4) + ": " + file);
+        }
+        final int recordBytes = data.getShort(6);
+        final Timeline timeline = new Timeline();
+        timeline.startEpochMs = data.getLong(8);
+        timeline.droppedRecords = data.getLong(16);
+        for (int offset = SessionTimeline.HEADER_BYTES; offset + recordBytes <= data.capacity(); offset += recordBytes) {
+            final int type = data.get(offset + 4);
+            if (type == 0) {
+                // Never written, or the process died while writing it.
+                continue;
+            }
+            Record record = new Record();
+            record.timeMs = data.getInt(offset);
+            record.type = type;
+            record.subject = data.get(offset + 5);
+            record.code = data.getShort(offset + 6);
+            record.v0 = data.getInt(offset + 8);
+            record.v1 = data.getInt(offset + 12);
+            record.v2 = data.getInt(offset + 16);
+            record.f0 = data.getFloat(offset + 20);
+            record.f1 = data.getFloat(offset + 24);
+            record.f2 = data.getFloat(offset + 28);
+            timeline.records.add(record);
+        }
+        return timeline;
+    }
+
+    public static String summarize(File file) throws IOException {
+        return summarize(read(file));
+    }
+
+    /**
+     * Returns the percentiles of every layer, WHIP method and the memory samples, the state
+     * transitions and the encode and thermal governor decisions.
+     */
+    public static String summarize(Timeline timeline) {
+        final StringBuilder out = new StringBuilder();
+        int durationMs = 0;
+        for (Record record : timeline.records) {
+            durationMs = Math.max(durationMs, record.timeMs);
+        }
+        out.append(String.format(Locale.US, "Started %s, %.1fs, %d records, %d dropped\n",
+                new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US).format(new Date(timeline.startEpochMs)),
+                durationMs / 1000.0, timeline.records.size(), timeline.droppedRecords));
+
+        final Map<Integer, List<Record>> layers = new TreeMap<>();
+        final Map<Integer, List<Record>> requests = new TreeMap<>();
+        final List<Record> memory = new ArrayList<>();
+        for (Record record : timeline.records) {
+            if (record.type == SessionTimeline.TYPE_LAYER) {
+                layers.computeIfAbsent(record.subject, key -> new ArrayList<>()).add(record);
+            } else if (record.type == SessionTimeline.TYPE_WHIP) {
+                requests.computeIfAbsent(record.subject, key -> new ArrayList<>()).add(record);
+            } else if (record.type == SessionTimeline.TYPE_MEMORY) {
+                memory.add(record);
+            }
+        }
+
+        for (Map.Entry<Integer, List<Record>> entry : layers.entrySet()) {
+            final List<Record> samples = entry.getValue();
+            final double[] kbps = new double[samples.size()];
+            final double[] fps = new double[samples.size()];
+            final int[] limited = new int[LIMITATION_REASONS.length];
+            for (int i = 0; i < samples.size(); i++) {
+                Record record = samples.get(i);
+                kbps[i] = record.v2 / (double) PeerConnectionConstant.BPS_IN_KBPS;
+                fps[i] = record.f0;
+                if (record.code >= 0 && record.code < limited.length) {
+                    limited[record.code]++;
+                }
+            }
+            final Record last = samples.get(samples.size() - 1);
+            out.append(String.format(Locale.US, "Layer %s (%dx%d, %d samples): kbps %s fps %s limited",
+                    name(LAYERS, entry.getKey()), last.v0, last.v1, samples.size(), percentiles(kbps), percentiles(fps)));
+            for (int i = 1; i < limited.length; i++) {
+                out.append(String.format(Locale.US, " %s=%.0f%%", LIMITATION_REASONS[i], 100.0 * limited[i] / samples.size()));
+            }
+            out.append('\n');
+        }
+
+        for (Map.Entry<Integer, List<Record>> entry : requests.entrySet()) {
+            final List<Record> samples = entry.getValue();
+            final double[] durations = new double[samples.size()];
+            final Map<Integer, Integer> statuses = new TreeMap<>();
+            for (int i = 0; i < samples.size(); i++) {
+                durations[i] = samples.get(i).v0;
+                statuses.merge(samples.get(i).code, 1, Integer::sum);
+            }
+            out.append(String.format(Locale.US, "WHIP %s (%d): ms %s status %s\n",
+                    name(WHIP_METHODS, entry.getKey()), samples.size(), percentiles(durations), statuses));
+        }
+
+        if (!memory.isEmpty()) {
+            final double[] nativeMb = new double[memory.size()];
+            final double[] javaMb = new double[memory.size()];
+            final double[] pssMb = new double[memory.size()];
+            final double[] buffers = new double[memory.size()];
+            for (int i = 0; i < memory.size(); i++) {
+                nativeMb[i] = memory.get(i).v0 / 1024.0;
+                javaMb[i] = memory.get(i).v1 / 1024.0;
+                pssMb[i] = memory.get(i).v2 / 1024.0;
+                buffers[i] = memory.get(i).f0;
+            }
+            out.append(String.format(Locale.US, "Memory (%d samples): native MB %s java MB %s pss MB %s buffers %s\n",
+                    memory.size(), percentiles(nativeMb), percentiles(javaMb), percentiles(pssMb), percentiles(buffers)));
+        }
+
+        for (Record record : timeline.records) {
+            if (record.type == SessionTimeline.TYPE_ICE_STATE || record.type == SessionTimeline.TYPE_CONNECTION_STATE
+                    || record.type == SessionTimeline.TYPE_GOVERNOR || record.type == SessionTimeline.TYPE_THERMAL) {
+                out.append(String.format(Locale.US, "%9.3fs %s\n", record.timeMs / 1000.0, describe(record)));
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes one row per record.
+     */
+    public static void exportCsv(Timeline timeline, File file) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))) {
+            writer.println("time_ms,type,subject,code,v0,v1,v2,f0,f1,f2");
+            for (Record record : timeline.records) {
+                writer.println(String.format(Locale.US, "%d,%s,%s,%s,%d,%d,%d,%.3f,%.3f,%.3f",
+                        record.timeMs, name(TYPES, record.type), subjectName(record), codeName(record),
+                        record.v0, record.v1, record.v2, record.f0, record.f1, record.f2));
+            }
+        }
+    }
+
+    private static String describe(Record record) {
+        switch (record.type) {
+            case SessionTimeline.TYPE_ICE_STATE:
+                return "ICE " + name(ICE_STATES, record.code);
+            case SessionTimeline.TYPE_CONNECTION_STATE:
+                return "PeerConnection " + name(CONNECTION_STATES, record.code);
+            case SessionTimeline.TYPE_GOVERNOR:
+                return String.format(Locale.US, "Governor %s %d -> %d (%s) process=%.2f core=%.2f encode=%.2f limitation=%s",
+                        record.v1 > record.v0 ? "down" : "up", record.v0, record.v1, name(GOVERNOR_STEPS, record.subject),
+                        record.f0, record.f1, record.f2, name(LIMITATION_REASONS, record.code));
+            case SessionTimeline.TYPE_THERMAL:
+                return String.format(Locale.US, "Thermal %s %d -> %d (%s) status=%d headroom=%.2f",
+                        record.v1 > record.v0 ? "down" : "up", record.v0, record.v1, name(GOVERNOR_STEPS, record.subject),
+                        record.code, record.f0);
+            default:
+                return name(TYPES, record.type);
+        }
+    }
+
+    private static String subjectName(Record record) {
+        switch (record.type) {
+            case SessionTimeline.TYPE_LAYER:
+                return name(LAYERS, record.subject);
+            case SessionTimeline.TYPE_WHIP:
+                return name(WHIP_METHODS, record.subject);
+            case SessionTimeline.TYPE_GOVERNOR:
+            case SessionTimeline.TYPE_THERMAL:
+                return name(GOVERNOR_STEPS, record.subject);
+            default:
+                return String.valueOf(record.subject);
+        }
+    }
+
+    private static String codeName(Record record) {
+        switch (record.type) {
+            case SessionTimeline.TYPE_LAYER:
+            case SessionTimeline.TYPE_GOVERNOR:
+                return name(LIMITATION_REASONS, record.code);
+            case SessionTimeline.TYPE_ICE_STATE:
+                return name(ICE_STATES, record.code);
+            case SessionTimeline.TYPE_CONNECTION_STATE:
+                return name(CONNECTION_STATES, record.code);
+            default:
+                return String.valueOf(record.code);
+        }
+    }
+
+    private static String name(String[] names, int index) {
+        return index >= 0 && index < names.length ? names[index] : "unknown";
+    }
+
+    /**
+     * Nearest-rank percentiles and the maximum, as "p50/p90/p99/max".
+     */
+    private static String percentiles(double[] values) {
+        if (values.length == 0) {
+            return "-";
+        }
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final StringBuilder out = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            final int rank = (int) Math.ceil(percentile * sorted.length);
+            out.append(String.format(Locale.US, "%.1f/", sorted[Math.max(0, rank - 1)]));
+        }
+        return out.append(String.format(Locale.US, "%.1f", sorted[sorted.length - 1])).toString();
+    }
+}
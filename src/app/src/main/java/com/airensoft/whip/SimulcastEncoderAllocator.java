@@ -0,0 +1,547 @@
+package com.airensoft.whip;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+
+import androidx.annotation.Nullable;
+
+import org.webrtc.EglBase;
+import org.webrtc.HardwareVideoEncoderFactory;
+import org.webrtc.SimulcastVideoEncoder;
+import org.webrtc.SoftwareVideoEncoderFactory;
+import org.webrtc.VideoCodecInfo;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoEncoderFactory;
+import org.webrtc.VideoEncoderFallback;
+import org.webrtc.VideoFrame;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Primary encoder factory for SimulcastVideoEncoderFactory that puts hardware encoders on the
+ * most expensive simulcast layers and software encoders on the rest, within the number of
+ * concurrent MediaCodec sessions the device allows for each MIME type.
+ *
+ * SimulcastEncoderAdapter creates encoders in no fixed relation to the layers (an extra one for
+ * its encoder info, cached ones on re-init, fewer when layers are inactive), so the choice is
+ * made in initEncode from the layer's resolution. Every encoder is a VideoEncoderFallback whose
+ * primary opens a hardware encoder for a hardware layer and otherwise answers
+ * FALLBACK_SOFTWARE, which makes WebRTC use the native software encoder.
+ */
+class SimulcastEncoderAllocator implements VideoEncoderFactory, SimulcastVideoEncoder.LayerAllocation {
+    private static final String TAG = "SimulcastAllocator";
+    private static final int MAX_PROBE_INSTANCES = 8;
+    private static final int PROBE_WIDTH = 320;
+    private static final int PROBE_HEIGHT = 240;
+    // Capacity assumed until the probe finishes: the highest layer on hardware.
+    private static final int DEFAULT_CAPACITY = 1;
+
+    // Concurrent hardware sessions per MIME type, shared by every allocator in the process. The
+    // probed value is a hint: initEncode lowers it when a hardware encoder fails to open and
+    // raises it when more sessions open than it allows.
+    private static final Map<String, Integer> capacityByMime = new HashMap<>();
+    private static final Map<String, Integer> activeByMime = new HashMap<>();
+    // MIME types whose probe is queued or running; guarded by capacityByMime.
+    private static final Set<String> probingMimes = new LinkedHashSet<>();
+    // Opening MediaCodec sessions takes hundreds of milliseconds on some devices.
+    private static final ExecutorService probeExecutor = Executors.newSingleThreadExecutor();
+
+    private final HardwareVideoEncoderFactory hardwareFactory;
+    private final SoftwareVideoEncoderFactory softwareFactory = new SoftwareVideoEncoderFactory();
+    private final int layerCount;
+    private final List<Allocation> allocations = new ArrayList<>();
+    // Longer side of the captured frames, 0 if unknown, and the downscale of the highest layer.
+    private int captureSize;
+    private double topLayerScale = 1.0;
+    private boolean preferSoftware;
+    @Nullable
+    private EncodingHub hub;
+    @Nullable
+    private EncodedStreamTee tee;
+    @Nullable
+    private KeyFrameManager keyFrameManager;
+
+    /**
+     * Encoder chosen for one simulcast layer. Layer 0 is the lowest resolution.
+     */
+    public static class Allocation {
+        public final String codec;
+        public final int layer;
+        public final boolean hardware;
+
+        Allocation(String codec, int layer, boolean hardware) {
+            this.codec = codec;
+            this.layer = layer;
+            this.hardware = hardware;
+        }
+
+        @Override
+        public String toString() {
+            return codec + "[" + layer + "]=" + (hardware ? "hw" : "sw");
+        }
+    }
+
+    SimulcastEncoderAllocator(EglBase.Context eglContext, int layerCount) {
+        this.hardwareFactory = new HardwareVideoEncoderFactory(eglContext, false, true);
+        this.layerCount = Math.max(1, layerCount);
+    }
+
+    @Nullable
+    @Override
+    public VideoEncoder createEncoder(VideoCodecInfo info) {
+        final LayerEncoder layerEncoder = new LayerEncoder(info);
+        if (!isSupported(softwareFactory, info)) {
+            // Nothing to fall back to, e.g. H265: every layer tries the hardware encoder.
+            layerEncoder.softwareAvailable = false;
+            return layerEncoder;
+        }
+        VideoEncoder softwareEncoder = softwareFactory.createEncoder(info);
+        if (softwareEncoder == null) {
+            layerEncoder.softwareAvailable = false;
+            return layerEncoder;
+        }
+        return new VideoEncoderFallback(softwareEncoder, layerEncoder);
+    }
+
+    @Override
+    public VideoCodecInfo[] getSupportedCodecs() {
+        Set<VideoCodecInfo> supportedCodecInfos = new LinkedHashSet<>();
+        supportedCodecInfos.addAll(Arrays.asList(softwareFactory.getSupportedCodecs()));
+        supportedCodecInfos.addAll(Arrays.asList(hardwareFactory.getSupportedCodecs()));
+        return supportedCodecInfos.toArray(new VideoCodecInfo[supportedCodecInfos.size()]);
+    }
+
+    @Override
+    public synchronized boolean isHardwareEncoder(VideoCodecInfo info) {
+        for (Allocation allocation : allocations) {
+            if (allocation.hardware && allocation.codec.equals(info.name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the encoder chosen for each initialized layer, lowest layer first.
+     */
+    public synchronized List<Allocation> getAllocations() {
+        final List<Allocation> sorted = new ArrayList<>(allocations);
+        Collections.sort(sorted, (a, b) -> Integer.compare(a.layer, b.layer));
+        return Collections.unmodifiableList(sorted);
+    }
+
+    /**
+     * Sets the capture size. An encoder's layer is derived from its resolution relative to the
+     * highest layer, which is the capture size divided by the top layer scale; the layers below
+     * it are 1/2 and 1/4 of it.
+     */
+    public synchronized void setCaptureSize(int width, int height) {
+        this.captureSize = Math.max(width, height);
+    }
+
+    /**
+     * Sets the scaleResolutionDownBy currently applied to the highest layer.
+     */
+    public synchronized void setTopLayerScale(double scale) {
+        this.topLayerScale = Math.max(1.0, scale);
+    }
+
+    /**
+     * Uses software encoders for every layer the software factory supports, e.g. when an SVC mode
+     * that MediaCodec cannot produce is requested.
+     */
+    public synchronized void setPreferSoftware(boolean preferSoftware) {
+        this.preferSoftware = preferSoftware;
+    }
+
+    /**
+     * Shares the hardware encoders created from now on with the other sessions in `hub`.
+     */
+    public synchronized void setHub(@Nullable EncodingHub hub) {
+        this.hub = hub;
+    }
+
+    /**
+     * Copies the output of the encoders created from now on to `tee`. Only Java (hardware)
+     * encoders can be teed; layers that fall back to software are not written.
+     */
+    public synchronized void setTee(@Nullable EncodedStreamTee tee) {
+        this.tee = tee;
+    }
+
+    /**
+     * Manages the key frame requests of the encoders created from now on. Only Java (hardware)
+     * encoders can be managed.
+     */
+    public synchronized void setKeyFrameManager(@Nullable KeyFrameManager keyFrameManager) {
+        this.keyFrameManager = keyFrameManager;
+    }
+
+    @Nullable
+    public VideoCodecInfo findSoftwareCodec(String codecName) {
+        for (VideoCodecInfo info : softwareFactory.getSupportedCodecs()) {
+            if (info.name.equalsIgnoreCase(codecName)) {
+                return info;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Starts probing the hardware session capacity in the background ahead of the first
+     * createEncoder call. Until the probe finishes DEFAULT_CAPACITY is assumed.
+     */
+    public void prepare(String codecName) {
+        final String mime = getMimeType(codecName);
+        if (mime == null) {
+            return;
+        }
+        synchronized (capacityByMime) {
+            if (capacityByMime.containsKey(mime) || !probingMimes.add(mime)) {
+                return;
+            }
+        }
+        probeExecutor.execute(() -> {
+            final int probed = probeCapacity(mime);
+            synchronized (capacityByMime) {
+                probingMimes.remove(mime);
+                // Sessions opened meanwhile were unavailable to the probe.
+                final int capacity = probed + getActive(mime);
+                capacityByMime.put(mime, capacity);
+                AsyncLog.d(TAG, "Hardware encoder capacity for %s: %d", mime, capacity);
+            }
+        });
+    }
+
+    private static boolean isSupported(VideoEncoderFactory factory, VideoCodecInfo info) {
+        for (VideoCodecInfo supported : factory.getSupportedCodecs()) {
+            if (supported.name.equalsIgnoreCase(info.name)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int getAvailableHardwareSessions(String codecName) {
+        final String mime = getMimeType(codecName);
+        if (mime == null) {
+            return 0;
+        }
+        return Math.max(0, getCapacity(mime) - getActive(mime));
+    }
+
+    private static int getCapacity(String mime) {
+        synchronized (capacityByMime) {
+            Integer capacity = capacityByMime.get(mime);
+            return capacity != null ? capacity : DEFAULT_CAPACITY;
+        }
+    }
+
+    private static int getActive(String mime) {
+        synchronized (activeByMime) {
+            Integer active = activeByMime.get(mime);
+            return active == null ? 0 : active;
+        }
+    }
+
+    /**
+     * Corrects the capacity hint of `mime` to the sessions open when a hardware encoder failed
+     * (lower) or succeeded (higher) to open.
+     */
+    private static void correctCapacity(@Nullable String mime, boolean opened) {
+        if (mime == null) {
+            return;
+        }
+        synchronized (capacityByMime) {
+            final int capacity = getCapacity(mime);
+            final int active = getActive(mime);
+            final int corrected = opened ? Math.max(capacity, active) : Math.min(capacity, active);
+            if (corrected != capacity) {
+                capacityByMime.put(mime, corrected);
+                AsyncLog.d(TAG, "Hardware encoder capacity for %s corrected to %d", mime, corrected);
+            }
+        }
+    }
+
+    /**
+     * Returns how many encoder sessions of the hardware encoder HardwareVideoEncoderFactory uses
+     * for `mime` can be configured at the same time. The advertised getMaxSupportedInstances() is
+     * only an upper bound, so the sessions are actually configured and released again.
+     */
+    private static int probeCapacity(String mime) {
+        final MediaCodecInfo info = HardwareEncoderFilter.find(mime);
+        if (info == null) {
+            return 0;
+        }
+        final MediaCodecInfo.CodecCapabilities capabilities = info.getCapabilitiesForType(mime);
+        final int limit = Math.min(MAX_PROBE_INSTANCES, capabilities.getMaxSupportedInstances());
+        final List<MediaCodec> codecs = new ArrayList<>();
+        for (int i = 0; i < limit; i++) {
+            MediaCodec codec = null;
+            try {
+                codec = MediaCodec.createByCodecName(info.getName());
+                codec.configure(createProbeFormat(mime), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                codecs.add(codec);
+            } catch (Exception e) {
+                AsyncLog.d(TAG, "Hardware encoder %s stops at %d sessions: %s", info.getName(), codecs.size(), e.getMessage());
+                if (codec != null) {
+                    codec.release();
+                }
+                break;
+            }
+        }
+        final int capacity = codecs.size();
+        for (MediaCodec codec : codecs) {
+            codec.release();
+        }
+        return capacity;
+    }
+
+    private static MediaFormat createProbeFormat(String mime) {
+        MediaFormat format = MediaFormat.createVideoFormat(mime, PROBE_WIDTH, PROBE_HEIGHT);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, 300_000);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+        return format;
+    }
+
+    @Nullable
+    private static String getMimeType(String codecName) {
+        switch (codecName) {
+            case PeerConnectionConstant.VIDEO_CODEC_VP8:
+                return MediaFormat.MIMETYPE_VIDEO_VP8;
+            case PeerConnectionConstant.VIDEO_CODEC_VP9:
+                return MediaFormat.MIMETYPE_VIDEO_VP9;
+            case PeerConnectionConstant.VIDEO_CODEC_AV1:
+                return MediaFormat.MIMETYPE_VIDEO_AV1;
+            case PeerConnectionConstant.VIDEO_CODEC_H264:
+                return MediaFormat.MIMETYPE_VIDEO_AVC;
+            case PeerConnectionConstant.VIDEO_CODEC_H265:
+                return MediaFormat.MIMETYPE_VIDEO_HEVC;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the simulcast layer of an encoder of width x height, 0 being the lowest.
+     */
+    private synchronized int getLayer(int width, int height) {
+        if (captureSize <= 0 || layerCount == 1) {
+            return layerCount - 1;
+        }
+        final double scale = captureSize / topLayerScale / Math.max(1, Math.max(width, height));
+        final int down = (int) Math.round(Math.log(Math.max(1.0, scale)) / Math.log(2));
+        return Math.max(0, layerCount - 1 - down);
+    }
+
+    /**
+     * Returns true if `layer` is among the highest layers the hardware sessions still available
+     * (plus the ones this allocator already holds) can cover.
+     */
+    private synchronized boolean shouldUseHardware(String codecName, int layer) {
+        if (preferSoftware) {
+            return false;
+        }
+        int ownHardware = 0;
+        for (Allocation allocation : allocations) {
+            ownHardware += allocation.hardware && allocation.codec.equals(codecName) ? 1 : 0;
+        }
+        final int hardwareLayers = Math.min(layerCount, getAvailableHardwareSessions(codecName) + ownHardware);
+        return layer >= layerCount - hardwareLayers;
+    }
+
+    private synchronized void setAllocation(@Nullable Allocation previous, @Nullable Allocation allocation) {
+        if (previous != null) {
+            allocations.remove(previous);
+        }
+        if (allocation != null) {
+            allocations.add(allocation);
+        }
+        AsyncLog.d(TAG, "Simulcast encoder allocation: %s", getAllocations().toString());
+    }
+
+    /**
+     * Primary encoder of one VideoEncoderFallback. Opens the hardware encoder (with the hub,
+     * key frame manager and tee in front of it) when the layer it is initialized for should run
+     * on hardware, and answers FALLBACK_SOFTWARE otherwise.
+     */
+    private class LayerEncoder implements VideoEncoder {
+        private final VideoCodecInfo info;
+        private boolean softwareAvailable = true;
+        // Accessed on the encoder thread only.
+        @Nullable
+        private VideoEncoder delegate;
+        @Nullable
+        private Allocation allocation;
+
+        LayerEncoder(VideoCodecInfo info) {
+            this.info = info;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+            // A re-init may move the encoder to another layer; its old allocation no longer counts.
+            releaseDelegate();
+            updateAllocation(null);
+            final int layer = getLayer(settings.width, settings.height);
+            if (softwareAvailable && !shouldUseHardware(info.name, layer)) {
+                updateAllocation(new Allocation(info.name, layer, false));
+                return VideoCodecStatus.FALLBACK_SOFTWARE;
+            }
+
+            VideoEncoder encoder = hardwareFactory.createEncoder(info);
+            if (encoder == null) {
+                AsyncLog.e(TAG, "No hardware encoder for %s layer %d", info.name, layer);
+                correctCapacity(getMimeType(info.name), false);
+                if (softwareAvailable) {
+                    updateAllocation(new Allocation(info.name, layer, false));
+                    return VideoCodecStatus.FALLBACK_SOFTWARE;
+                }
+                return VideoCodecStatus.ERROR;
+            }
+            if (ForwardingVideoEncoder.isWrappable(encoder)) {
+                encoder = new HardwareSession(encoder, getMimeType(info.name));
+                synchronized (SimulcastEncoderAllocator.this) {
+                    if (hub != null) {
+                        encoder = hub.wrap(encoder, info.name);
+                    }
+                    if (keyFrameManager != null) {
+                        // In front of the hub, so a session's requests are filtered before they are shared.
+                        encoder = keyFrameManager.wrap(encoder, layer);
+                    }
+                    if (tee != null) {
+                        encoder = tee.wrap(encoder, info.name, layer);
+                    }
+                }
+            }
+            final VideoCodecStatus status = encoder.initEncode(settings, encodeCallback);
+            if (status != VideoCodecStatus.OK) {
+                encoder.release();
+                AsyncLog.w(TAG, "Hardware encoder for %s layer %d failed: %s", info.name, layer, status);
+                correctCapacity(getMimeType(info.name), false);
+                if (softwareAvailable) {
+                    updateAllocation(new Allocation(info.name, layer, false));
+                    return VideoCodecStatus.FALLBACK_SOFTWARE;
+                }
+                return status;
+            }
+            delegate = encoder;
+            updateAllocation(new Allocation(info.name, layer, true));
+            return status;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            releaseDelegate();
+            updateAllocation(null);
+            return VideoCodecStatus.OK;
+        }
+
+        private void updateAllocation(@Nullable Allocation next) {
+            if (allocation != null || next != null) {
+                setAllocation(allocation, next);
+            }
+            allocation = next;
+        }
+
+        private void releaseDelegate() {
+            if (delegate != null) {
+                delegate.release();
+                delegate = null;
+            }
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            return delegate != null ? delegate.encode(frame, info) : VideoCodecStatus.UNINITIALIZED;
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            return delegate != null ? delegate.setRateAllocation(allocation, framerate) : VideoCodecStatus.UNINITIALIZED;
+        }
+
+        @Override
+        public VideoCodecStatus setRates(RateControlParameters rcParameters) {
+            return delegate != null ? delegate.setRates(rcParameters) : VideoCodecStatus.UNINITIALIZED;
+        }
+
+        @Override
+        public boolean isHardwareEncoder() {
+            return delegate != null && delegate.isHardwareEncoder();
+        }
+
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return delegate != null ? delegate.getScalingSettings() : ScalingSettings.OFF;
+        }
+
+        @Override
+        public ResolutionBitrateLimits[] getResolutionBitrateLimits() {
+            return delegate != null ? delegate.getResolutionBitrateLimits() : new ResolutionBitrateLimits[0];
+        }
+
+        @Override
+        public String getImplementationName() {
+            return delegate != null ? delegate.getImplementationName() : "LayerEncoder";
+        }
+
+        @Override
+        public EncoderInfo getEncoderInfo() {
+            return delegate != null ? delegate.getEncoderInfo() : new EncoderInfo(1, false);
+        }
+    }
+
+    /**
+     * Counts a hardware encoder against the MIME type's capacity while it is initialized.
+     */
+    private static class HardwareSession extends ForwardingVideoEncoder {
+        private final String mime;
+        private boolean active;
+
+        HardwareSession(VideoEncoder delegate, String mime) {
+            super(delegate);
+            this.mime = mime;
+        }
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+            VideoCodecStatus status = super.initEncode(settings, encodeCallback);
+            if (status == VideoCodecStatus.OK && !active) {
+                active = true;
+                updateActive(1);
+                correctCapacity(mime, true);
+            }
+            return status;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            if (active) {
+                active = false;
+                updateActive(-1);
+            }
+            return super.release();
+        }
+
+        private void updateActive(int delta) {
+            synchronized (activeByMime) {
+                Integer active = activeByMime.get(mime);
+                activeByMime.put(mime, (active == null ? 0 : active) + delta);
+            }
+        }
+    }
+}
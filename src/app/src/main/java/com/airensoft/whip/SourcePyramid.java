@@ -0,0 +1,329 @@
+package com.airensoft.whip;
+
+import androidx.annotation.Nullable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Cache of pre-cropped, pre-scaled variants of a .y4m source, one raw I420 file per resolution.
+ * Frames in a variant are tightly packed and all the same size, so frame i starts at
+ * i * frameSize and the file needs no separate index.
+ *
+ * Variants live in a directory named after a hash of the source, so a changed file gets new
+ * variants. Conversion runs on a thread pool in chunks of CHUNK_FRAMES; finished chunks are
+ * recorded in a progress file, and a killed conversion continues where it stopped.
+ */
+class SourcePyramid {
+    private static final String TAG = "SourcePyramid";
+    private static final String VARIANT_SUFFIX = ".i420";
+    private static final String PART_SUFFIX = ".part";
+    private static final String PROGRESS_SUFFIX = ".progress";
+    private static final int CHUNK_FRAMES = 30;
+    // The hash covers the size and the first and last HASH_SAMPLE_BYTES of the source.
+    private static final int HASH_SAMPLE_BYTES = 1 << 20;
+    private static final Set<String> runningConversions = new HashSet<>();
+
+    private final File source;
+    private final File directory;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final int frameCount;
+
+    SourcePyramid(File cacheRoot, File source) throws IOException {
+        this.source = source;
+        this.directory = new File(cacheRoot, hash(source));
+        try (Y4mReader reader = new Y4mReader(source)) {
+            sourceWidth = reader.getWidth();
+            sourceHeight = reader.getHeight();
+            frameCount = reader.getFrameCount();
+        }
+    }
+
+    /**
+     * Returns the variant sizes for a capture of width x height: the source cropped to that
+     * aspect ratio and scaled down to it (never up), followed by the 1/2 and 1/4 simulcast layers.
+     */
+    public int[][] getLayerSizes(int width, int height, boolean simulcast) {
+        final int cropWidth = Math.min(sourceWidth, (int) ((long) sourceHeight * width / height));
+        final int cropHeight = Math.min(sourceHeight, (int) ((long) sourceWidth * height / width));
+        final int baseWidth = Math.min(width, cropWidth) & ~1;
+        final int baseHeight = Math.min(height, cropHeight) & ~1;
+        if (!simulcast) {
+            return new int[][]{{baseWidth, baseHeight}};
+        }
+        // Matches the scaleResolutionDownBy of the simulcast encodings.
+        return new int[][]{{baseWidth, baseHeight}, {baseWidth / 2, baseHeight / 2}, {baseWidth / 4, baseHeight / 4}};
+    }
+
+    public boolean isComplete(int[][] sizes) {
+        for (int[] size : sizes) {
+            if (!getVariantFile(size[0], size[1]).isFile()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a capturer that plays the variants; the first size is the captured resolution.
+     */
+    public PyramidVideoCapturer createCapturer(int[][] sizes) throws IOException {
+        List<PyramidVideoCapturer.Variant> variants = new ArrayList<>();
+        for (int[] size : sizes) {
+            variants.add(new PyramidVideoCapturer.Variant(getVariantFile(size[0], size[1]), size[0], size[1]));
+        }
+        return new PyramidVideoCapturer(variants);
+    }
+
+    /**
+     * Converts the missing variants in the background. Does nothing if a conversion of this
+     * source is already running.
+     */
+    public void convertAsync(int[][] sizes) {
+        synchronized (runningConversions) {
+            if (!runningConversions.add(directory.getPath())) {
+                return;
+            }
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            AsyncLog.e(TAG, "Failed to create %s", directory);
+        }
+
+        final List<Job> jobs = new ArrayList<>();
+        final int chunkCount = (frameCount + CHUNK_FRAMES - 1) / CHUNK_FRAMES;
+        for (int[] size : sizes) {
+            if (getVariantFile(size[0], size[1]).isFile()) {
+                continue;
+            }
+            try {
+                jobs.add(new Job(size[0], size[1], chunkCount));
+            } catch (IOException e) {
+                AsyncLog.e(TAG, "Failed to prepare %dx%d: %s", size[0], size[1], e);
+            }
+        }
+
+        if (jobs.isEmpty() || chunkCount == 0) {
+            finishConversion(null);
+            return;
+        }
+
+        final Y4mReader reader;
+        try {
+            reader = new Y4mReader(source);
+        } catch (IOException e) {
+            AsyncLog.e(TAG, "Failed to open %s: %s", source, e);
+            for (Job job : jobs) {
+                job.finish();
+            }
+            finishConversion(null);
+            return;
+        }
+        // Leave a core for the session that is running meanwhile.
+        final int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        final ExecutorService pool = Executors.newFixedThreadPool(threads);
+        final AtomicInteger remainingChunks = new AtomicInteger(chunkCount);
+        final long startMs = System.currentTimeMillis();
+        AsyncLog.i(TAG, "Converting %s into %d variants on %d threads", source, jobs.size(), threads);
+        for (int chunk = 0; chunk < chunkCount; chunk++) {
+            final int chunkIndex = chunk;
+            pool.execute(() -> {
+                try {
+                    convertChunk(reader, jobs, chunkIndex);
+                } catch (IOException | RuntimeException e) {
+                    AsyncLog.e(TAG, "Failed to convert chunk %d: %s", chunkIndex, e);
+                }
+                if (remainingChunks.decrementAndGet() == 0) {
+                    for (Job job : jobs) {
+                        job.finish();
+                    }
+                    try {
+                        reader.close();
+                    } catch (IOException e) {
+                        AsyncLog.w(TAG, "Failed to close %s: %s", source, e);
+                    }
+                    AsyncLog.i(TAG, "Converted %s in %d ms", source, System.currentTimeMillis() - startMs);
+                    finishConversion(pool);
+                }
+            });
+        }
+    }
+
+    private void finishConversion(@Nullable ExecutorService pool) {
+        if (pool != null) {
+            pool.shutdown();
+        }
+        synchronized (runningConversions) {
+            runningConversions.remove(directory.getPath());
+        }
+    }
+
+    private void convertChunk(Y4mReader reader, List<Job> jobs, int chunk) throws IOException {
+        List<Job> pending = new ArrayList<>();
+        for (Job job : jobs) {
+            if (!job.isChunkDone(chunk)) {
+                pending.add(job);
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final int chromaWidth = (sourceWidth + 1) / 2;
+        final int chromaHeight = (sourceHeight + 1) / 2;
+        final byte[] dataY = new byte[sourceWidth * sourceHeight];
+        final byte[] dataU = new byte[chromaWidth * chromaHeight];
+        final byte[] dataV = new byte[chromaWidth * chromaHeight];
+        final int end = Math.min(frameCount, (chunk + 1) * CHUNK_FRAMES);
+        for (int frame = chunk * CHUNK_FRAMES; frame < end; frame++) {
+            reader.readFrame(frame, dataY, dataU, dataV);
+            for (Job job : pending) {
+                job.write(dataY, dataU, dataV, frame);
+            }
+        }
+        for (Job job : pending) {
+            job.markChunkDone(chunk);
+        }
+    }
+
+    private File getVariantFile(int width, int height) {
+        return new File(directory, width + "x" + height + VARIANT_SUFFIX);
+    }
+
+    /**
+     * Conversion of one variant: the partial file, and a progress file with one byte per chunk.
+     */
+    private class Job {
+        private final int width;
+        private final int height;
+        private final int cropX;
+        private final int cropY;
+        private final int cropWidth;
+        private final int cropHeight;
+        private final long frameSize;
+        private final File partFile;
+        private final File progressFile;
+        private final FileChannel output;
+        private final RandomAccessFile progress;
+
+        Job(int width, int height, int chunkCount) throws IOException {
+            this.width = width;
+            this.height = height;
+            // Center crop to the variant's aspect ratio, the same as VideoSource adaptation.
+            cropWidth = Math.min(sourceWidth, (int) ((long) sourceHeight * width / height)) & ~1;
+            cropHeight = Math.min(sourceHeight, (int) ((long) sourceWidth * height / width)) & ~1;
+            cropX = ((sourceWidth - cropWidth) / 2) & ~1;
+            cropY = ((sourceHeight - cropHeight) / 2) & ~1;
+            frameSize = (long) width * height + 2L * ((width + 1) / 2) * ((height + 1) / 2);
+
+            final File variant = getVariantFile(width, height);
+            partFile = new File(variant.getPath() + PART_SUFFIX);
+            progressFile = new File(variant.getPath() + PROGRESS_SUFFIX);
+            if (!partFile.isFile()) {
+                // Progress without its data is stale.
+                progressFile.delete();
+            }
+            output = new RandomAccessFile(partFile, "rw").getChannel();
+            progress = new RandomAccessFile(progressFile, "rw");
+            progress.setLength(chunkCount);
+        }
+
+        boolean isChunkDone(int chunk) throws IOException {
+            synchronized (progress) {
+                progress.seek(chunk);
+                return progress.read() == 1;
+            }
+        }
+
+        void markChunkDone(int chunk) throws IOException {
+            synchronized (progress) {
+                progress.seek(chunk);
+                progress.write(1);
+            }
+        }
+
+        void write(byte[] dataY, byte[] dataU, byte[] dataV, int frame) throws IOException {
+            final int sourceChromaWidth = (sourceWidth + 1) / 2;
+            final int chromaWidth = (width + 1) / 2;
+            final int chromaHeight = (height + 1) / 2;
+            final byte[] scaled = new byte[(int) frameSize];
+            QualityEngine.boxScale(dataY, cropY * sourceWidth + cropX, sourceWidth, cropWidth, cropHeight,
+                    scaled, width, height);
+            final int chromaOffset = cropY / 2 * sourceChromaWidth + cropX / 2;
+            final byte[] plane = new byte[chromaWidth * chromaHeight];
+            QualityEngine.boxScale(dataU, chromaOffset, sourceChromaWidth, cropWidth / 2, cropHeight / 2,
+                    plane, chromaWidth, chromaHeight);
+            System.arraycopy(plane, 0, scaled, width * height, plane.length);
+            QualityEngine.boxScale(dataV, chromaOffset, sourceChromaWidth, cropWidth / 2, cropHeight / 2,
+                    plane, chromaWidth, chromaHeight);
+            System.arraycopy(plane, 0, scaled, width * height + plane.length, plane.length);
+
+            ByteBuffer buffer = ByteBuffer.wrap(scaled);
+            long position = frame * frameSize;
+            while (buffer.hasRemaining()) {
+                position += output.write(buffer, position);
+            }
+        }
+
+        /**
+         * Publishes the variant if every chunk is done.
+         */
+        void finish() {
+            try {
+                boolean complete;
+                synchronized (progress) {
+                    complete = true;
+                    progress.seek(0);
+                    for (long chunk = 0; chunk < progress.length(); chunk++) {
+                        complete &= progress.read() == 1;
+                    }
+                    progress.close();
+                }
+                output.close();
+                if (complete && partFile.renameTo(getVariantFile(width, height))) {
+                    progressFile.delete();
+                    AsyncLog.i(TAG, "Variant %dx%d of %s is ready", width, height, source.getName());
+                }
+            } catch (IOException e) {
+                AsyncLog.e(TAG, "Failed to finish %dx%d: %s", width, height, e);
+            }
+        }
+    }
+
+    private static String hash(File file) throws IOException {
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+            final long length = input.length();
+            digest.update(Long.toString(length).getBytes("US-ASCII"));
+            final byte[] sample = new byte[(int) Math.min(HASH_SAMPLE_BYTES, length)];
+            input.readFully(sample);
+            digest.update(sample);
+            input.seek(length - sample.length);
+            input.readFully(sample);
+            digest.update(sample);
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format(Locale.US, "%02x", b));
+        }
+        return hex.toString();
+    }
+}
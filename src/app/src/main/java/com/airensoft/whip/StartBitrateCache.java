@@ -0,0 +1,122 @@
+package com.airensoft.whip;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.NetworkCapabilities;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Properties;
+
+/**
+ * Remembers the sustained bandwidth estimate of previous sessions per WHIP host and network type,
+ * so a new session on a known link starts near it instead of ramping up from WebRTC's default.
+ * Estimates are smoothed across sessions and forgotten after MAX_AGE_MS.
+ */
+class StartBitrateCache {
+    private static final String TAG = "StartBitrateCache";
+    // A new session's estimate counts for this much of the stored one.
+    private static final double ESTIMATE_WEIGHT = 0.5;
+    // Start below the estimate, so a link that got worse does not start congested.
+    private static final double START_FRACTION = 0.8;
+    private static final long MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File cacheFile;
+    private final Properties properties = new Properties();
+
+    StartBitrateCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        if (cacheFile.exists()) {
+            try (InputStream in = new FileInputStream(cacheFile)) {
+                properties.load(in);
+            } catch (IOException e) {
+                AsyncLog.w(TAG, "Failed to read %s: %s", cacheFile, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the key for the host of `endpoint` on the current network, or null if the
+     * endpoint is not a URL.
+     */
+    public static String getKey(Context context, String endpoint) {
+        try {
+            return new URL(endpoint).getHost() + "|" + getNetworkType(context);
+        } catch (MalformedURLException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the start bitrate for `key` in kbps, or 0 if nothing recent is known.
+     */
+    public synchronized int getStartBitrateKbps(String key) {
+        final long[] entry = get(key);
+        if (entry == null || System.currentTimeMillis() - entry[1] > MAX_AGE_MS) {
+            return 0;
+        }
+        return (int) (entry[0] * START_FRACTION);
+    }
+
+    /**
+     * Adds the sustained estimate of a session that used `key`. Estimates of 0 are ignored.
+     */
+    public synchronized void report(String key, int sustainedKbps) {
+        if (sustainedKbps <= 0) {
+            return;
+        }
+        final long[] entry = get(key);
+        final long nowMs = System.currentTimeMillis();
+        long kbps = sustainedKbps;
+        if (entry != null && nowMs - entry[1] <= MAX_AGE_MS) {
+            kbps = Math.round(entry[0] * (1 - ESTIMATE_WEIGHT) + sustainedKbps * ESTIMATE_WEIGHT);
+        }
+        AsyncLog.i(TAG, "Sustained estimate for %s: %dkbps, stored %dkbps", key, sustainedKbps, kbps);
+        properties.setProperty(key, kbps + "," + nowMs);
+        try (OutputStream out = new FileOutputStream(cacheFile)) {
+            properties.store(out, "Sustained bandwidth estimate: kbps,updatedMs");
+        } catch (IOException e) {
+            AsyncLog.w(TAG, "Failed to write %s: %s", cacheFile, e);
+        }
+    }
+
+    private long[] get(String key) {
+        final String value = properties.getProperty(key);
+        if (value == null) {
+            return null;
+        }
+        final String[] tokens = value.split(",");
+        if (tokens.length != 2) {
+            return null;
+        }
+        try {
+            return new long[]{Long.parseLong(tokens[0]), Long.parseLong(tokens[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static String getNetworkType(Context context) {
+        final ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        final NetworkCapabilities capabilities = connectivityManager.getNetworkCapabilities(connectivityManager.getActiveNetwork());
+        if (capabilities == null) {
+            return "none";
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_ETHERNET)) {
+            return "ethernet";
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_WIFI)) {
+            return "wifi";
+        }
+        if (capabilities.hasTransport(NetworkCapabilities.TRANSPORT_CELLULAR)) {
+            return "cellular";
+        }
+        return "other";
+    }
+}
@@ -0,0 +1,150 @@
+package com.airensoft.whip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Steps the encode workload down a ladder ahead of thermal throttling and back up once the device
+ * has cooled. The level is derived from the thermal status and the headroom forecast, where a
+ * headroom of 1.0 is the point at which the SoC throttles itself. It only decides the level; the
+ * caller applies it to the sender, together with the EncodeGovernor steps.
+ *
+ * Plain Java on timestamped samples, so a recorded or synthetic thermal trace can be replayed.
+ */
+class ThermalGovernor {
+    private static final String TAG = "ThermalGovernor";
+
+    // PowerManager.THERMAL_STATUS_* values.
+    public static final int STATUS_NONE = 0;
+    public static final int STATUS_LIGHT = 1;
+    public static final int STATUS_MODERATE = 2;
+    public static final int STATUS_SEVERE = 3;
+
+    // Headroom from which the first, second and third step apply.
+    public static final double[] STEP_HEADROOM = {0.75, 0.85, 0.95};
+    // A step is left once the headroom is this far below the point it was entered at.
+    public static final double RECOVERY_MARGIN = 0.05;
+    // Stepping down reacts to one sample, stepping up needs a sustained recovery.
+    public static final int RECOVERY_SAMPLES = 6;
+    public static final long HOLD_AFTER_CHANGE_MS = 10_000;
+
+    /**
+     * One observation. `headroom` is NaN when the device gives no forecast.
+     */
+    public static class Sample {
+        public final long timestampMs;
+        public final int status;
+        public final double headroom;
+
+        public Sample(long timestampMs, int status, double headroom) {
+            this.timestampMs = timestampMs;
+            this.status = status;
+            this.headroom = headroom;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "status=%d headroom=%.2f", status, headroom);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * Called on every level change. `step` is the ladder step that was entered (down) or
+         * left (up).
+         */
+        void onLevelChanged(int oldLevel, int newLevel, EncodeGovernor.Step step, Sample sample);
+    }
+
+    private final List<EncodeGovernor.Step> ladder;
+    private final Listener listener;
+    private int level;
+    private int recoveryCount;
+    private long lastChangeMs = Long.MIN_VALUE / 2;
+
+    /**
+     * Throws IllegalArgumentException if `ladder` has more steps than STEP_HEADROOM thresholds.
+     */
+    ThermalGovernor(List<EncodeGovernor.Step> ladder, Listener listener) {
+        if (ladder.size() > STEP_HEADROOM.length) {
+            throw new IllegalArgumentException("Thermal ladder " + ladder + " has more than " + STEP_HEADROOM.length + " steps");
+        }
+        this.ladder = new ArrayList<>(ladder);
+        this.listener = listener;
+    }
+
+    /**
+     * Parses a ladder preference like EncodeGovernor.Step.parseLadder. Each step needs a
+     * STEP_HEADROOM threshold, so steps past the last threshold are dropped with a warning.
+     */
+    public static List<EncodeGovernor.Step> parseLadder(String ladder) {
+        final List<EncodeGovernor.Step> steps = EncodeGovernor.Step.parseLadder(ladder);
+        if (steps.size() <= STEP_HEADROOM.length) {
+            return steps;
+        }
+        AsyncLog.w(TAG, "Thermal ladder \"%s\" has %d steps, only the first %d apply", ladder, steps.size(), STEP_HEADROOM.length);
+        return new ArrayList<>(steps.subList(0, STEP_HEADROOM.length));
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the ladder steps currently applied, in ladder order.
+     */
+    public List<EncodeGovernor.Step> getActiveSteps() {
+        return Collections.unmodifiableList(ladder.subList(0, level));
+    }
+
+    /**
+     * Feeds a sample and returns the (possibly changed) level.
+     */
+    public int update(Sample sample) {
+        final int target = getTargetLevel(sample, 0);
+        // The level that still holds with the recovery margin, so a headroom that hovers
+        // around a threshold does not flap.
+        final int recoveryTarget = getTargetLevel(sample, RECOVERY_MARGIN);
+        if (recoveryTarget < level) {
+            recoveryCount++;
+        } else {
+            recoveryCount = 0;
+        }
+
+        if (target > level) {
+            // Act before the SoC throttles; a hotter status never waits for the hold time.
+            changeLevel(level + 1, ladder.get(level), sample);
+        } else if (recoveryCount >= RECOVERY_SAMPLES && sample.timestampMs - lastChangeMs >= HOLD_AFTER_CHANGE_MS) {
+            changeLevel(level - 1, ladder.get(level - 1), sample);
+        }
+        return level;
+    }
+
+    private int getTargetLevel(Sample sample, double margin) {
+        int target = 0;
+        if (!Double.isNaN(sample.headroom)) {
+            for (int i = 0; i < STEP_HEADROOM.length; i++) {
+                if (sample.headroom >= STEP_HEADROOM[i] - margin) {
+                    target = i + 1;
+                }
+            }
+        }
+        // The status reports throttling that already happened; it takes over from the forecast.
+        if (sample.status >= STATUS_SEVERE) {
+            target = STEP_HEADROOM.length;
+        } else if (sample.status >= STATUS_LIGHT) {
+            target = Math.max(target, sample.status);
+        }
+        return Math.min(target, ladder.size());
+    }
+
+    private void changeLevel(int newLevel, EncodeGovernor.Step step, Sample sample) {
+        int oldLevel = level;
+        level = newLevel;
+        recoveryCount = 0;
+        lastChangeMs = sample.timestampMs;
+        listener.onLevelChanged(oldLevel, newLevel, step, sample);
+    }
+}
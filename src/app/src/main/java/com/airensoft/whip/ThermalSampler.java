@@ -0,0 +1,54 @@
+package com.airensoft.whip;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.PowerManager;
+import android.os.SystemClock;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Samples the thermal status and headroom forecast for ThermalGovernor. The status is pushed by
+ * PowerManager; the headroom is polled, at most every HEADROOM_INTERVAL_MS since the platform
+ * answers NaN to more frequent calls.
+ */
+class ThermalSampler {
+    private static final String TAG = "ThermalSampler";
+    private static final long HEADROOM_INTERVAL_MS = 2000;
+
+    private final PowerManager powerManager;
+    private final int forecastSeconds;
+    private final PowerManager.OnThermalStatusChangedListener statusListener;
+    private volatile int status;
+    private double headroom = Double.NaN;
+    private long lastHeadroomMs = Long.MIN_VALUE / 2;
+
+    /**
+     * `onStatusChanged` runs on `executor` whenever the status changes, so the caller can update
+     * the governor without waiting for the next poll.
+     */
+    ThermalSampler(Context context, int forecastSeconds, Executor executor, Runnable onStatusChanged) {
+        this.powerManager = (PowerManager) context.getSystemService(Context.POWER_SERVICE);
+        this.forecastSeconds = forecastSeconds;
+        this.statusListener = newStatus -> {
+            AsyncLog.i(TAG, "Thermal status %d", newStatus);
+            status = newStatus;
+            onStatusChanged.run();
+        };
+        status = powerManager.getCurrentThermalStatus();
+        powerManager.addThermalStatusListener(executor, statusListener);
+    }
+
+    public synchronized ThermalGovernor.Sample sample() {
+        final long nowMs = SystemClock.elapsedRealtime();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R && nowMs - lastHeadroomMs >= HEADROOM_INTERVAL_MS) {
+            headroom = powerManager.getThermalHeadroom(forecastSeconds);
+            lastHeadroomMs = nowMs;
+        }
+        return new ThermalGovernor.Sample(nowMs, status, headroom);
+    }
+
+    public void release() {
+        powerManager.removeThermalStatusListener(statusListener);
+    }
+}
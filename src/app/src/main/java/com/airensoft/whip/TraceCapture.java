@@ -0,0 +1,213 @@
+package com.airensoft.whip;
+
+import android.os.Process;
+import android.util.Log;
+
+import org.webrtc.PeerConnectionFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the WebRTC internal trace for a bounded window and merges app-level spans (signaling,
+ * SDP, WHIP HTTP) into a single Chrome trace JSON file that Perfetto and chrome://tracing open.
+ *
+ * Both sides use CLOCK_MONOTONIC microseconds (rtc::TimeMicros and System.nanoTime), so the
+ * spans line up with the internal events without any clock translation.
+ */
+class TraceCapture {
+    private static final String TAG = "TraceCapture";
+    private static final int MAX_APP_EVENTS = 100_000;
+    private static final long SIZE_CHECK_INTERVAL_MS = 1000;
+
+    private static final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+    private static final Object lock = new Object();
+    private static final List<String> appEvents = new ArrayList<>();
+    private static volatile boolean capturing;
+    private static File rawFile;
+    private static File outputFile;
+    private static ScheduledFuture<?> stopFuture;
+    private static ScheduledFuture<?> sizeCheckFuture;
+
+    /**
+     * Span of app work; end() records it as a complete ("X") event.
+     */
+    public static class Span {
+        private final String category;
+        private final String name;
+        private final long startUs;
+        private final int tid;
+
+        private Span(String category, String name) {
+            this.category = category;
+            this.name = name;
+            this.startUs = nowUs();
+            this.tid = Process.myTid();
+        }
+
+        public void end() {
+            if (capturing) {
+                addEvent(String.format(Locale.US,
+                        "{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"X\",\"ts\":%d,\"dur\":%d,\"pid\":%d,\"tid\":%d}",
+                        name, category, startUs, nowUs() - startUs, Process.myPid(), tid));
+            }
+        }
+    }
+
+    static final Span NO_SPAN = new Span("", "") {
+        @Override
+        public void end() {
+        }
+    };
+
+    /**
+     * Starts a capture into `directory` that stops after `windowMs` or once the internal trace
+     * reaches `maxBytes`, whichever comes first.
+     */
+    public static boolean start(File directory, long windowMs, long maxBytes) {
+        synchronized (lock) {
+            if (capturing) {
+                Log.w(TAG, "Trace capture is already running");
+                return false;
+            }
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                Log.e(TAG, "Can not create " + directory);
+                return false;
+            }
+            final String name = "trace_" + new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.US).format(new Date());
+            rawFile = new File(directory, name + "_webrtc.json");
+            outputFile = new File(directory, name + ".json");
+            if (!PeerConnectionFactory.startInternalTracingCapture(rawFile.getAbsolutePath())) {
+                Log.e(TAG, "Failed to start internal tracing capture");
+                return false;
+            }
+            appEvents.clear();
+            capturing = true;
+            Log.i(TAG, "Trace capture started for " + windowMs + "ms: " + outputFile);
+
+            stopFuture = executor.schedule(TraceCapture::stop, windowMs, TimeUnit.MILLISECONDS);
+            sizeCheckFuture = executor.scheduleWithFixedDelay(() -> {
+                if (rawFile != null && rawFile.length() > maxBytes) {
+                    Log.w(TAG, "Internal trace reached " + maxBytes + " bytes");
+                    stop();
+                }
+            }, SIZE_CHECK_INTERVAL_MS, SIZE_CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            return true;
+        }
+    }
+
+    /**
+     * Stops the capture and writes the merged trace on a background thread.
+     */
+    public static void stop() {
+        final File raw;
+        final File output;
+        final List<String> events;
+        synchronized (lock) {
+            if (!capturing) {
+                return;
+            }
+            capturing = false;
+            stopFuture.cancel(false);
+            sizeCheckFuture.cancel(false);
+            // Returns once the tracer thread has written the trailer and closed the file.
+            PeerConnectionFactory.stopInternalTracingCapture();
+            raw = rawFile;
+            output = outputFile;
+            events = new ArrayList<>(appEvents);
+            appEvents.clear();
+        }
+        executor.execute(() -> merge(raw, output, events));
+    }
+
+    public static boolean isCapturing() {
+        return capturing;
+    }
+
+    public static Span beginSpan(String category, String name) {
+        return capturing ? new Span(category, name) : NO_SPAN;
+    }
+
+    public static void instant(String category, String name) {
+        if (capturing) {
+            addEvent(String.format(Locale.US,
+                    "{\"name\":\"%s\",\"cat\":\"%s\",\"ph\":\"i\",\"s\":\"p\",\"ts\":%d,\"pid\":%d,\"tid\":%d}",
+                    name, category, nowUs(), Process.myPid(), Process.myTid()));
+        }
+    }
+
+    private static void addEvent(String event) {
+        synchronized (lock) {
+            if (capturing && appEvents.size() < MAX_APP_EVENTS) {
+                appEvents.add(event);
+            }
+        }
+    }
+
+    private static long nowUs() {
+        return System.nanoTime() / 1000;
+    }
+
+    /**
+     * Writes {"traceEvents":[<app events>,<internal events>]}. The internal events are copied
+     * byte for byte from between the outer brackets of the WebRTC trace file.
+     */
+    private static void merge(File raw, File output, List<String> events) {
+        try (RandomAccessFile in = new RandomAccessFile(raw, "r");
+             OutputStream out = new FileOutputStream(output)) {
+            final long length = in.length();
+            long begin = 0;
+            while (begin < length) {
+                in.seek(begin);
+                if (in.read() == '[') {
+                    break;
+                }
+                begin++;
+            }
+            long end = length - 1;
+            while (end > begin) {
+                in.seek(end);
+                if (in.read() == ']') {
+                    break;
+                }
+                end--;
+            }
+
+            out.write("{\"traceEvents\":[\n".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < events.size(); i++) {
+                if (i > 0) {
+                    out.write(",\n".getBytes(StandardCharsets.UTF_8));
+                }
+                out.write(events.get(i).getBytes(StandardCharsets.UTF_8));
+            }
+            if (end > begin + 1) {
+                if (!events.isEmpty()) {
+                    out.write(",\n".getBytes(StandardCharsets.UTF_8));
+                }
+                in.getChannel().transferTo(begin + 1, end - begin - 1, Channels.newChannel(out));
+            }
+            out.write("\n]}\n".getBytes(StandardCharsets.UTF_8));
+            Log.i(TAG, "Trace written: " + output + " (" + events.size() + " app events)");
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write trace " + output + ": " + e.getMessage());
+            return;
+        }
+        if (!raw.delete()) {
+            Log.w(TAG, "Failed to delete " + raw);
+        }
+    }
+}
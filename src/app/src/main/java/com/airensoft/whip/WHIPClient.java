@@ -1,8 +1,5 @@
 package com.airensoft.whip;
 
-
-import android.util.Log;
-
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
@@ -12,13 +9,18 @@ import cz.msebera.android.httpclient.Header;
 import cz.msebera.android.httpclient.HttpResponse;
 import cz.msebera.android.httpclient.client.HttpClient;
 import cz.msebera.android.httpclient.client.ResponseHandler;
+import cz.msebera.android.httpclient.client.config.RequestConfig;
 import cz.msebera.android.httpclient.client.methods.HttpDelete;
+import cz.msebera.android.httpclient.client.methods.HttpOptions;
 import cz.msebera.android.httpclient.client.methods.HttpPost;
 import cz.msebera.android.httpclient.entity.StringEntity;
 import cz.msebera.android.httpclient.impl.client.BasicResponseHandler;
 import cz.msebera.android.httpclient.impl.client.HttpClientBuilder;
+import cz.msebera.android.httpclient.util.EntityUtils;
 
 class WHIPClient {
+    private static final String TAG = "WHIPClient";
+    private static final int MAX_REDIRECTS = 5;
     private URL _url;
     private List<String> _link = new ArrayList<String>();
     private String _location;
@@ -34,19 +36,22 @@ class WHIPClient {
     {
         try {
             _url = new URL(url);
-            Log.d(getClass().getName(), "protocol = " + _url.getProtocol());
-            Log.d(getClass().getName(), "authority = " + _url.getAuthority());
-            Log.d(getClass().getName(), "host = " + _url.getHost());
-            Log.d(getClass().getName(), "port = " + _url.getPort());
-            Log.d(getClass().getName(), "path = " + _url.getPath());
-            Log.d(getClass().getName(), "query = " + _url.getQuery());
-            Log.d(getClass().getName(), "filename = " + _url.getFile());
-            Log.d(getClass().getName(), "ref = " + _url.getRef());
+            AsyncLog.d(TAG, "protocol=%s authority=%s host=%s port=%d path=%s query=%s filename=%s ref=%s",
+                    _url.getProtocol(), _url.getAuthority(), _url.getHost(), _url.getPort(),
+                    _url.getPath(), _url.getQuery(), _url.getFile(), _url.getRef());
         } catch (MalformedURLException e) {
-            Log.d(getClass().getName(), "Invalid URL syntax");
+            AsyncLog.d(TAG, "Invalid URL syntax");
         }
     }
 
+    /**
+     * Returns the endpoint URL, which after Create() is the node that accepted the session.
+     */
+    public String GetURL()
+    {
+        return _url != null ? _url.toString() : null;
+    }
+
     public List<String> GetLink()
     {
         return _link;
@@ -71,18 +76,83 @@ class WHIPClient {
         return _vary;
     }
 
-    public boolean Create() {
+    /**
+     * Sends the WHIP OPTIONS preflight. The ICE server Link headers of the response are
+     * available from GetLink(). Returns the HTTP status, or -1 if the request failed.
+     */
+    public int Options(int timeoutMs) {
+        final long startNs = System.nanoTime();
         try {
-            Log.i(getClass().getName(), "Create : " + _url.toString());
-
-            HttpClient client = HttpClientBuilder.create().build();
-            HttpPost request = new HttpPost(_url.toString());
+            HttpClient client = HttpClientBuilder.create().setDefaultRequestConfig(getRequestConfig(timeoutMs)).build();
+            HttpOptions request = new HttpOptions(_url.toString());
             request.setHeader("Accept", "*/*");
-            request.setHeader("Content-Type", "application/sdp");
             request.setHeader("User-Agent:", "Mozilla/5.0 (OBS-Studio/30.1.2; Windows x86_64; en-US) ");
-            request.setEntity(new StringEntity(_request_sdp));
 
-            HttpResponse response = client.execute(request);
+            final TraceCapture.Span span = TraceCapture.beginSpan("whip", "OPTIONS");
+            final HttpResponse response;
+            try {
+                response = client.execute(request);
+            } finally {
+                span.end();
+            }
+
+            _link.clear();
+            for (Header header : response.getHeaders("Link")) {
+                _link.add(header.getValue());
+            }
+            EntityUtils.consumeQuietly(response.getEntity());
+            SessionTimeline.recordWhip(SessionTimeline.WHIP_OPTIONS, response.getStatusLine().getStatusCode(), startNs);
+            return response.getStatusLine().getStatusCode();
+        } catch (Exception e) {
+            AsyncLog.w(TAG, "Options failed: %s", e);
+            SessionTimeline.recordWhip(SessionTimeline.WHIP_OPTIONS, -1, startNs);
+            return -1;
+        }
+    }
+
+    /**
+     * POSTs the offer. 307/308 redirects are followed with the same offer, and the node that
+     * accepts the session replaces the URL, so GetURL() and the session resource point at it.
+     */
+    public boolean Create() {
+        try {
+            AsyncLog.i(TAG, "Create : %s", _url);
+
+            HttpClient client = HttpClientBuilder.create().disableRedirectHandling()
+                    .setDefaultRequestConfig(getRequestConfig(PeerConnectionConstant.WHIP_REQUEST_TIMEOUT_MS)).build();
+            HttpResponse response = null;
+            for (int redirects = 0; ; redirects++) {
+                final long startNs = System.nanoTime();
+                try {
+                    HttpPost request = new HttpPost(_url.toString());
+                    request.setHeader("Accept", "*/*");
+                    request.setHeader("Content-Type", "application/sdp");
+                    request.setHeader("User-Agent:", "Mozilla/5.0 (OBS-Studio/30.1.2; Windows x86_64; en-US) ");
+                    request.setEntity(new StringEntity(_request_sdp));
+
+                    final TraceCapture.Span span = TraceCapture.beginSpan("whip", "POST");
+                    try {
+                        response = client.execute(request);
+                    } finally {
+                        span.end();
+                    }
+                    SessionTimeline.recordWhip(SessionTimeline.WHIP_POST, response.getStatusLine().getStatusCode(), startNs);
+                } catch (Exception e) {
+                    SessionTimeline.recordWhip(SessionTimeline.WHIP_POST, -1, startNs);
+                    throw e;
+                }
+
+                final int status = response.getStatusLine().getStatusCode();
+                final Header location = response.getFirstHeader("Location");
+                if ((status == 307 || status == 308) && location != null && redirects < MAX_REDIRECTS) { // Temporary/Permanent Redirect
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    // Location may be relative to the URL that redirected
+                    _url = new URL(_url, location.getValue());
+                    AsyncLog.i(TAG, "Redirected (%d) to %s", status, _url);
+                    continue;
+                }
+                break;
+            }
 
             if (response.getStatusLine().getStatusCode() == 200 || // OK
                 response.getStatusLine().getStatusCode() == 201) { // Created
@@ -98,47 +168,77 @@ class WHIPClient {
                 _vary = response.getFirstHeader("Vary").getValue();
                 _response_sdp = handler.handleResponse(response);
 
-                Log.i(getClass().getName(), "Create Success");
+                AsyncLog.i(TAG, "Create Success");
 
-                Log.d(getClass().getName(), _link.toString());
-                Log.d(getClass().getName(), _location);
-                Log.d(getClass().getName(), _vary);
+                AsyncLog.d(TAG, "Link: %s", _link);
+                AsyncLog.d(TAG, "Location: %s", _location);
+                AsyncLog.d(TAG, "Vary: %s", _vary);
                 return true;
             } else {
-                Log.e(getClass().getName(), "response is error : " + response.getStatusLine().getStatusCode());
+                AsyncLog.e(TAG, "response is error : %d", response.getStatusLine().getStatusCode());
             }
         } catch (Exception e){
-            Log.e(getClass().getName(), e.toString());
+            AsyncLog.e(TAG, "Request failed", e);
         }
 
         return false;
     }
 
+    /**
+     * Returns the URL of the session resource, resolved against the node that accepted the
+     * session, or null before Create() succeeded. DELETE goes there, and so must any later
+     * request on the session.
+     */
+    public URL GetResourceURL() {
+        if (_url == null || _location == null) {
+            return null;
+        }
+        try {
+            return new URL(_url, _location);
+        } catch (MalformedURLException e) {
+            AsyncLog.w(TAG, "Invalid Location: %s", _location);
+            return null;
+        }
+    }
+
     public void Delete()
     {
         try {
             Thread t = new Thread(new Runnable() {
                 @Override
                 public void run() {
+                    final long startNs = System.nanoTime();
                     try {
-                        String requestURL = String.format("%s://%s%s", _url.getProtocol(), _url.getAuthority(), GetLocation());
-                        Log.i(getClass().getName(), "Delete : " + requestURL);
-                        HttpClient client = HttpClientBuilder.create().build();
-                        HttpDelete request = new HttpDelete(requestURL);
+                        final URL requestURL = GetResourceURL();
+                        if (requestURL == null) {
+                            return;
+                        }
+                        AsyncLog.i(TAG, "Delete : %s", requestURL);
+                        HttpClient client = HttpClientBuilder.create()
+                                .setDefaultRequestConfig(getRequestConfig(PeerConnectionConstant.WHIP_REQUEST_TIMEOUT_MS)).build();
+                        HttpDelete request = new HttpDelete(requestURL.toString());
                         request.setHeader("Accept", "*/*");
                         request.setHeader("User-Agent:", "Mozilla/5.0 (OBS-Studio/30.1.2; Windows x86_64; en-US) ");
 
-                        HttpResponse response = client.execute(request);
+                        final TraceCapture.Span span = TraceCapture.beginSpan("whip", "DELETE");
+                        final HttpResponse response;
+                        try {
+                            response = client.execute(request);
+                        } finally {
+                            span.end();
+                        }
+                        SessionTimeline.recordWhip(SessionTimeline.WHIP_DELETE, response.getStatusLine().getStatusCode(), startNs);
 
                         if (response.getStatusLine().getStatusCode() == 200 | response.getStatusLine().getStatusCode() == 201) {
                             ResponseHandler<String> handler = new BasicResponseHandler();
                             handler.handleResponse(response);
-                            Log.i(getClass().getName(), "Delete Success");
+                            AsyncLog.i(TAG, "Delete Success");
                         } else {
-                            Log.e(getClass().getName(), "response is error : " + response.getStatusLine().getStatusCode());
+                            AsyncLog.e(TAG, "response is error : %d", response.getStatusLine().getStatusCode());
                         }
                     } catch (Exception e){
-                        Log.e(getClass().getName(), e.toString());
+                        AsyncLog.e(TAG, "Request failed", e);
+                        SessionTimeline.recordWhip(SessionTimeline.WHIP_DELETE, -1, startNs);
                     }
                 }
             });
@@ -149,4 +249,8 @@ class WHIPClient {
         }
     }
 
+    private static RequestConfig getRequestConfig(int timeoutMs) {
+        return RequestConfig.custom()
+                .setConnectTimeout(timeoutMs).setSocketTimeout(timeoutMs).setConnectionRequestTimeout(timeoutMs).build();
+    }
 }
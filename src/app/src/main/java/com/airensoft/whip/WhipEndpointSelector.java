@@ -0,0 +1,297 @@
+package com.airensoft.whip;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ranks a list of WHIP endpoints by round-trip time and recent success. Endpoints are probed in
+ * parallel with the WHIP OPTIONS preflight, which also returns each endpoint's ICE servers. The
+ * results and the publish outcomes reported by the caller are kept in a small health cache on
+ * disk, so a new session can rank the endpoints before the probes have answered.
+ *
+ * The cache also remembers the ingest node each endpoint redirected to, so the next publish can
+ * POST there directly instead of going through the redirect again.
+ */
+class WhipEndpointSelector {
+    private static final String TAG = "WhipEndpoint";
+    // An RTT sample counts for this much of the smoothed RTT.
+    private static final double RTT_WEIGHT = 0.3;
+    // A recent failure makes an endpoint look this much slower; the penalty fades over FAILURE_DECAY_MS.
+    private static final double FAILURE_PENALTY = 10.0;
+    private static final long FAILURE_DECAY_MS = 10 * 60 * 1000;
+    private static final long UNKNOWN_RTT_MS = 1000;
+    // An endpoint that never succeeded looks this much slower than one that always did.
+    private static final double SUCCESS_RATIO_WEIGHT = 1.0;
+    // Publish outcomes are halved past this count, so the ratio follows recent sessions.
+    private static final int MAX_OUTCOMES = 20;
+    // Redirect targets are kept under this prefix, next to the endpoints' health.
+    private static final String REDIRECT_PREFIX = "redirect|";
+    private static final long REDIRECT_MAX_AGE_MS = 24 * 60 * 60 * 1000;
+    // Writes the cache file in report order, off the PeerConnection and probe threads.
+    private static final ExecutorService saveExecutor = Executors.newSingleThreadExecutor();
+
+    private static class Health {
+        double rttMs = -1;
+        int successes;
+        int failures;
+        long lastFailureMs;
+
+        double score(long nowMs) {
+            double rtt = rttMs >= 0 ? rttMs : UNKNOWN_RTT_MS;
+            // Smoothed so an endpoint without outcomes sits halfway.
+            double successRatio = (successes + 1.0) / (successes + failures + 2.0);
+            rtt *= 1 + SUCCESS_RATIO_WEIGHT * (1 - successRatio);
+            if (failures > 0 && lastFailureMs > 0) {
+                double recent = Math.max(0, 1.0 - (double) (nowMs - lastFailureMs) / FAILURE_DECAY_MS);
+                rtt *= 1 + FAILURE_PENALTY * recent;
+            }
+            return rtt;
+        }
+
+        void decayOutcomes() {
+            if (successes + failures > MAX_OUTCOMES) {
+                successes /= 2;
+                failures /= 2;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.1f,%d,%d,%d", rttMs, successes, failures, lastFailureMs);
+        }
+
+        static Health parse(String value) {
+            Health health = new Health();
+            String[] tokens = value.split(",");
+            if (tokens.length == 4) {
+                try {
+                    health.rttMs = Double.parseDouble(tokens[0]);
+                    health.successes = Integer.parseInt(tokens[1]);
+                    health.failures = Integer.parseInt(tokens[2]);
+                    health.lastFailureMs = Long.parseLong(tokens[3]);
+                } catch (NumberFormatException e) {
+                    return new Health();
+                }
+            }
+            return health;
+        }
+    }
+
+    private final File cacheFile;
+    private final List<String> endpoints;
+    private final Map<String, Health> health = new HashMap<>();
+    private final Map<String, List<String>> links = new HashMap<>();
+    // Endpoint to "targetUrl,updatedMs"
+    private final Map<String, String> redirects = new HashMap<>();
+    private final CountDownLatch probed;
+
+    WhipEndpointSelector(File cacheFile, List<String> endpoints) {
+        this.cacheFile = cacheFile;
+        this.endpoints = new ArrayList<>(endpoints);
+        this.probed = new CountDownLatch(this.endpoints.size());
+        load();
+    }
+
+    /**
+     * Sends the OPTIONS preflight to every endpoint in parallel. Any HTTP response means the node
+     * is up; only connection errors and 5xx count as failures.
+     */
+    public void probe(int timeoutMs) {
+        if (endpoints.isEmpty()) {
+            return;
+        }
+        final ExecutorService probeExecutor = Executors.newFixedThreadPool(endpoints.size());
+        for (String endpoint : endpoints) {
+            probeExecutor.execute(() -> {
+                try {
+                    WHIPClient client = new WHIPClient();
+                    client.setURL(endpoint);
+                    final long startNs = System.nanoTime();
+                    final int status = client.Options(timeoutMs);
+                    final double rttMs = (System.nanoTime() - startNs) / 1_000_000.0;
+                    AsyncLog.d(TAG, "Probe %s: %d in %.1fms", endpoint, status, rttMs);
+                    if (status < 0 || status >= 500) {
+                        reportFailure(endpoint);
+                    } else {
+                        synchronized (health) {
+                            links.put(endpoint, new ArrayList<>(client.GetLink()));
+                        }
+                        reportRtt(endpoint, rttMs);
+                    }
+                } finally {
+                    probed.countDown();
+                }
+            });
+        }
+        probeExecutor.shutdown();
+    }
+
+    /**
+     * Returns the endpoints best first. Waits up to `waitMs` for the probes, then ranks with
+     * whatever is known, falling back to the cached health.
+     */
+    public List<String> getRanked(long waitMs) {
+        try {
+            probed.await(waitMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        final long nowMs = System.currentTimeMillis();
+        List<String> ranked = new ArrayList<>(endpoints);
+        synchronized (health) {
+            final Map<String, Double> scores = new HashMap<>();
+            for (String endpoint : ranked) {
+                scores.put(endpoint, getHealth(endpoint).score(nowMs));
+            }
+            // Stable sort, so the configured order breaks ties.
+            Collections.sort(ranked, (a, b) -> Double.compare(scores.get(a), scores.get(b)));
+            AsyncLog.i(TAG, "Ranked endpoints: %s %s", ranked, scores);
+        }
+        return ranked;
+    }
+
+    /**
+     * Returns the Link headers of the endpoint's OPTIONS response, empty if it has not answered.
+     */
+    public List<String> getLinks(String endpoint) {
+        synchronized (health) {
+            List<String> endpointLinks = links.get(endpoint);
+            return endpointLinks != null ? endpointLinks : new ArrayList<>();
+        }
+    }
+
+    public void reportSuccess(String endpoint) {
+        synchronized (health) {
+            Health entry = getHealth(endpoint);
+            entry.successes++;
+            entry.decayOutcomes();
+            save();
+        }
+    }
+
+    public void reportFailure(String endpoint) {
+        synchronized (health) {
+            Health entry = getHealth(endpoint);
+            entry.failures++;
+            entry.decayOutcomes();
+            entry.lastFailureMs = System.currentTimeMillis();
+            save();
+        }
+    }
+
+    /**
+     * Returns the node the endpoint last redirected to, or null if it did not or that was more
+     * than REDIRECT_MAX_AGE_MS ago.
+     */
+    public String getRedirect(String endpoint) {
+        synchronized (health) {
+            String value = redirects.get(endpoint);
+            if (value == null) {
+                return null;
+            }
+            int separator = value.lastIndexOf(',');
+            try {
+                if (System.currentTimeMillis() - Long.parseLong(value.substring(separator + 1)) > REDIRECT_MAX_AGE_MS) {
+                    return null;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            return value.substring(0, separator);
+        }
+    }
+
+    /**
+     * Records the node that accepted a session published to `endpoint`. A session accepted by
+     * the endpoint itself, or a null target, forgets the redirect.
+     */
+    public void reportRedirect(String endpoint, String target) {
+        synchronized (health) {
+            if (target == null || target.equals(endpoint)) {
+                if (redirects.remove(endpoint) == null) {
+                    return;
+                }
+            } else {
+                redirects.put(endpoint, target + "," + System.currentTimeMillis());
+            }
+            save();
+        }
+    }
+
+    private void reportRtt(String endpoint, double rttMs) {
+        synchronized (health) {
+            Health entry = getHealth(endpoint);
+            entry.rttMs = entry.rttMs < 0 ? rttMs : entry.rttMs * (1 - RTT_WEIGHT) + rttMs * RTT_WEIGHT;
+            save();
+        }
+    }
+
+    private Health getHealth(String endpoint) {
+        Health entry = health.get(endpoint);
+        if (entry == null) {
+            entry = new Health();
+            health.put(endpoint, entry);
+        }
+        return entry;
+    }
+
+    private void load() {
+        if (!cacheFile.exists()) {
+            return;
+        }
+        Properties properties = new Properties();
+        try (InputStream in = new FileInputStream(cacheFile)) {
+            properties.load(in);
+        } catch (IOException e) {
+            AsyncLog.w(TAG, "Failed to read %s: %s", cacheFile, e);
+            return;
+        }
+        synchronized (health) {
+            for (String endpoint : endpoints) {
+                String value = properties.getProperty(endpoint);
+                if (value != null) {
+                    health.put(endpoint, Health.parse(value));
+                }
+                String redirect = properties.getProperty(REDIRECT_PREFIX + endpoint);
+                if (redirect != null) {
+                    redirects.put(endpoint, redirect);
+                }
+            }
+        }
+    }
+
+    // Called with the health lock held: takes a snapshot and writes it on saveExecutor.
+    private void save() {
+        final Properties properties = new Properties();
+        for (Map.Entry<String, Health> entry : health.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+        for (Map.Entry<String, String> entry : redirects.entrySet()) {
+            properties.setProperty(REDIRECT_PREFIX + entry.getKey(), entry.getValue());
+        }
+        saveExecutor.execute(() -> write(properties));
+    }
+
+    private void write(Properties properties) {
+        try (OutputStream out = new FileOutputStream(cacheFile)) {
+            properties.store(out, "WHIP endpoint health: rttMs,successes,failures,lastFailureMs; redirect|endpoint: targetUrl,updatedMs");
+        } catch (IOException e) {
+            AsyncLog.w(TAG, "Failed to write %s: %s", cacheFile, e);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.airensoft.whip;
+
+import org.webrtc.PeerConnection;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Parses the ICE servers out of WHIP Link headers (RFC 8288), e.g.
+ * <turn:turn.example.net?transport=udp>; rel="ice-server"; username="user"; credential="pass"
+ * A header value may carry several comma-separated links.
+ */
+class WhipLinkParser {
+    private static final String REL_ICE_SERVER = "ice-server";
+
+    public static List<PeerConnection.IceServer> parseIceServers(List<String> headers) {
+        List<PeerConnection.IceServer> iceServers = new ArrayList<>();
+        for (String header : headers) {
+            for (String link : splitOutsideQuotes(header, ',')) {
+                PeerConnection.IceServer iceServer = parseIceServer(link);
+                if (iceServer != null) {
+                    iceServers.add(iceServer);
+                }
+            }
+        }
+        return iceServers;
+    }
+
+    private static PeerConnection.IceServer parseIceServer(String link) {
+        List<String> tokens = splitOutsideQuotes(link, ';');
+        if (tokens.isEmpty()) {
+            return null;
+        }
+        String uri = tokens.get(0).trim();
+        if (!uri.startsWith("<") || !uri.endsWith(">")) {
+            AsyncLog.w("WhipLinkParser", "Wrong Link format: %s", link);
+            return null;
+        }
+        uri = uri.substring(1, uri.length() - 1);
+
+        Map<String, String> params = new HashMap<>();
+        for (int i = 1; i < tokens.size(); i++) {
+            String token = tokens.get(i).trim();
+            int equal = token.indexOf('=');
+            if (equal < 0) {
+                continue;
+            }
+            String value = token.substring(equal + 1).trim();
+            if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            params.put(token.substring(0, equal).trim().toLowerCase(Locale.US), value);
+        }
+        String rel = params.get("rel");
+        if (rel != null && !rel.contains(REL_ICE_SERVER)) {
+            return null;
+        }
+
+        PeerConnection.IceServer.Builder builder = PeerConnection.IceServer.builder(uri)
+                .setTlsCertPolicy(PeerConnection.TlsCertPolicy.TLS_CERT_POLICY_SECURE);
+        if (params.containsKey("username")) {
+            builder.setUsername(params.get("username"));
+        }
+        if (params.containsKey("credential")) {
+            builder.setPassword(params.get("credential"));
+        }
+        return builder.createIceServer();
+    }
+
+    private static List<String> splitOutsideQuotes(String value, char separator) {
+        List<String> parts = new ArrayList<>();
+        boolean quoted = false;
+        boolean bracketed = false;
+        int start = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+            } else if (!quoted && c == '<') {
+                bracketed = true;
+            } else if (!quoted && c == '>') {
+                bracketed = false;
+            } else if (!quoted && !bracketed && c == separator) {
+                parts.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        if (start < value.length()) {
+            parts.add(value.substring(start));
+        }
+        parts.removeIf(part -> part.trim().isEmpty());
+        return parts;
+    }
+}
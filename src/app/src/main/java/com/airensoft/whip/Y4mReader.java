@@ -0,0 +1,101 @@
+package com.airensoft.whip;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * Random access to the frames of an I420 .y4m file, the same file FileVideoCapturer plays.
+ */
+class Y4mReader implements Closeable {
+    private final RandomAccessFile file;
+    private final int width;
+    private final int height;
+    private final long headerLength;
+    private final long frameLength;
+    private final int frameHeaderLength;
+    private final int frameCount;
+
+    Y4mReader(File path) throws IOException {
+        file = new RandomAccessFile(path, "r");
+        try {
+            String header = readLine(0);
+            if (!header.startsWith("YUV4MPEG2 ")) {
+                throw new IOException("Not a y4m file: " + path);
+            }
+            int w = 0;
+            int h = 0;
+            for (String token : header.split(" ")) {
+                if (token.startsWith("W")) {
+                    w = Integer.parseInt(token.substring(1));
+                } else if (token.startsWith("H")) {
+                    h = Integer.parseInt(token.substring(1));
+                } else if (token.startsWith("C") && !token.startsWith("C420")) {
+                    throw new IOException("Only 4:2:0 y4m is supported: " + token);
+                }
+            }
+            if (w <= 0 || h <= 0) {
+                throw new IOException("Missing frame size in " + header);
+            }
+            width = w;
+            height = h;
+            headerLength = header.length() + 1;
+            // FileVideoCapturer expects a bare "FRAME" header, so every frame has the same size.
+            frameHeaderLength = readLine(headerLength).length() + 1;
+            frameLength = frameHeaderLength + (long) width * height + 2L * getChromaWidth() * getChromaHeight();
+            frameCount = (int) ((file.length() - headerLength) / frameLength);
+        } catch (IOException | RuntimeException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getChromaWidth() {
+        return (width + 1) / 2;
+    }
+
+    public int getChromaHeight() {
+        return (height + 1) / 2;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Reads frame `index` into tightly packed planes (stride = plane width).
+     */
+    public synchronized void readFrame(int index, byte[] dataY, byte[] dataU, byte[] dataV) throws IOException {
+        if (index < 0 || index >= frameCount) {
+            throw new IOException("Frame " + index + " out of range " + frameCount);
+        }
+        file.seek(headerLength + index * frameLength + frameHeaderLength);
+        file.readFully(dataY, 0, width * height);
+        file.readFully(dataU, 0, getChromaWidth() * getChromaHeight());
+        file.readFully(dataV, 0, getChromaWidth() * getChromaHeight());
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private String readLine(long offset) throws IOException {
+        file.seek(offset);
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = file.read()) != -1 && c != '\n') {
+            line.append((char) c);
+        }
+        return line.toString();
+    }
+}
@@ -0,0 +1,167 @@
+package com.airensoft.whip;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class AbsCaptureTimeParserTest {
+    private static final int EXTENSION_ID = 3;
+    // 2024-01-01 00:00:00.5 UTC as UQ32.32 NTP.
+    private static final long CAPTURE_NTP = ((1_704_067_200L + 2_208_988_800L) << 32) | 0x80000000L;
+    private static final double CAPTURE_UNIX_MS = 1_704_067_200_500.0;
+    // -1.25 s as Q32.32.
+    private static final long CLOCK_OFFSET = -(5L << 30);
+
+    // RTP packet with a header extension of `profile` holding `elements`, padded to 32 bits.
+    private static byte[] rtp(int csrcCount, int profile, byte[] elements) {
+        final int words = (elements.length + 3) / 4;
+        ByteBuffer packet = ByteBuffer.allocate(12 + 4 * csrcCount + 4 + 4 * words + 4);
+        packet.put((byte) (0x90 | csrcCount)).put((byte) 96).putShort((short) 1234)
+                .putInt(0x12345678).putInt(0xCAFEBABE);
+        for (int i = 0; i < csrcCount; i++) {
+            packet.putInt(i + 1);
+        }
+        packet.putShort((short) profile).putShort((short) words).put(elements);
+        return packet.array();
+    }
+
+    private static byte[] oneByte(int id, long... values) {
+        ByteBuffer element = ByteBuffer.allocate(1 + 8 * values.length);
+        element.put((byte) ((id << 4) | (8 * values.length - 1)));
+        for (long value : values) {
+            element.putLong(value);
+        }
+        return element.array();
+    }
+
+    private static byte[] twoByte(int id, long... values) {
+        ByteBuffer element = ByteBuffer.allocate(2 + 8 * values.length);
+        element.put((byte) id).put((byte) (8 * values.length));
+        for (long value : values) {
+            element.putLong(value);
+        }
+        return element.array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        ByteBuffer result = ByteBuffer.allocate(length);
+        for (byte[] part : parts) {
+            result.put(part);
+        }
+        return result.array();
+    }
+
+    private static AbsCaptureTimeParser.AbsCaptureTime parse(byte[] packet) {
+        return AbsCaptureTimeParser.parse(packet, 0, packet.length, EXTENSION_ID);
+    }
+
+    @Test
+    public void oneByteCaptureTimeOnly() {
+        AbsCaptureTimeParser.AbsCaptureTime time = parse(rtp(0, 0xBEDE, oneByte(EXTENSION_ID, CAPTURE_NTP)));
+        assertNotNull(time);
+        assertEquals(CAPTURE_NTP, time.captureNtp);
+        assertNull(time.captureClockOffset);
+        assertEquals(CAPTURE_UNIX_MS, time.getCaptureUnixMs(), 1e-3);
+    }
+
+    @Test
+    public void oneByteWithClockOffset() {
+        AbsCaptureTimeParser.AbsCaptureTime time = parse(rtp(2, 0xBEDE, oneByte(EXTENSION_ID, CAPTURE_NTP, CLOCK_OFFSET)));
+        assertNotNull(time);
+        assertEquals(CAPTURE_NTP, time.captureNtp);
+        assertEquals(Long.valueOf(CLOCK_OFFSET), time.captureClockOffset);
+    }
+
+    @Test
+    public void twoByteCaptureTimeOnly() {
+        AbsCaptureTimeParser.AbsCaptureTime time = parse(rtp(0, 0x1000, twoByte(EXTENSION_ID, CAPTURE_NTP)));
+        assertNotNull(time);
+        assertEquals(CAPTURE_NTP, time.captureNtp);
+        assertNull(time.captureClockOffset);
+    }
+
+    @Test
+    public void twoByteWithClockOffsetAndHighId() {
+        byte[] packet = rtp(1, 0x1000, concat(twoByte(1, 42), twoByte(200, CAPTURE_NTP, CLOCK_OFFSET)));
+        AbsCaptureTimeParser.AbsCaptureTime time = AbsCaptureTimeParser.parse(packet, 0, packet.length, 200);
+        assertNotNull(time);
+        assertEquals(CAPTURE_NTP, time.captureNtp);
+        assertEquals(Long.valueOf(CLOCK_OFFSET), time.captureClockOffset);
+    }
+
+    @Test
+    public void skipsPaddingAndOtherExtensions() {
+        byte[] audioLevel = {(byte) 0x10, (byte) 0x7F};
+        assertEquals(CAPTURE_NTP, parse(rtp(0, 0xBEDE, concat(new byte[]{0, 0}, audioLevel, new byte[]{0},
+                oneByte(EXTENSION_ID, CAPTURE_NTP)))).captureNtp);
+        assertEquals(CAPTURE_NTP, parse(rtp(0, 0x1000, concat(new byte[]{0}, twoByte(1, 7), new byte[]{0, 0},
+                twoByte(EXTENSION_ID, CAPTURE_NTP)))).captureNtp);
+    }
+
+    @Test
+    public void idFifteenStopsOneByteParsing() {
+        assertNull(parse(rtp(0, 0xBEDE, concat(new byte[]{(byte) 0xF0}, oneByte(EXTENSION_ID, CAPTURE_NTP)))));
+    }
+
+    @Test
+    public void rejectsOtherPayloadSizes() {
+        byte[] fourBytes = {(byte) ((EXTENSION_ID << 4) | 3), 1, 2, 3, 4};
+        assertNull(parse(rtp(0, 0xBEDE, fourBytes)));
+    }
+
+    @Test
+    public void missingExtension() {
+        assertNull(parse(rtp(0, 0xBEDE, oneByte(EXTENSION_ID + 1, CAPTURE_NTP))));
+        byte[] packet = rtp(0, 0xBEDE, oneByte(EXTENSION_ID, CAPTURE_NTP));
+        // Clear the extension bit.
+        packet[0] &= ~0x10;
+        assertNull(parse(packet));
+        // Unknown extension profile.
+        assertNull(parse(rtp(0, 0x2000, oneByte(EXTENSION_ID, CAPTURE_NTP))));
+    }
+
+    @Test
+    public void truncatedExtension() {
+        byte[] packet = rtp(0, 0xBEDE, oneByte(EXTENSION_ID, CAPTURE_NTP));
+        assertNull(AbsCaptureTimeParser.parse(packet, 0, 20, EXTENSION_ID));
+    }
+
+    @Test
+    public void parsesAtAnOffset() {
+        byte[] packet = rtp(0, 0xBEDE, oneByte(EXTENSION_ID, CAPTURE_NTP));
+        byte[] datagram = concat(new byte[]{1, 2, 3, 4, 5}, packet);
+        AbsCaptureTimeParser.AbsCaptureTime time = AbsCaptureTimeParser.parse(datagram, 5, packet.length, EXTENSION_ID);
+        assertNotNull(time);
+        assertEquals(CAPTURE_NTP, time.captureNtp);
+    }
+
+    @Test
+    public void ntpToUnixMs() {
+        assertEquals(0.0, AbsCaptureTimeParser.ntpToUnixMs(2_208_988_800L << 32), 1e-9);
+        assertEquals(CAPTURE_UNIX_MS, AbsCaptureTimeParser.ntpToUnixMs(CAPTURE_NTP), 1e-3);
+    }
+
+    @Test
+    public void interpolatesAcrossRtpTimestampWrap() {
+        AbsCaptureTimeParser.Interpolator interpolator = new AbsCaptureTimeParser.Interpolator(90_000);
+        assertTrue(Double.isNaN(interpolator.update(0xFFFFF000L, null)));
+
+        final long lastTimestamp = 0xFFFFF000L;
+        assertEquals(CAPTURE_UNIX_MS, interpolator.update(lastTimestamp, new AbsCaptureTimeParser.AbsCaptureTime(CAPTURE_NTP, null)), 1e-3);
+        // 9000 ticks (100 ms) later, past the 32 bit wrap.
+        assertEquals(CAPTURE_UNIX_MS + 100, interpolator.update((lastTimestamp + 9000) & 0xFFFFFFFFL, null), 1e-3);
+        // A reordered packet of an earlier frame.
+        assertEquals(CAPTURE_UNIX_MS - 10, interpolator.update(lastTimestamp - 900, null), 1e-3);
+        // Gaps of more than 5 s are not interpolated.
+        assertTrue(Double.isNaN(interpolator.update((lastTimestamp + 6 * 90_000) & 0xFFFFFFFFL, null)));
+    }
+}
@@ -0,0 +1,191 @@
+package com.airensoft.whip;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Desktop entry point for AbsCaptureTimeParser, kept out of the app. Run it with the unit test
+ * classes on the classpath against a packet capture of the ingest traffic:
+ *
+ *     java com.airensoft.whip.AbsCaptureTimePcapTool ingest.pcap <extension id> [clock rate]
+ *
+ * SRTP leaves the RTP header and its extensions in the clear, so the capture needs no keys. The
+ * extension ID is the one of the a=extmap line in the SDP answer.
+ */
+public class AbsCaptureTimePcapTool {
+    private static final int VIDEO_CLOCK_RATE = 90_000;
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99};
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: AbsCaptureTimePcapTool <capture.pcap> <extension id> [clock rate]");
+            System.exit(2);
+        }
+        final int extensionId = Integer.parseInt(args[1]);
+        final int clockRate = args.length > 2 ? Integer.parseInt(args[2]) : VIDEO_CLOCK_RATE;
+        System.out.println(summarizePcap(new File(args[0]), extensionId, clockRate));
+    }
+
+    /**
+     * Reads a libpcap file and returns, per SSRC, the percentiles of the capture-to-arrival
+     * latency of the frames, taken at the last packet of each frame (the marker bit).
+     */
+    public static String summarizePcap(File file, int extensionId, int clockRate) throws IOException {
+        final ByteBuffer data;
+        try (RandomAccessFile in = new RandomAccessFile(file, "r"); FileChannel channel = in.getChannel()) {
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        final int magic = data.order(ByteOrder.LITTLE_ENDIAN).getInt(0);
+        if (magic != 0xA1B2C3D4 && magic != 0xA1B23C4D) {
+            data.order(ByteOrder.BIG_ENDIAN);
+        }
+        final boolean nanoseconds = data.getInt(0) == 0xA1B23C4D;
+        if (!nanoseconds && data.getInt(0) != 0xA1B2C3D4) {
+            throw new IOException("Not a pcap file: " + file);
+        }
+        final int linkType = data.getInt(20);
+        // Record headers are in the byte order of the file, packets in network byte order.
+        final ByteBuffer network = data.duplicate().order(ByteOrder.BIG_ENDIAN);
+
+        final Map<Long, AbsCaptureTimeParser.Interpolator> interpolators = new HashMap<>();
+        final Map<Long, List<Double>> latencies = new HashMap<>();
+        int packets = 0;
+        int extensions = 0;
+        int position = 24;
+        while (position + 16 <= data.limit()) {
+            final long seconds = data.getInt(position) & 0xFFFFFFFFL;
+            final long fraction = data.getInt(position + 4) & 0xFFFFFFFFL;
+            final int capturedLength = data.getInt(position + 8);
+            final int start = position + 16;
+            position = start + capturedLength;
+            if (position > data.limit()) {
+                break;
+            }
+            final int payload = findUdpPayload(network, start, capturedLength, linkType);
+            if (payload < 0) {
+                continue;
+            }
+            final byte[] packet = new byte[start + capturedLength - payload];
+            ((ByteBuffer) network.duplicate().position(payload)).get(packet);
+            final ByteBuffer rtp = ByteBuffer.wrap(packet);
+            if (!AbsCaptureTimeParser.isRtp(rtp)) {
+                continue;
+            }
+            packets++;
+            final long ssrc = rtp.getInt(8) & 0xFFFFFFFFL;
+            final long rtpTimestamp = rtp.getInt(4) & 0xFFFFFFFFL;
+            final AbsCaptureTimeParser.AbsCaptureTime extension = AbsCaptureTimeParser.parse(packet, 0, packet.length, extensionId);
+            if (extension != null) {
+                extensions++;
+            }
+            AbsCaptureTimeParser.Interpolator interpolator = interpolators.get(ssrc);
+            if (interpolator == null) {
+                interpolator = new AbsCaptureTimeParser.Interpolator(clockRate);
+                interpolators.put(ssrc, interpolator);
+            }
+            final double captureUnixMs = interpolator.update(rtpTimestamp, extension);
+            final boolean marker = (rtp.get(1) & 0x80) != 0;
+            if (marker && !Double.isNaN(captureUnixMs)) {
+                final double arrivalUnixMs = seconds * 1000.0 + fraction / (nanoseconds ? 1_000_000.0 : 1_000.0);
+                List<Double> ssrcLatencies = latencies.get(ssrc);
+                if (ssrcLatencies == null) {
+                    ssrcLatencies = new ArrayList<>();
+                    latencies.put(ssrc, ssrcLatencies);
+                }
+                ssrcLatencies.add(arrivalUnixMs - captureUnixMs);
+            }
+        }
+
+        final StringBuilder out = new StringBuilder();
+        out.append(String.format(Locale.US, "%d RTP packets, %d with abs-capture-time (id %d)%n", packets, extensions, extensionId));
+        out.append("Capture to arrival (ms) p50/p90/p99/max\n");
+        for (Map.Entry<Long, List<Double>> entry : latencies.entrySet()) {
+            final double[] values = new double[entry.getValue().size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = entry.getValue().get(i);
+            }
+            out.append(String.format(Locale.US, "  ssrc %08x: %d frames %s%n", entry.getKey(), values.length, percentiles(values)));
+        }
+        return out.toString();
+    }
+
+    /**
+     * Returns the offset of the UDP payload of the frame at `start`, or -1 if it is not UDP.
+     */
+    private static int findUdpPayload(ByteBuffer data, int start, int length, int linkType) {
+        final int end = start + length;
+        int position;
+        int etherType;
+        switch (linkType) {
+            case 0: // BSD loopback, address family in host order
+                position = start + 4;
+                etherType = (data.get(position) & 0xF0) == 0x60 ? 0x86DD : 0x0800;
+                break;
+            case 1: // Ethernet
+                position = start + 14;
+                etherType = data.getShort(start + 12) & 0xFFFF;
+                while (etherType == 0x8100 && position + 4 <= end) { // VLAN
+                    etherType = data.getShort(position + 2) & 0xFFFF;
+                    position += 4;
+                }
+                break;
+            case 101: // Raw IP
+                position = start;
+                etherType = (data.get(position) & 0xF0) == 0x60 ? 0x86DD : 0x0800;
+                break;
+            case 113: // Linux cooked capture
+                position = start + 16;
+                etherType = data.getShort(start + 14) & 0xFFFF;
+                break;
+            case 276: // Linux cooked capture v2
+                position = start + 20;
+                etherType = data.getShort(start) & 0xFFFF;
+                break;
+            default:
+                return -1;
+        }
+        if (etherType == 0x0800 && position + 20 <= end) {
+            if (data.get(position + 9) != 17) {
+                return -1;
+            }
+            position += (data.get(position) & 0x0F) * 4;
+        } else if (etherType == 0x86DD && position + 40 <= end) {
+            // Extension headers are not followed.
+            if (data.get(position + 6) != 17) {
+                return -1;
+            }
+            position += 40;
+        } else {
+            return -1;
+        }
+        position += 8;
+        return position <= end ? position : -1;
+    }
+
+    /**
+     * Nearest-rank percentiles and the maximum, as "p50/p90/p99/max".
+     */
+    private static String percentiles(double[] values) {
+        if (values.length == 0) {
+            return "-";
+        }
+        final double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final StringBuilder out = new StringBuilder();
+        for (double percentile : PERCENTILES) {
+            final int rank = (int) Math.ceil(percentile * sorted.length);
+            out.append(String.format(Locale.US, "%.1f/", sorted[Math.max(0, rank - 1)]));
+        }
+        return out.append(String.format(Locale.US, "%.1f", sorted[sorted.length - 1])).toString();
+    }
+}
@@ -0,0 +1,215 @@
+package com.airensoft.whip;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.webrtc.EncodedImage;
+import org.webrtc.VideoCodecStatus;
+import org.webrtc.VideoEncoder;
+import org.webrtc.VideoFrame;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives several subscribers of one EncodingHub group with a fake encoder.
+ */
+public class EncodingHubTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 360;
+    private static final EncodedImage.FrameType KEY = EncodedImage.FrameType.VideoFrameKey;
+    private static final EncodedImage.FrameType DELTA = EncodedImage.FrameType.VideoFrameDelta;
+
+    // Encodes every frame synchronously; the payload is the number of frames encoded before.
+    private static class FakeEncoder implements VideoEncoder {
+        Callback callback;
+        int initCount;
+        int encodedFrames;
+        // Output buffers handed to the callback and not released yet.
+        int heldBuffers;
+        final List<EncodedImage.FrameType> encodedTypes = new ArrayList<>();
+
+        @Override
+        public VideoCodecStatus initEncode(Settings settings, Callback encodeCallback) {
+            callback = encodeCallback;
+            initCount++;
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus release() {
+            callback = null;
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus encode(VideoFrame frame, EncodeInfo info) {
+            final EncodedImage.FrameType type = info.frameTypes.length > 0 && info.frameTypes[0] == KEY ? KEY : DELTA;
+            encodedTypes.add(type);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(4);
+            buffer.putInt(0, encodedFrames++);
+            heldBuffers++;
+            EncodedImage image = EncodedImage.builder()
+                    .setBuffer(buffer, () -> heldBuffers--)
+                    .setEncodedWidth(WIDTH)
+                    .setEncodedHeight(HEIGHT)
+                    .setCaptureTimeNs(frame.getTimestampNs())
+                    .setFrameType(type)
+                    .createEncodedImage();
+            callback.onEncodedFrame(image, new CodecSpecificInfo());
+            image.release();
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public VideoCodecStatus setRateAllocation(BitrateAllocation allocation, int framerate) {
+            return VideoCodecStatus.OK;
+        }
+
+        @Override
+        public ScalingSettings getScalingSettings() {
+            return ScalingSettings.OFF;
+        }
+
+        @Override
+        public String getImplementationName() {
+            return "FakeEncoder";
+        }
+    }
+
+    // What a session's callback received: payload, capture time and frame type.
+    private static class Output implements VideoEncoder.Callback {
+        final List<Integer> payloads = new ArrayList<>();
+        final List<Long> captureTimesNs = new ArrayList<>();
+        final List<EncodedImage.FrameType> types = new ArrayList<>();
+
+        @Override
+        public void onEncodedFrame(EncodedImage frame, VideoEncoder.CodecSpecificInfo info) {
+            payloads.add(frame.buffer.getInt(frame.buffer.position()));
+            captureTimesNs.add(frame.captureTimeNs);
+            types.add(frame.frameType);
+        }
+    }
+
+    private static class FakeBuffer implements VideoFrame.Buffer {
+        @Override
+        public int getWidth() {
+            return WIDTH;
+        }
+
+        @Override
+        public int getHeight() {
+            return HEIGHT;
+        }
+
+        @Override
+        public VideoFrame.I420Buffer toI420() {
+            return null;
+        }
+
+        @Override
+        public void retain() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public VideoFrame.Buffer cropAndScale(int cropX, int cropY, int cropWidth, int cropHeight, int scaleWidth, int scaleHeight) {
+            return this;
+        }
+    }
+
+    private EncodingHub hub;
+    private final List<FakeEncoder> encoders = new ArrayList<>();
+    private final List<VideoEncoder> sessions = new ArrayList<>();
+    private final List<Output> outputs = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        // Nothing reaches android.util.Log in a JVM test.
+        AsyncLog.setDefaultLevel(AsyncLog.Level.NONE);
+        hub = new EncodingHub();
+    }
+
+    private void join(int count) {
+        for (int i = 0; i < count; i++) {
+            FakeEncoder encoder = new FakeEncoder();
+            VideoEncoder session = hub.wrap(encoder, PeerConnectionConstant.VIDEO_CODEC_H264);
+            Output output = new Output();
+            VideoEncoder.Settings settings = new VideoEncoder.Settings(1, WIDTH, HEIGHT, 500, 30, 1, false,
+                    new VideoEncoder.Capabilities(false));
+            assertEquals(VideoCodecStatus.OK, session.initEncode(settings, output));
+            encoders.add(encoder);
+            sessions.add(session);
+            outputs.add(output);
+        }
+    }
+
+    private void encode(int session, long timestampNs) {
+        VideoEncoder.EncodeInfo info = new VideoEncoder.EncodeInfo(new EncodedImage.FrameType[]{DELTA});
+        assertEquals(VideoCodecStatus.OK, sessions.get(session).encode(new VideoFrame(new FakeBuffer(), 0, timestampNs), info));
+    }
+
+    @Test
+    public void onlyTheLeaderEncodes() {
+        join(2);
+        assertEquals(1, encoders.get(0).initCount);
+        assertEquals(0, encoders.get(1).initCount);
+    }
+
+    @Test
+    public void followerSendsTheLeaderOutputWithItsOwnCaptureTime() {
+        join(2);
+        encode(0, 1000);
+        encode(1, 1010);
+        encode(0, 2000);
+        encode(1, 2010);
+
+        // The follower's join asked for a key frame, which starts both streams.
+        assertEquals(KEY, encoders.get(0).encodedTypes.get(0));
+        assertEquals(outputs.get(0).payloads, outputs.get(1).payloads);
+        assertEquals(outputs.get(0).types, outputs.get(1).types);
+        assertEquals(Long.valueOf(1010), outputs.get(1).captureTimesNs.get(0));
+        assertEquals(Long.valueOf(2010), outputs.get(1).captureTimesNs.get(1));
+        assertEquals(0, encoders.get(1).encodedFrames);
+    }
+
+    @Test
+    public void pendingFramesDoNotHoldCodecBuffers() {
+        join(3);
+        encode(0, 1000);
+        encode(0, 2000);
+        // Both followers have two frames pending, but the codec got its buffers back.
+        assertEquals(0, encoders.get(0).heldBuffers);
+        encode(1, 1010);
+        encode(2, 1020);
+        assertEquals(outputs.get(0).payloads.subList(0, 1), outputs.get(1).payloads);
+        assertEquals(outputs.get(0).payloads.subList(0, 1), outputs.get(2).payloads);
+    }
+
+    @Test
+    public void laggingFollowerDropsWithoutStallingTheOthers() {
+        join(3);
+        encode(0, 0);
+        encode(1, 10);
+        encode(2, 20);
+        // Session 2 stops encoding while the leader and session 1 go on. Its fifth pending frame
+        // makes it drop the four before and ask for a key frame, which the leader encodes next.
+        for (int i = 1; i <= 6; i++) {
+            encode(0, i * 1000);
+            encode(1, i * 1000 + 10);
+        }
+        assertEquals(7, outputs.get(1).payloads.size());
+        assertEquals(outputs.get(0).payloads, outputs.get(1).payloads);
+        assertEquals(KEY, encoders.get(0).encodedTypes.get(6));
+
+        encode(2, 6020);
+        assertEquals(2, outputs.get(2).payloads.size());
+        assertEquals(Integer.valueOf(6), outputs.get(2).payloads.get(1));
+        assertEquals(KEY, outputs.get(2).types.get(1));
+    }
+}
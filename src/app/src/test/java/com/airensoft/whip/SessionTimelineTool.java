@@ -0,0 +1,24 @@
+package com.airensoft.whip;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Desktop entry point for SessionTimelineSummarizer, kept out of the app. Run it with the unit
+ * test classes on the classpath against a pulled file:
+ *
+ *     java com.airensoft.whip.SessionTimelineTool timeline_20240101_120000.wtl [out.csv]
+ */
+public class SessionTimelineTool {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: SessionTimelineTool <timeline.wtl> [out.csv]");
+            System.exit(2);
+        }
+        final SessionTimelineSummarizer.Timeline timeline = SessionTimelineSummarizer.read(new File(args[0]));
+        System.out.println(SessionTimelineSummarizer.summarize(timeline));
+        if (args.length > 1) {
+            SessionTimelineSummarizer.exportCsv(timeline, new File(args[1]));
+        }
+    }
+}
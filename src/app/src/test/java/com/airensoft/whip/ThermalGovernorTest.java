@@ -0,0 +1,139 @@
+package com.airensoft.whip;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays synthetic thermal traces through ThermalGovernor.
+ */
+public class ThermalGovernorTest {
+    private static final long INTERVAL_MS = 2000;
+
+    private final List<EncodeGovernor.Step> ladder = Arrays.asList(
+            EncodeGovernor.Step.FRAMERATE, EncodeGovernor.Step.RESOLUTION, EncodeGovernor.Step.LAYERS);
+    private final List<EncodeGovernor.Step> changes = new ArrayList<>();
+    private ThermalGovernor governor;
+    private long nowMs;
+
+    @Before
+    public void setUp() {
+        governor = new ThermalGovernor(ladder, (oldLevel, newLevel, step, sample) -> changes.add(step));
+        nowMs = 0;
+    }
+
+    // Feeds one sample per INTERVAL_MS and returns the level after each.
+    private int[] replay(int status, double... headrooms) {
+        int[] levels = new int[headrooms.length];
+        for (int i = 0; i < headrooms.length; i++) {
+            levels[i] = governor.update(new ThermalGovernor.Sample(nowMs, status, headrooms[i]));
+            nowMs += INTERVAL_MS;
+        }
+        return levels;
+    }
+
+    private int[] replay(double... headrooms) {
+        return replay(ThermalGovernor.STATUS_NONE, headrooms);
+    }
+
+    @Test
+    public void coolDeviceStaysAtLevelZero() {
+        assertArrayEquals(new int[]{0, 0, 0, 0}, replay(0.3, 0.5, 0.7, 0.74));
+        assertEquals(0, changes.size());
+    }
+
+    @Test
+    public void heatingStepsDownOneLevelPerSample() {
+        assertArrayEquals(new int[]{0, 1, 2, 3, 3}, replay(0.6, 0.8, 0.9, 0.97, 1.1));
+        assertEquals(ladder, changes);
+        assertEquals(ladder, governor.getActiveSteps());
+    }
+
+    @Test
+    public void jumpToThrottlingStillStepsOneLevelAtATime() {
+        assertArrayEquals(new int[]{1, 2, 3}, replay(1.0, 1.0, 1.0));
+    }
+
+    @Test
+    public void headroomHoveringAtThresholdDoesNotFlap() {
+        replay(0.76);
+        assertArrayEquals(new int[]{1, 1, 1, 1, 1, 1, 1, 1}, replay(0.74, 0.76, 0.73, 0.75, 0.72, 0.76, 0.74, 0.71));
+        assertEquals(1, changes.size());
+    }
+
+    @Test
+    public void recoveryNeedsSustainedSamplesBelowTheMargin() {
+        replay(0.8, 0.9);
+        assertEquals(2, governor.getLevel());
+        // Below the second step but within its recovery margin.
+        assertArrayEquals(new int[]{2, 2, 2, 2, 2, 2, 2, 2}, replay(0.82, 0.82, 0.82, 0.82, 0.82, 0.82, 0.82, 0.82));
+        // Clear of the margin; the sixth sample leaves the step.
+        assertArrayEquals(new int[]{2, 2, 2, 2, 2, 1}, replay(0.7, 0.7, 0.7, 0.7, 0.7, 0.7));
+        assertEquals(EncodeGovernor.Step.RESOLUTION, changes.get(changes.size() - 1));
+    }
+
+    @Test
+    public void recoveryWaitsForTheHoldTime() {
+        replay(0.8);
+        // Recovered samples arrive faster than the hold time after the change.
+        long startMs = nowMs;
+        int level = 1;
+        for (int i = 0; i < ThermalGovernor.RECOVERY_SAMPLES * 2; i++) {
+            level = governor.update(new ThermalGovernor.Sample(startMs + i * 100, ThermalGovernor.STATUS_NONE, 0.5));
+        }
+        assertEquals(1, level);
+        nowMs = startMs + ThermalGovernor.HOLD_AFTER_CHANGE_MS;
+        assertArrayEquals(new int[]{0}, replay(0.5));
+    }
+
+    @Test
+    public void interruptedRecoveryStartsOver() {
+        replay(0.8);
+        nowMs += ThermalGovernor.HOLD_AFTER_CHANGE_MS;
+        assertArrayEquals(new int[]{1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0},
+                replay(0.5, 0.5, 0.5, 0.5, 0.5, 0.76, 0.5, 0.5, 0.5, 0.5, 0.5, 0.5));
+    }
+
+    @Test
+    public void statusWithoutForecastDrivesTheLevel() {
+        assertArrayEquals(new int[]{1, 1}, replay(ThermalGovernor.STATUS_LIGHT, Double.NaN, Double.NaN));
+        assertArrayEquals(new int[]{2, 2}, replay(ThermalGovernor.STATUS_MODERATE, Double.NaN, Double.NaN));
+        assertArrayEquals(new int[]{3}, replay(ThermalGovernor.STATUS_SEVERE, Double.NaN));
+    }
+
+    @Test
+    public void severeStatusOverridesAColdForecast() {
+        assertArrayEquals(new int[]{1, 2, 3}, replay(ThermalGovernor.STATUS_SEVERE, 0.2, 0.2, 0.2));
+    }
+
+    @Test
+    public void shortLadderCapsTheLevel() {
+        governor = new ThermalGovernor(Arrays.asList(EncodeGovernor.Step.FRAMERATE), (oldLevel, newLevel, step, sample) -> changes.add(step));
+        assertArrayEquals(new int[]{1, 1, 1}, replay(0.8, 0.9, 1.0));
+        assertEquals(Arrays.asList(EncodeGovernor.Step.FRAMERATE), changes);
+    }
+
+    @Test
+    public void parsedLadderKeepsOneStepPerThreshold() {
+        // Nothing reaches android.util.Log in a JVM test.
+        AsyncLog.setDefaultLevel(AsyncLog.Level.NONE);
+        assertEquals(ladder, ThermalGovernor.parseLadder("fps,resolution,layers"));
+        assertEquals(ladder, ThermalGovernor.parseLadder("fps,resolution,layers,layers,complexity"));
+    }
+
+    @Test
+    public void constructorRejectsLadderLongerThanThresholds() {
+        try {
+            new ThermalGovernor(EncodeGovernor.Step.parseLadder("fps,resolution,layers,complexity"), (oldLevel, newLevel, step, sample) -> { });
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}